@@ -3,10 +3,10 @@ package lm;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
 
 /** 
  * @author TSM
@@ -17,41 +17,115 @@ import java.util.List;
 
 public class BackwardBigramModel extends BigramModel 
 {
+	// train, trainParallel and incremental training all count through these,
+	// so each sentence is reversed exactly once.
 	@Override
-    public void train (List<List<String>> sentences) 
+	public void trainSentences (List<List<String>> sentences)
 	{
-		super.train(reverseSentences(sentences));
+		super.trainSentences(reverseSentences(sentences));
+	}
+	
+	@Override
+	public void trainSentencesParallel (List<List<String>> sentences, int numThreads)
+	{
+		super.trainSentencesParallel(reverseSentences(sentences), numThreads);
+	}
+	
+	@Override
+	public void trainSentences (final Iterator<List<String>> sentences)
+	{
+		// Reverse each sentence as it is read.
+		super.trainSentences(new Iterator<List<String>>()
+		{
+			public boolean hasNext()
+			{
+				return sentences.hasNext();
+			}
+			
+			public List<String> next()
+			{
+				return reverseSentence(sentences.next());
+			}
+		});
+	}
+	
+	// Walk corpus sentences from their last token, so training on and
+	// scoring a Corpus needs no reversed copy.
+	@Override
+	protected int tokenPosition (Corpus corpus, int s, int k)
+	{
+		return corpus.end(s) - 1 - k;
 	}
 	
 	@Override
 	public double sentenceLogProb (List<String> sentence)
 	{
-		return super.sentenceLogProb(reverseSentence(sentence));
+		return backwardLogProb(sentence, true);
 	}
 	
 	@Override
 	public double sentenceLogProb2 (List<String> sentence)
 	{
-		return super.sentenceLogProb2(reverseSentence(sentence));
+		return backwardLogProb(sentence, false);
+	}
+	
+	// Sum of the log probabilities of the tokens of the sentence, walking it
+	// from the last token to the first, and then of End-of-Sentence if includeEnd.
+	private double backwardLogProb (List<String> sentence, boolean includeEnd)
+	{
+		ModelMetrics scoring = scoringStarted();
+		try
+		{
+			int prevId = Vocabulary.START;
+			double sentenceLogProb = 0;
+			ListIterator<String> tokens = sentence.listIterator(sentence.size());
+			while (tokens.hasPrevious())
+			{
+				int id = scoringId(tokens.previous());
+				sentenceLogProb += Math.log(predictionProb(prevId, id));
+				prevId = id;
+			}
+			if (includeEnd)
+			{
+				sentenceLogProb += Math.log(predictionProb(prevId, Vocabulary.END));
+			}
+			return sentenceLogProb;
+		}
+		finally
+		{
+			scoringEnded(scoring);
+		}
 	}
 	
 	@Override
-    public Double[] sentenceTokenProbs (List<String> sentence)
-    {
-		// Return the probabilities in original token order.
-		//
-	    //               Original: This is a sentence </S>
-	    // Backward Probabilities: sentence a is This </S>
-	    //      Reversed Backward: </S> This is a sentence
-	    //                           |-----------------|
-	    //           What We Want: This is a sentence </S>
-		Double[] backwardProbabilities = super.sentenceTokenProbs(reverseSentence(sentence));
-		List<Double> asList = new LinkedList<Double>(Arrays.asList(backwardProbabilities));
-	    Double tail = asList.get(asList.size() - 1);
-	    asList.remove(asList.size() - 1);
-	    Collections.reverse(asList);
-	    asList.add(tail);
-		return (Double[]) asList.toArray(new Double[asList.size()]);
+	public int sentenceTokenProbs (List<String> sentence, double[] tokenProbs, int offset)
+	{
+		ModelMetrics scoring = scoringStarted();
+		try
+		{
+			// Store the probabilities in original token order.
+			//
+			//               Original: This is a sentence </S>
+			// Backward Probabilities: sentence a is This </S>
+			//           What We Want: This is a sentence </S>
+			//
+			// Walk the sentence from the end, filling slots from the end.
+			int prevId = Vocabulary.START;
+			int i = offset + sentence.size();
+			ListIterator<String> tokens = sentence.listIterator(sentence.size());
+			while (tokens.hasPrevious())
+			{
+				int id = scoringId(tokens.previous());
+				tokenProbs[--i] = predictionProb(prevId, id);
+				prevId = id;
+			}
+			tokenProbs[offset + sentence.size()] = predictionProb(prevId, Vocabulary.END);
+			return sentence.size() + 1;
+		}
+		finally
+		{
+			scoringEnded(scoring);
+		}
 	}
 	
 	public List<String> reverseSentence(List<String> sentence)
@@ -82,21 +156,27 @@ public class BackwardBigramModel extends BigramModel
 	    files[i] = new File(args[i]);
 	// Last arg is the TestFrac
 	double testFraction = Double.valueOf(args[args.length -1]);
+	if (Boolean.getBoolean("lm.stream")) {
+	    trainAndTestStreaming(new BackwardBigramModel(), files, testFraction);
+	    return;
+	}
 	// Get list of sentences from the LDC POS tagged input files
-	List<List<String>> sentences = 	POSTaggedFile.convertToTokenLists(files);
+	Corpus sentences = Corpus.load(files);
 	int numSentences = sentences.size();
 	// Compute number of test sentences based on TestFrac
 	int numTest = (int)Math.round(numSentences * testFraction);
 	// Take test sentences from end of data
-	List<List<String>> testSentences = sentences.subList(numSentences - numTest, numSentences);
+	Corpus testSentences = sentences.subList(numSentences - numTest, numSentences);
 	// Take training sentences from start of data
-	List<List<String>> trainSentences = sentences.subList(0, numSentences - numTest);
+	Corpus trainSentences = sentences.subList(0, numSentences - numTest);
 	System.out.println("# Train Sentences = " + trainSentences.size() + 
 			   " (# words = " + wordCount(trainSentences) + 
 			   ") \n# Test Sentences = " + testSentences.size() +
 			   " (# words = " + wordCount(testSentences) + ")");
 	// Create a bigram model and train it.
 	BigramModel model = new BackwardBigramModel();
+	ModelMetrics.install(model);
+	CorpusCache.reportStartup(System.out);
 	System.out.println("Training...");
 	model.train(trainSentences);
 	// Test on training data using test and test2
@@ -0,0 +1,74 @@
+package lm;
+
+import java.util.*;
+
+/**
+ * An N-gram model applied to sentences in reverse, as BackwardBigramModel
+ * is: each token is predicted from the order - 1 tokens after it, the last
+ * from start tokens, and </S> from the first tokens. Sentences passed to
+ * trainSentence must already be reversed; the other methods take sentences
+ * in their original order.
+ *
+ * @author TSM
+ */
+
+public class BackwardNgramModel extends NgramModel {
+
+    /** Create an interpolated backward model of N-grams up to order long */
+    public BackwardNgramModel(int order) {
+	super(order);
+    }
+
+    /** Create a backward model of N-grams up to order long */
+    public BackwardNgramModel(int order, Smoothing smoothing) {
+	super(order, smoothing);
+    }
+
+    /** train, trainParallel and incremental training all count through here,
+     *  so each sentence is reversed exactly once */
+    @Override
+    public void trainSentences (List<List<String>> sentences) {
+	super.trainSentences(reverseSentences(sentences));
+    }
+
+    @Override
+    public void trainSentences (final Iterator<List<String>> sentences) {
+	// Reverse each sentence as it is read
+	super.trainSentences(new Iterator<List<String>>() {
+		public boolean hasNext() {
+		    return sentences.hasNext();
+		}
+
+		public List<String> next() {
+		    return reverseSentence(sentences.next());
+		}
+	    });
+    }
+
+    /** Walk corpus sentences from their last token */
+    @Override
+    protected int tokenPosition (Corpus corpus, int s, int k) {
+	return corpus.end(s) - 1 - k;
+    }
+
+    /** The k'th token predicted is the k'th from the end */
+    @Override
+    protected int tokenIndex (int size, int k) {
+	return size - 1 - k;
+    }
+
+    /** Return a reversed copy of sentence */
+    public static List<String> reverseSentence (List<String> sentence) {
+	List<String> reversed = new ArrayList<String>(sentence);
+	Collections.reverse(reversed);
+	return reversed;
+    }
+
+    /** Return reversed copies of sentences */
+    public static List<List<String>> reverseSentences (List<List<String>> sentences) {
+	List<List<String>> reversed = new ArrayList<List<String>>(sentences.size());
+	for (List<String> sentence : sentences)
+	    reversed.add(reverseSentence(sentence));
+	return reversed;
+    }
+}
@@ -0,0 +1,165 @@
+package lm;
+
+import java.util.*;
+
+/**
+ * Scores many sentences at once. The two component probabilities of each
+ * token (unigram and bigram for a BigramModel or BackwardBigramModel,
+ * forward and backward for a BidirectionalBigramModel) are gathered into
+ * primitive arrays a batch at a time, and the interpolation, logs and sum
+ * are then done over the arrays by an InterpolationKernel. Where the
+ * jdk.incubator.vector module is available the kernel is the SIMD
+ * lm.simd.VectorInterpolationKernel, otherwise a scalar loop.
+ *
+ * A BatchScorer reuses its arrays and is not thread-safe.
+ *
+ * @author TSM
+ */
+
+public class BatchScorer {
+
+    /** Name of the SIMD kernel, compiled separately with the incubator module */
+    public static final String VECTOR_KERNEL = "lm.simd.VectorInterpolationKernel";
+
+    /** Kernel used by default, found once */
+    private static InterpolationKernel defaultKernel = null;
+
+    /** Interpolation and log-sum one token at a time */
+    public static class ScalarKernel implements InterpolationKernel {
+	public double interpolatedLogSum(double[] first, double[] second, int n, double weight1, double weight2) {
+	    double sum = 0;
+	    for (int i = 0; i < n; i++)
+		sum += Math.log(weight1 * first[i] + weight2 * second[i]);
+	    return sum;
+	}
+    }
+
+    /** Return the SIMD kernel if it was compiled and the JVM was started with
+     *  --add-modules jdk.incubator.vector (and the lm.simd system property is
+     *  not false), otherwise the scalar kernel */
+    public static synchronized InterpolationKernel kernel() {
+	if (defaultKernel == null) {
+	    if (!System.getProperty("lm.simd", "true").equals("false")) {
+		try {
+		    defaultKernel = (InterpolationKernel) Class.forName(VECTOR_KERNEL).getDeclaredConstructor().newInstance();
+		}
+		catch (ReflectiveOperationException | LinkageError e) {
+		    // Not compiled, or the incubator module is not loaded
+		}
+	    }
+	    if (defaultKernel == null)
+		defaultKernel = new ScalarKernel();
+	}
+	return defaultKernel;
+    }
+
+    /** Model whose sentences are scored */
+    protected final BigramModel model;
+
+    /** Kernel doing the arithmetic */
+    protected final InterpolationKernel kernel;
+
+    /** Component probabilities of the tokens of the current batch */
+    protected double[] first;
+    protected double[] second;
+
+    /** Per-sentence buffers for the bidirectional components */
+    protected double[] sentenceFirst = new double[64];
+    protected double[] sentenceSecond = new double[64];
+
+    /** Create a scorer for model using the default kernel and batches of up to
+     *  4096 tokens */
+    public BatchScorer(BigramModel model) {
+	this(model, kernel(), 4096);
+    }
+
+    /** Create a scorer for model using kernel and batches of up to batchSize
+     *  tokens (longer sentences get a batch of their own) */
+    public BatchScorer(BigramModel model, InterpolationKernel kernel, int batchSize) {
+	if (model instanceof NgramModel)
+	    throw new IllegalArgumentException("An NgramModel has more than two components; score it with sentenceTokenProbs");
+	this.model = model;
+	this.kernel = kernel;
+	first = new double[batchSize];
+	second = new double[batchSize];
+    }
+
+    /** Return the sum of the log probs of sentences, each predicting end-of-sentence
+     *  if includeEnd is true (as sentenceLogProb does) or not (as sentenceLogProb2) */
+    public double totalLogProb(List<List<String>> sentences, boolean includeEnd) {
+	double weight1;
+	double weight2;
+	if (model instanceof BidirectionalBigramModel) {
+	    weight1 = ((BidirectionalBigramModel) model).getForwardLambda();
+	    weight2 = ((BidirectionalBigramModel) model).getBackwardLambda();
+	}
+	else {
+	    weight1 = model.lambda1;
+	    weight2 = model.lambda2;
+	}
+	double totalLogProb = 0;
+	int n = 0;
+	for (List<String> sentence : sentences) {
+	    int size = sentence.size() + 1;
+	    if (n + size > first.length) {
+		totalLogProb += kernel.interpolatedLogSum(first, second, n, weight1, weight2);
+		n = 0;
+		if (size > first.length) {
+		    first = new double[size];
+		    second = new double[size];
+		}
+	    }
+	    gather(sentence, n);
+	    n += includeEnd ? size : size - 1;
+	}
+	return totalLogProb + kernel.interpolatedLogSum(first, second, n, weight1, weight2);
+    }
+
+    /** Return the perplexity of the model on sentences as test (includeEnd)
+     *  or test2 (not includeEnd) computes it */
+    public double perplexity(List<List<String>> sentences, boolean includeEnd) {
+	double numTokens = BigramModel.wordCount(sentences) + (includeEnd ? sentences.size() : 0);
+	return Math.exp(-totalLogProb(sentences, includeEnd) / numTokens);
+    }
+
+    /** Store the component probabilities of each token of sentence and then
+     *  end-of-sentence, in original token order, from index offset of the batch */
+    protected void gather(List<String> sentence, int offset) {
+	if (model instanceof BidirectionalBigramModel) {
+	    int size = sentence.size() + 1;
+	    if (sentenceFirst.length < size) {
+		sentenceFirst = new double[2 * size];
+		sentenceSecond = new double[2 * size];
+	    }
+	    ((BidirectionalBigramModel) model).directionalTokenProbs(sentence, sentenceFirst, sentenceSecond);
+	    System.arraycopy(sentenceFirst, 0, first, offset, size);
+	    System.arraycopy(sentenceSecond, 0, second, offset, size);
+	}
+	else if (model instanceof BackwardBigramModel) {
+	    // Each token is predicted from the one after it, the last from </S>
+	    int i = offset + sentence.size();
+	    int prevId = Vocabulary.START;
+	    ListIterator<String> tokens = sentence.listIterator(sentence.size());
+	    while (tokens.hasPrevious()) {
+		int id = model.scoringId(tokens.previous());
+		first[--i] = model.unigramProb(id);
+		second[i] = model.bigramProb(prevId, id);
+		prevId = id;
+	    }
+	    first[offset + sentence.size()] = model.unigramProb(Vocabulary.END);
+	    second[offset + sentence.size()] = model.bigramProb(prevId, Vocabulary.END);
+	}
+	else {
+	    int i = offset;
+	    int prevId = Vocabulary.START;
+	    for (String token : sentence) {
+		int id = model.scoringId(token);
+		first[i] = model.unigramProb(id);
+		second[i++] = model.bigramProb(prevId, id);
+		prevId = id;
+	    }
+	    first[i] = model.unigramProb(Vocabulary.END);
+	    second[i] = model.bigramProb(prevId, Vocabulary.END);
+	}
+    }
+}
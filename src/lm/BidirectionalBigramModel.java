@@ -2,18 +2,26 @@ package lm;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
 /** 
  * @author TSM
  * A simple bidirectional bigram language model that linearly interpolates
- * predictions from a standard forward and backward bigram model.
+ * predictions from a standard forward and backward bigram model. The
+ * forward and backward models may also be N-gram models (see NgramModel).
  */
 
 public class BidirectionalBigramModel extends BigramModel
 {
 	private BigramModel forwardModel;
-	private BackwardBigramModel backwardModel;
+	private BigramModel backwardModel;
+	
+	// Per-thread token probability buffers for scoring single sentences.
+	private final ThreadLocal<double[]> forwardBuffer  = new ThreadLocal<double[]>();
+	private final ThreadLocal<double[]> backwardBuffer = new ThreadLocal<double[]>();
 	
 	// Default interpolation weight for forward model.
 	private double forwardLambda = 0.5;
@@ -36,6 +44,104 @@ public class BidirectionalBigramModel extends BigramModel
 		this.backwardLambda = backwardLambda;	
 	}
 	
+	// Combine forward and backward models, e.g. a BigramModel and a
+	// BackwardBigramModel or an NgramModel and a BackwardNgramModel.
+	public BidirectionalBigramModel(BigramModel forwardModel, BigramModel backwardModel,
+									double forwardLambda, double backwardLambda)
+	{
+		this.forwardModel   = forwardModel;
+		this.backwardModel  = backwardModel;
+		this.forwardLambda  = forwardLambda;
+		this.backwardLambda = backwardLambda;
+	}
+	
+	public BigramModel getForwardModel()
+	{
+		return forwardModel;
+	}
+	
+	public BigramModel getBackwardModel()
+	{
+		return backwardModel;
+	}
+	
+	public double getForwardLambda()
+	{
+		return forwardLambda;
+	}
+	
+	public double getBackwardLambda()
+	{
+		return backwardLambda;
+	}
+	
+	public void setForwardLambda(double forwardLambda)
+	{
+		this.forwardLambda = forwardLambda;
+		modCount++;
+	}
+	
+	public void setBackwardLambda(double backwardLambda)
+	{
+		this.backwardLambda = backwardLambda;
+		modCount++;
+	}
+	
+	// Also enable the metrics of the forward and backward models, which
+	// count the tokens they score.
+	@Override
+	public synchronized ModelMetrics enableMetrics()
+	{
+		forwardModel.enableMetrics();
+		backwardModel.enableMetrics();
+		return super.enableMetrics();
+	}
+	
+	@Override
+	public synchronized void disableMetrics()
+	{
+		forwardModel.disableMetrics();
+		backwardModel.disableMetrics();
+		super.disableMetrics();
+	}
+	
+	// Each model spills its own counts, in half the budget.
+	@Override
+	public void spillCounts(File dir, long budgetBytes) throws IOException
+	{
+		forwardModel.spillCounts(dir, budgetBytes / 2);
+		backwardModel.spillCounts(dir, budgetBytes / 2);
+	}
+	
+	@Override
+	public long tableSize()
+	{
+		return forwardModel.tableSize() + backwardModel.tableSize();
+	}
+	
+	@Override
+	public long estimatedBytes()
+	{
+		return forwardModel.estimatedBytes() + backwardModel.estimatedBytes();
+	}
+	
+	// The wrapper's own tables are empty, and successors of a token in one
+	// direction are not its successors in the other, so top-k prediction
+	// is left to the forward or backward model.
+	@Override
+	public SuccessorIndex successorIndex()
+	{
+		throw new UnsupportedOperationException("Top-k prediction needs a single direction: " +
+												"use getForwardModel().topK or getBackwardModel().topK");
+	}
+	
+	// Changes when either direction's model or the interpolation weights change.
+	@Override
+	public long version()
+	{
+		return super.version() + forwardModel.version() + backwardModel.version();
+	}
+	
 	@Override
 	public void train(List<List<String>> sentences)
 	{
@@ -43,19 +149,99 @@ public class BidirectionalBigramModel extends BigramModel
 		backwardModel.train(sentences);
 	}
 	
+	@Override
+	public void train(Iterator<List<String>> sentences)
+	{
+		trainSentences(sentences);
+		forwardModel.calculateProbs();
+		backwardModel.calculateProbs();
+	}
+	
+	// Count the sentences in both models, e.g. to add sentences to a
+	// trained model before calculateProbs.
+	@Override
+	public void trainSentences(List<List<String>> sentences)
+	{
+		forwardModel.trainSentences(sentences);
+		backwardModel.trainSentences(sentences);
+	}
+	
+	@Override
+	public void trainSentences(Iterator<List<String>> sentences)
+	{
+		// Train both models in one pass over the sentences.
+		while (sentences.hasNext())
+		{
+			List<String> sentence = sentences.next();
+			forwardModel.trainSentence(sentence);
+			// The backward model trains on the reversed sentence.
+			List<String> reversed = new ArrayList<String>(sentence);
+			Collections.reverse(reversed);
+			backwardModel.trainSentence(reversed);
+		}
+	}
+	
+	@Override
+	public void trainParallel(List<List<String>> sentences, int numThreads)
+	{
+		forwardModel.trainParallel(sentences, numThreads);
+		backwardModel.trainParallel(sentences, numThreads);
+	}
+	
+	@Override
+	public void trainSentencesParallel(List<List<String>> sentences, int numThreads)
+	{
+		forwardModel.trainSentencesParallel(sentences, numThreads);
+		backwardModel.trainSentencesParallel(sentences, numThreads);
+	}
+	
+	@Override
+	public void train(Corpus corpus)
+	{
+		forwardModel.train(corpus);
+		backwardModel.train(corpus);
+	}
+	
+	// Count the sentences of a corpus in both models, e.g. to train on
+	// several slices of a corpus before calculateProbs.
+	@Override
+	public void trainSentences(Corpus corpus)
+	{
+		forwardModel.trainSentences(corpus);
+		backwardModel.trainSentences(corpus);
+	}
+	
+	@Override
+	public void calculateProbs()
+	{
+		forwardModel.calculateProbs();
+		backwardModel.calculateProbs();
+		super.calculateProbs();
+	}
+	
 	@Override
 	public void test(List<List<String>> sentences)
 	{
-		Double totalLogProb   = 0.0;
-		Double totalNumTokens = 0.0;
+		double totalLogProb   = 0.0;
+		double totalNumTokens = 0.0;
+		if (evalThreads > 0)
+		{
+			// Score sentences in parallel, including End-of-Sentence.
+			totalLogProb   = ParallelScorer.sumLogProbs(sentences, this::sentenceLogProb, evalThreads);
+			totalNumTokens = wordCount(sentences) + sentences.size();
+			sentences = Collections.emptyList();
+		}
+		// Token probabilities of a sentence, reused across sentences.
+		double[] forwardProbs  = new double[64];
+		double[] backwardProbs = new double[64];
 		for (List<String> sentence : sentences) 
 		{
-			// For easy manipulation.
-		    Double[] forwardProbs  = forwardModel.sentenceTokenProbs(sentence);
-		    Double[] backwardProbs = backwardModel.sentenceTokenProbs(sentence);
-		    
-		    assert(forwardProbs.length == backwardProbs.length);
-		    assert(forwardProbs.length == sentence.size() + 1);
+			if (sentence.size() + 1 > forwardProbs.length)
+			{
+				forwardProbs  = new double[2 * (sentence.size() + 1)];
+				backwardProbs = new double[forwardProbs.length];
+			}
+		    directionalTokenProbs(sentence, forwardProbs, backwardProbs);
 		    
 		    // Include End-of-Sentence.
 		    int numTokens = sentence.size() + 1;
@@ -73,15 +259,25 @@ public class BidirectionalBigramModel extends BigramModel
 	@Override
 	public void test2(List<List<String>> sentences)
 	{
-		Double totalLogProb   = 0.0;
-		Double totalNumTokens = 0.0;
+		double totalLogProb   = 0.0;
+		double totalNumTokens = 0.0;
+		if (evalThreads > 0)
+		{
+			// Score sentences in parallel, excluding End-of-Sentence.
+			totalLogProb   = ParallelScorer.sumLogProbs(sentences, this::sentenceLogProb2, evalThreads);
+			totalNumTokens = wordCount(sentences);
+			sentences = Collections.emptyList();
+		}
+		double[] forwardProbs  = new double[64];
+		double[] backwardProbs = new double[64];
 		for (List<String> sentence : sentences) 
 		{
-		    Double[] forwardProbs  = forwardModel.sentenceTokenProbs(sentence);
-		    Double[] backwardProbs = backwardModel.sentenceTokenProbs(sentence);
-		    
-		    assert(forwardProbs.length == backwardProbs.length);
-		    assert(forwardProbs.length == sentence.size() + 1);
+			if (sentence.size() + 1 > forwardProbs.length)
+			{
+				forwardProbs  = new double[2 * (sentence.size() + 1)];
+				backwardProbs = new double[forwardProbs.length];
+			}
+		    directionalTokenProbs(sentence, forwardProbs, backwardProbs);
 		    
 		    // Don't include End-of-Sentence.
 		    int numTokens = sentence.size();
@@ -96,7 +292,166 @@ public class BidirectionalBigramModel extends BigramModel
 		System.out.println("Word Perplexity = " + perplexity );
 	}
 	
-	private double interpolate(double forwardProbability, double backwardProbability)
+	@Override
+	public void test(Corpus corpus)
+	{
+		if (evalThreads > 0)
+		{
+			test((List<List<String>>) corpus);
+			return;
+		}
+		System.out.println("Word Perplexity = " + corpusPerplexity(corpus, true));
+	}
+	
+	@Override
+	public void test2(Corpus corpus)
+	{
+		if (evalThreads > 0)
+		{
+			test2((List<List<String>>) corpus);
+			return;
+		}
+		System.out.println("Word Perplexity = " + corpusPerplexity(corpus, false));
+	}
+	
+	// Perplexity of the sentences of a corpus, summed token by token like test
+	// and test2, including End-of-Sentence if includeEnd.
+	private double corpusPerplexity(Corpus corpus, boolean includeEnd)
+	{
+		double totalLogProb   = 0.0;
+		double totalNumTokens = 0.0;
+		double[] forwardProbs  = new double[64];
+		double[] backwardProbs = new double[64];
+		for (int s = 0; s < corpus.size(); s++)
+		{
+			int length = corpus.end(s) - corpus.start(s);
+			if (length + 1 > forwardProbs.length)
+			{
+				forwardProbs  = new double[2 * (length + 1)];
+				backwardProbs = new double[forwardProbs.length];
+			}
+			directionalTokenProbs(corpus, s, forwardProbs, backwardProbs);
+			int numTokens = includeEnd ? length + 1 : length;
+			totalNumTokens += numTokens;
+			for (int i = 0; i < numTokens; i++)
+			{
+				totalLogProb += Math.log(interpolate(forwardProbs[i], backwardProbs[i]));
+			}
+		}
+		return Math.exp(-totalLogProb / totalNumTokens);
+	}
+	
+	@Override
+	public double sentenceLogProb(Corpus corpus, int s)
+	{
+		return corpusLogProb(corpus, s, true);
+	}
+	
+	@Override
+	public double sentenceLogProb2(Corpus corpus, int s)
+	{
+		return corpusLogProb(corpus, s, false);
+	}
+	
+	@Override
+	protected double corpusLogProb(Corpus corpus, int s, boolean includeEnd)
+	{
+		int length = corpus.end(s) - corpus.start(s);
+		double[] forwardProbs  = tokenProbs(forwardBuffer, length + 1);
+		double[] backwardProbs = tokenProbs(backwardBuffer, length + 1);
+		directionalTokenProbs(corpus, s, forwardProbs, backwardProbs);
+		int numTokens = includeEnd ? length + 1 : length;
+		double logProb = 0;
+		for (int i = 0; i < numTokens; i++)
+		{
+			logProb += Math.log(interpolate(forwardProbs[i], backwardProbs[i]));
+		}
+		return logProb;
+	}
+	
+	@Override
+	public int sentenceTokenProbs(Corpus corpus, int s, double[] tokenProbs, int offset)
+	{
+		int length = corpus.end(s) - corpus.start(s);
+		double[] forwardProbs  = tokenProbs(forwardBuffer, length + 1);
+		double[] backwardProbs = tokenProbs(backwardBuffer, length + 1);
+		directionalTokenProbs(corpus, s, forwardProbs, backwardProbs);
+		for (int i = 0; i <= length; i++)
+		{
+			tokenProbs[offset + i] = interpolate(forwardProbs[i], backwardProbs[i]);
+		}
+		return length + 1;
+	}
+	
+	@Override
+	public int sentenceTokenProbs(List<String> sentence, double[] tokenProbs, int offset)
+	{
+		int length = sentence.size();
+		double[] forwardProbs  = tokenProbs(forwardBuffer, length + 1);
+		double[] backwardProbs = tokenProbs(backwardBuffer, length + 1);
+		directionalTokenProbs(sentence, forwardProbs, backwardProbs);
+		for (int i = 0; i <= length; i++)
+		{
+			tokenProbs[offset + i] = interpolate(forwardProbs[i], backwardProbs[i]);
+		}
+		return length + 1;
+	}
+	
+	@Override
+	public double sentenceLogProb(List<String> sentence)
+	{
+		return interpolatedLogProb(sentence, sentence.size() + 1);
+	}
+	
+	@Override
+	public double sentenceLogProb2(List<String> sentence)
+	{
+		return interpolatedLogProb(sentence, sentence.size());
+	}
+	
+	// Sum of log interpolated probabilities of the first numTokens tokens
+	// of the sentence (numTokens = sentence.size() + 1 includes End-of-Sentence).
+	private double interpolatedLogProb(List<String> sentence, int numTokens)
+	{
+		double[] forwardProbs  = tokenProbs(forwardBuffer, sentence.size() + 1);
+		double[] backwardProbs = tokenProbs(backwardBuffer, sentence.size() + 1);
+		directionalTokenProbs(sentence, forwardProbs, backwardProbs);
+		double logProb = 0;
+		for(int i = 0; i < numTokens; i++)
+		{
+			logProb += Math.log(interpolate(forwardProbs[i], backwardProbs[i]));
+		}
+		return logProb;
+	}
+	
+	// Store the forward and backward probabilities of each token of the sentence
+	// and of End-of-Sentence, in original token order.
+	protected void directionalTokenProbs(List<String> sentence, double[] forwardProbs, double[] backwardProbs)
+	{
+		forwardModel.sentenceTokenProbs(sentence, forwardProbs, 0);
+		backwardModel.sentenceTokenProbs(sentence, backwardProbs, 0);
+	}
+	
+	// Like directionalTokenProbs for sentence s of a corpus, read by token ID.
+	protected void directionalTokenProbs(Corpus corpus, int s, double[] forwardProbs, double[] backwardProbs)
+	{
+		forwardModel.sentenceTokenProbs(corpus, s, forwardProbs, 0);
+		backwardModel.sentenceTokenProbs(corpus, s, backwardProbs, 0);
+	}
+	
+	// This thread's buffer from buffers, grown to hold at least size probabilities.
+	private static double[] tokenProbs(ThreadLocal<double[]> buffers, int size)
+	{
+		double[] buffer = buffers.get();
+		if (buffer == null || buffer.length < size)
+		{
+			buffer = new double[Math.max(64, 2 * size)];
+			buffers.set(buffer);
+		}
+		return buffer;
+	}
+	
+	protected double interpolate(double forwardProbability, double backwardProbability)
 	{
 		return (forwardProbability * forwardLambda) + 
 			   (backwardProbability * backwardLambda);
@@ -113,21 +468,27 @@ public class BidirectionalBigramModel extends BigramModel
 	    files[i] = new File(args[i]);
 	// Last arg is the TestFrac
 	double testFraction = Double.valueOf(args[args.length -1]);
+	if (Boolean.getBoolean("lm.stream")) {
+	    trainAndTestStreaming(new BidirectionalBigramModel(), files, testFraction);
+	    return;
+	}
 	// Get list of sentences from the LDC POS tagged input files
-	List<List<String>> sentences = 	POSTaggedFile.convertToTokenLists(files);
+	Corpus sentences = Corpus.load(files);
 	int numSentences = sentences.size();
 	// Compute number of test sentences based on TestFrac
 	int numTest = (int)Math.round(numSentences * testFraction);
 	// Take test sentences from end of data
-	List<List<String>> testSentences = sentences.subList(numSentences - numTest, numSentences);
+	Corpus testSentences = sentences.subList(numSentences - numTest, numSentences);
 	// Take training sentences from start of data
-	List<List<String>> trainSentences = sentences.subList(0, numSentences - numTest);
+	Corpus trainSentences = sentences.subList(0, numSentences - numTest);
 	System.out.println("# Train Sentences = " + trainSentences.size() + 
 			   " (# words = " + wordCount(trainSentences) + 
 			   ") \n# Test Sentences = " + testSentences.size() +
 			   " (# words = " + wordCount(testSentences) + ")");
 	// Create a bigram model and train it.
 	BigramModel model = new BidirectionalBigramModel();
+	ModelMetrics.install(model);
+	CorpusCache.reportStartup(System.out);
 	System.out.println("Training...");
 	model.train(trainSentences);
 	// Test on training data using test and test2
@@ -0,0 +1,202 @@
+package lm;
+
+import java.util.*;
+
+/**
+ * Unigram and bigram counts that answer for both a forward bigram model,
+ * P(B | A), and a backward one, P(A | B), from a single count table.
+ *
+ * A backward model is a forward model trained on reversed sentences, so
+ * its bigram counts are the forward counts transposed, with <S> and </S>
+ * swapped: the backward bigram "X Y" is the forward bigram "Y' X'" where
+ * ' swaps <S> and </S>. The one exception is the first-occurrence <UNK>
+ * rule. A token first seen in some sentence is <UNK> at its first
+ * position reading forward but at its last position reading backward.
+ * When a new token occurs more than once in a sentence the two bigram
+ * sequences differ, and backwardDelta holds the difference. Unigram
+ * counts are the same in both directions.
+ *
+ * Probabilities are computed from the counts when asked for, with the
+ * same divisions a trained BigramModel or BackwardBigramModel does, so
+ * they are bit-identical to those models.
+ *
+ * @author TSM
+ */
+
+public class BidirectionalCounts {
+
+    /** Vocabulary of tokens seen in training */
+    public Vocabulary vocab = new Vocabulary();
+
+    /** Unigram counts indexed by token ID, the same in both directions */
+    public double[] unigram = new double[1024];
+
+    /** Forward bigram counts keyed by BigramTable.key */
+    public BigramTable forward = new BigramTable();
+
+    /** Correction to the transposed forward counts for the backward bigram "X Y",
+     *  keyed by BigramTable.key(X, Y) */
+    public BigramTable backwardDelta = new BigramTable();
+
+    /** Total count of tokens in training data */
+    public double tokenCount = 0;
+
+    /** Token IDs of the sentence being trained, reading forward and reading
+     *  backward (they differ only in where new tokens are <UNK>) */
+    protected int[] forwardIds = new int[64];
+    protected int[] backwardIds = new int[64];
+
+    /** Last position in the sentence being trained of each token new in it */
+    protected int[] lastPosition = new int[64];
+
+    /** Accumulate forward and backward counts for this sentence */
+    public void trainSentence (List<String> sentence) {
+	int n = sentence.size();
+	if (n > forwardIds.length) {
+	    forwardIds = new int[2 * n];
+	    backwardIds = new int[2 * n];
+	}
+	// Tokens with an ID of at least firstNewId are first seen in this sentence
+	int firstNewId = vocab.size();
+	int i = 0;
+	for (String token : sentence) {
+	    int id = vocab.id(token);
+	    if (id < 0) {
+		// First occurrence is <UNK> reading forward
+		id = vocab.add(token);
+		if (id >= unigram.length)
+		    unigram = Arrays.copyOf(unigram, unigram.length * 2);
+		forwardIds[i] = Vocabulary.UNK;
+	    }
+	    else
+		forwardIds[i] = id;
+	    backwardIds[i] = id;
+	    if (id >= firstNewId) {
+		if (id - firstNewId >= lastPosition.length)
+		    lastPosition = Arrays.copyOf(lastPosition, 2 * (id - firstNewId + 1));
+		lastPosition[id - firstNewId] = i;
+	    }
+	    i++;
+	}
+	// Last occurrence of a new token is <UNK> reading backward
+	boolean sameIds = true;
+	for (int id = firstNewId; id < vocab.size(); id++) {
+	    int last = lastPosition[id - firstNewId];
+	    backwardIds[last] = Vocabulary.UNK;
+	    if (forwardIds[last] != Vocabulary.UNK)
+		sameIds = false;
+	}
+	// Unigram and forward bigram counts
+	int prevId = Vocabulary.START;
+	unigram[prevId]++;
+	for (i = 0; i < n; i++) {
+	    unigram[forwardIds[i]]++;
+	    forward.increment(BigramTable.key(prevId, forwardIds[i]));
+	    prevId = forwardIds[i];
+	}
+	unigram[Vocabulary.END]++;
+	forward.increment(BigramTable.key(prevId, Vocabulary.END));
+	tokenCount += n + 2;
+	if (!sameIds) {
+	    // Replace the transposed forward bigrams with the backward ones
+	    addBackwardBigrams(forwardIds, n, -1);
+	    addBackwardBigrams(backwardIds, n, 1);
+	}
+    }
+
+    /** Add sign times each backward bigram of the sentence with token IDs ids[0..n-1]
+     *  to backwardDelta */
+    protected void addBackwardBigrams (int[] ids, int n, double sign) {
+	int prevId = Vocabulary.START;
+	for (int i = n - 1; i >= 0; i--) {
+	    backwardDelta.add(BigramTable.key(prevId, ids[i]), sign);
+	    prevId = ids[i];
+	}
+	backwardDelta.add(BigramTable.key(prevId, Vocabulary.END), sign);
+    }
+
+    /** Return the ID under which token is scored: its own ID if it has a
+     *  nonzero count, otherwise the ID of <UNK> */
+    public int scoringId (String token) {
+	int id = vocab.id(token);
+	if (id < 0 || unigram[id] == 0)
+	    return Vocabulary.UNK;
+	return id;
+    }
+
+    /** Return the unigram probability of a token */
+    public double unigramProb (int id) {
+	return unigram[id] / tokenCount;
+    }
+
+    /** Return the count of the forward bigram "prevId id" */
+    public double forwardCount (int prevId, int id) {
+	return forward.get(BigramTable.key(prevId, id));
+    }
+
+    /** Return the count of the backward bigram "prevId id", i.e. of id
+     *  preceding prevId reading forward */
+    public double backwardCount (int prevId, int id) {
+	return forward.get(BigramTable.key(swapEnds(id), swapEnds(prevId)))
+	    + backwardDelta.get(BigramTable.key(prevId, id));
+    }
+
+    /** Return P(id | prevId) reading forward */
+    public double forwardProb (int prevId, int id) {
+	double count = forwardCount(prevId, id);
+	return count == 0 ? 0 : count / unigram[prevId];
+    }
+
+    /** Return P(id | prevId) reading backward, where prevId follows id in the sentence */
+    public double backwardProb (int prevId, int id) {
+	double count = backwardCount(prevId, id);
+	return count == 0 ? 0 : count / unigram[prevId];
+    }
+
+    /** Exchange the IDs of <S> and </S>, leaving other IDs alone */
+    public static int swapEnds (int id) {
+	if (id == Vocabulary.START)
+	    return Vocabulary.END;
+	if (id == Vocabulary.END)
+	    return Vocabulary.START;
+	return id;
+    }
+
+    /** Return a trained forward model with these counts */
+    public BigramModel toForwardModel () {
+	return fillModel(new BigramModel(), false);
+    }
+
+    /** Return a trained backward model with these counts */
+    public BackwardBigramModel toBackwardModel () {
+	return fillModel(new BackwardBigramModel(), true);
+    }
+
+    /** Set the vocabulary, unigram counts and forward or backward bigram counts of model */
+    protected <M extends BigramModel> M fillModel (M model, boolean backward) {
+	model.vocab = vocab;
+	model.tokenCount = tokenCount;
+	model.unigram = Arrays.copyOf(unigram, unigram.length);
+	BigramTable table = new BigramTable(forward.size());
+	for (int slot = 0; slot < forward.capacity(); slot++) {
+	    if (!forward.isUsed(slot))
+		continue;
+	    long key = forward.keyAt(slot);
+	    if (backward) {
+		// Forward "A B" is backward "B' A'"
+		key = BigramTable.key(swapEnds(BigramTable.id2(key)), swapEnds(BigramTable.id1(key)));
+	    }
+	    table.put(key, forward.valueAt(slot));
+	}
+	if (backward) {
+	    // Correct the transposed counts where new tokens were <UNK> at different places
+	    for (int slot = 0; slot < backwardDelta.capacity(); slot++) {
+		if (backwardDelta.isUsed(slot) && backwardDelta.valueAt(slot) != 0)
+		    table.add(backwardDelta.keyAt(slot), backwardDelta.valueAt(slot));
+	    }
+	}
+	model.bigramTable = table;
+	model.calculateProbs();
+	return model;
+    }
+}
@@ -0,0 +1,44 @@
+package lm;
+
+import java.util.*;
+
+/**
+ * Unigram and bigram counts accumulated over some set of sentences, indexed
+ * by the token IDs of a shared Vocabulary. Counts from separate sets of
+ * sentences can be merged with add, which lets shards of a corpus be counted
+ * independently and combined before computing probabilities.
+ *
+ * @author TSM
+ */
+
+public class BigramCounts {
+
+    /** Unigram counts indexed by token ID */
+    public double[] unigram = null;
+
+    /** Bigram counts keyed by BigramTable.key */
+    public BigramTable bigramTable = null;
+
+    /** Total count of tokens */
+    public double tokenCount = 0;
+
+    /** Create empty counts for a vocabulary of vocabSize tokens */
+    public BigramCounts(int vocabSize) {
+	unigram = new double[Math.max(vocabSize, 1)];
+	bigramTable = new BigramTable();
+    }
+
+    /** Add the counts in other to these counts */
+    public void add(BigramCounts other) {
+	if (other.unigram.length > unigram.length)
+	    unigram = Arrays.copyOf(unigram, other.unigram.length);
+	for (int id = 0; id < other.unigram.length; id++)
+	    unigram[id] += other.unigram[id];
+	BigramTable otherTable = other.bigramTable;
+	for (int slot = 0; slot < otherTable.capacity(); slot++) {
+	    if (otherTable.isUsed(slot))
+		bigramTable.add(otherTable.keyAt(slot), otherTable.valueAt(slot));
+	}
+	tokenCount += other.tokenCount;
+    }
+}
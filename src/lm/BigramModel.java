@@ -2,6 +2,8 @@ package lm;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
 
 /** 
  * @author Ray Mooney
@@ -11,12 +13,18 @@ import java.util.*;
 
 public class BigramModel {
 
-    /** Unigram model that maps a token to its unigram probability */
-    public Map<String, DoubleValue> unigramMap = null; 
+    /** Vocabulary that maps each token seen in training to a dense int ID */
+    public Vocabulary vocab = null;
 
-    /**  Bigram model that maps a bigram as a string "A\nB" to the
-     *   P(B | A) */
-    public Map<String, DoubleValue> bigramMap = null;
+    /** Unigram counts indexed by token ID. A token with a zero count has
+     *  been seen but not counted (see trainSentence). Probabilities are
+     *  derived from the counts when needed (see unigramProb) so the model
+     *  can keep training after it has been used for scoring */
+    public double[] unigram = null;
+
+    /** Bigram counts that map a bigram of token IDs "A B", packed with
+     *  BigramTable.key, to its count (see bigramProb for P(B | A)) */
+    public BigramTable bigramTable = null;
 
     /** Total count of tokens in training data */
     public double tokenCount = 0;
@@ -27,15 +35,40 @@ public class BigramModel {
     /** Interpolation weight for bigram model */
     public double lambda2 = 0.9;
 
-    /** Initialize model with empty hashmaps with initial
+    /** Number of threads test and test2 score sentences on (see ParallelScorer),
+     *  or 0 to score them one by one on the calling thread. Defaults to the
+     *  lm.evalThreads system property */
+    public int evalThreads = Integer.getInteger("lm.evalThreads", 0);
+
+    /** Training and scoring metrics, or null when they are not enabled
+     *  (see enableMetrics) */
+    protected ModelMetrics metrics = null;
+
+    /** Spills bigram counts to disk when training in a memory budget, or null
+     *  to keep them all in memory (see spillCounts) */
+    protected CountSpiller spiller = null;
+
+    /** Number of changes to the model's counts or probabilities (see version) */
+    protected long modCount = 0;
+
+    /** Interpolation weights when version was last called, and the number
+     *  of times they had changed by then */
+    private double versionLambda1 = Double.NaN;
+    private double versionLambda2 = Double.NaN;
+    private long lambdaChanges = 0;
+
+    /** Index of likely next tokens (see successorIndex), and the version
+     *  of the model it was built for */
+    private SuccessorIndex successorIndex = null;
+    private long successorIndexVersion = -1;
+
+    /** Initialize model with an empty vocabulary and bigram table with initial
      *  unigram entries for setence start (<S>), sentence end (</S>)
      *  and unknown tokens */
     public BigramModel() {
-	unigramMap = new HashMap<String, DoubleValue>();
-	bigramMap = new HashMap<String, DoubleValue>();
-	unigramMap.put("<S>", new DoubleValue());
-	unigramMap.put("</S>", new DoubleValue());
-	unigramMap.put("<UNK>", new DoubleValue());
+	vocab = new Vocabulary();
+	unigram = new double[1024];
+	bigramTable = new BigramTable();
     }
 
     /** Train the model on a List of sentences represented as
@@ -49,266 +82,738 @@ public class BigramModel {
 
     /** Accumulate unigram and bigram counts for these sentences */
     public void trainSentences (List<List<String>> sentences) {
+	countSentences(sentences);
+    }
+
+    /** Count each of sentences with trainSentence, as trainSentences does for
+     *  a model that counts sentences as given */
+    protected void countSentences (List<List<String>> sentences) {
+	long start = metrics == null ? 0 : System.nanoTime();
 	for (List<String> sentence : sentences) {
 	    trainSentence(sentence);
 	}
+	if (metrics != null)
+	    metrics.trained(sentences.size(), wordCount(sentences), System.nanoTime() - start);
+    }
+
+    /** Train the model on sentences read one at a time from an Iterator, so
+     *  the training corpus never has to be held in memory */
+    public void train (Iterator<List<String>> sentences) {
+	trainSentences(sentences);
+	calculateProbs();
+    }
+
+    /** Accumulate unigram and bigram counts for sentences read one at a time
+     *  from an Iterator */
+    public void trainSentences (Iterator<List<String>> sentences) {
+	countSentences(sentences);
+    }
+
+    /** Count each of sentences with trainSentence, as trainSentences does for
+     *  a model that counts sentences as given */
+    protected void countSentences (Iterator<List<String>> sentences) {
+	long start = metrics == null ? 0 : System.nanoTime();
+	long numSentences = 0;
+	long numTokens = 0;
+	while (sentences.hasNext()) {
+	    List<String> sentence = sentences.next();
+	    trainSentence(sentence);
+	    numSentences++;
+	    numTokens += sentence.size();
+	}
+	if (metrics != null)
+	    metrics.trained(numSentences, numTokens, System.nanoTime() - start);
     }
 
     /** Accumulate unigram and bigram counts for this sentence */
     public void trainSentence (List<String> sentence) {
+	modCount++;
+	if (spiller != null)
+	    spiller.makeRoom(this);
 	// First count an initial start sentence token
-	String prevToken = "<S>";
-	DoubleValue unigramValue = unigramMap.get("<S>");
-	unigramValue.increment();
+	int prevId = Vocabulary.START;
+	unigram[prevId]++;
 	tokenCount++;
 	// For each token in sentence, accumulate a unigram and bigram count
 	for (String token : sentence) {
-	    unigramValue = unigramMap.get(token);
+	    int id = vocab.id(token);
 	    // If this is the first time token is seen then count it
 	    // as an unkown token (<UNK>) to handle out-of-vocabulary 
 	    // items in testing
-	    if (unigramValue == null) {
-		// Store token in unigram map with 0 count to indicate that
+	    if (id < 0) {
+		// Store token in vocabulary with 0 count to indicate that
 		// token has been seen but not counted
-		unigramMap.put(token, new DoubleValue());
-		token = "<UNK>";
-		unigramValue = unigramMap.get(token);
+		addToVocab(token);
+		id = Vocabulary.UNK;
 	    }
-	    unigramValue.increment();    // Count unigram
-	    tokenCount++;               // Count token
-	    // Make bigram string 
-	    String bigram = bigram(prevToken, token);
-	    DoubleValue bigramValue = bigramMap.get(bigram);
-	    if (bigramValue == null) {
-		// If previously unseen bigram, then
-		// initialize it with a value
-		bigramValue = new DoubleValue();
-		bigramMap.put(bigram, bigramValue);
-	    }
-	    // Count bigram
-	    bigramValue.increment();
-	    prevToken = token;
+	    unigram[id]++;            // Count unigram
+	    tokenCount++;             // Count token
+	    // Count bigram, initializing it if previously unseen
+	    bigramTable.increment(BigramTable.key(prevId, id));
+	    prevId = id;
 	}
 	// Account for end of sentence unigram
-	unigramValue = unigramMap.get("</S>");
-	unigramValue.increment();
+	unigram[Vocabulary.END]++;
 	tokenCount++;
 	// Account for end of sentence bigram
-	String bigram = bigram(prevToken, "</S>");
-	DoubleValue bigramValue = bigramMap.get(bigram);
-	if (bigramValue == null) {
-	    bigramValue = new DoubleValue();
-	    bigramMap.put(bigram, bigramValue);
+	bigramTable.increment(BigramTable.key(prevId, Vocabulary.END));
+    }
+
+    /** Train the model on a Corpus. Gives exactly the same model as train
+     *  on the corpus's sentences as Lists of Strings, but looks up each
+     *  distinct token in the vocabulary only once */
+    public void train (Corpus corpus) {
+	trainSentences(corpus);
+	calculateProbs();
+    }
+
+    /** Accumulate unigram and bigram counts for the sentences of a Corpus */
+    public void trainSentences (Corpus corpus) {
+	// Model ID of each corpus token ID, or NOT_SEEN until its first occurrence
+	int[] modelIds = new int[corpus.getVocabulary().size()];
+	Arrays.fill(modelIds, NOT_SEEN);
+	long start = metrics == null ? 0 : System.nanoTime();
+	for (int s = 0; s < corpus.size(); s++)
+	    trainSentence(corpus, s, modelIds);
+	if (metrics != null)
+	    metrics.trained(corpus.size(), corpus.wordCount(), System.nanoTime() - start);
+    }
+
+    /** Marks a corpus token whose model ID has not been looked up yet */
+    protected static final int NOT_SEEN = -1;
+
+    /** Accumulate unigram and bigram counts for sentence s of corpus, exactly
+     *  as trainSentence does for it as a List. modelIds maps corpus token IDs
+     *  to model IDs and is filled in as tokens are first met */
+    protected void trainSentence (Corpus corpus, int s, int[] modelIds) {
+	modCount++;
+	if (spiller != null)
+	    spiller.makeRoom(this);
+	int prevId = Vocabulary.START;
+	unigram[prevId]++;
+	tokenCount++;
+	int length = corpus.end(s) - corpus.start(s);
+	for (int k = 0; k < length; k++) {
+	    int corpusId = corpus.tokenId(tokenPosition(corpus, s, k));
+	    int id = modelIds[corpusId];
+	    if (id == NOT_SEEN) {
+		String token = corpus.getVocabulary().token(corpusId);
+		id = vocab.id(token);
+		if (id < 0) {
+		    // First time token is seen: count it as <UNK> this once
+		    modelIds[corpusId] = addToVocab(token);
+		    id = Vocabulary.UNK;
+		}
+		else
+		    modelIds[corpusId] = id;
+	    }
+	    unigram[id]++;
+	    tokenCount++;
+	    bigramTable.increment(BigramTable.key(prevId, id));
+	    prevId = id;
+	}
+	unigram[Vocabulary.END]++;
+	tokenCount++;
+	bigramTable.increment(BigramTable.key(prevId, Vocabulary.END));
+    }
+
+    /** Return the index in corpus's token array of the k'th token of sentence s
+     *  in the order the model predicts tokens (first to last) */
+    protected int tokenPosition (Corpus corpus, int s, int k) {
+	return corpus.start(s) + k;
+    }
+
+    /** Train the model on a List of sentences like train, but count the
+     *  sentences on numThreads threads. Gives exactly the same model */
+    public void trainParallel (List<List<String>> sentences, int numThreads) {
+	trainSentencesParallel(sentences, numThreads);
+	calculateProbs();
+    }
+
+    /** Accumulate unigram and bigram counts for these sentences exactly as
+     *  trainSentences does, splitting them into numThreads contiguous shards
+     *  that are counted concurrently into separate BigramCounts and then
+     *  merged. Whether an occurrence of a token is counted as <UNK> depends
+     *  on whether it is the first one in the whole corpus, so a sequential
+     *  pre-pass first adds every new token to the vocabulary and records
+     *  the position of its first occurrence for the shards to check */
+    public void trainSentencesParallel (final List<List<String>> sentences, int numThreads) {
+	long startNanos = metrics == null ? 0 : System.nanoTime();
+	// Pre-pass: position (sentence << 32 | token index) of the first
+	// occurrence of each token new to the vocabulary, -1 for tokens
+	// that were already known
+	int knownSize = vocab.size();
+	long[] firstSeen = new long[1024];
+	for (int s = 0; s < sentences.size(); s++) {
+	    int i = 0;
+	    for (String token : sentences.get(s)) {
+		if (vocab.id(token) < 0) {
+		    int id = addToVocab(token) - knownSize;
+		    if (id >= firstSeen.length)
+			firstSeen = Arrays.copyOf(firstSeen, firstSeen.length * 2);
+		    firstSeen[id] = ((long) s << 32) | i;
+		}
+		i++;
+	    }
+	}
+	// Count each shard in its own task
+	final long[] firstOccurrence = firstSeen;
+	final int firstNewId = knownSize;
+	final int vocabSize = vocab.size();
+	// Fewer than one thread counts on one, so shards are never empty
+	int threads = Math.max(numThreads, 1);
+	int shardSize = (sentences.size() + threads - 1) / threads;
+	List<Callable<BigramCounts>> shards = new ArrayList<Callable<BigramCounts>>();
+	for (int start = 0; start < sentences.size(); start += shardSize) {
+	    final int from = start;
+	    final int to = Math.min(start + shardSize, sentences.size());
+	    shards.add(new Callable<BigramCounts>() {
+		    public BigramCounts call() {
+			BigramCounts counts = new BigramCounts(vocabSize);
+			for (int s = from; s < to; s++) 
+			    countSentence(sentences.get(s), s, firstOccurrence, firstNewId, counts);
+			return counts;
+		    }
+		});
+	}
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	try {
+	    // Merge shard counts into the model in shard order
+	    BigramCounts total = new BigramCounts(vocabSize);
+	    for (Future<BigramCounts> shard : pool.invokeAll(shards)) 
+		total.add(shard.get());
+	    addCounts(total);
+	    if (metrics != null)
+		metrics.trained(sentences.size(), wordCount(sentences), System.nanoTime() - startNanos);
+	}
+	catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new RuntimeException("Interrupted while training", e);
+	}
+	catch (ExecutionException e) {
+	    throw new RuntimeException("Training shard failed", e.getCause());
+	}
+	finally {
+	    pool.shutdown();
 	}
-	bigramValue.increment();
     }
 
-    /** Compute unigram and bigram probabilities from unigram and bigram counts */
+    /** Count the unigrams and bigrams of sentence number sentenceIndex into
+     *  counts. Every token must already be in the vocabulary; a token whose
+     *  ID is at least firstNewId is counted as <UNK> at the position recorded
+     *  for it in firstSeen (see trainSentencesParallel) */
+    protected void countSentence (List<String> sentence, int sentenceIndex, long[] firstSeen,
+				  int firstNewId, BigramCounts counts) {
+	double[] unigramCounts = counts.unigram;
+	int prevId = Vocabulary.START;
+	unigramCounts[prevId]++;
+	int i = 0;
+	for (String token : sentence) {
+	    int id = vocab.id(token);
+	    if (id >= firstNewId && firstSeen[id - firstNewId] == (((long) sentenceIndex << 32) | i))
+		id = Vocabulary.UNK;
+	    unigramCounts[id]++;
+	    counts.bigramTable.increment(BigramTable.key(prevId, id));
+	    prevId = id;
+	    i++;
+	}
+	unigramCounts[Vocabulary.END]++;
+	counts.bigramTable.increment(BigramTable.key(prevId, Vocabulary.END));
+	counts.tokenCount += sentence.size() + 2;
+    }
+
+    /** Add unigram and bigram counts accumulated separately to the model's counts */
+    protected void addCounts (BigramCounts counts) {
+	modCount++;
+	for (int id = 0; id < counts.unigram.length; id++)
+	    unigram[id] += counts.unigram[id];
+	BigramTable table = counts.bigramTable;
+	for (int slot = 0; slot < table.capacity(); slot++) {
+	    if (table.isUsed(slot)) {
+		if (spiller != null)
+		    spiller.makeRoom(this);
+		bigramTable.add(table.keyAt(slot), table.valueAt(slot));
+	    }
+	}
+	tokenCount += counts.tokenCount;
+    }
+
+    /** Add a new token to the vocabulary, growing the unigram array to match,
+     *  and return its ID */
+    protected int addToVocab (String token) {
+	int id = vocab.add(token);
+	if (id >= unigram.length)
+	    unigram = Arrays.copyOf(unigram, unigram.length * 2);
+	return id;
+    }
+
+    /** Compute unigram and bigram probabilities from unigram and bigram counts.
+     *  Probabilities are derived from the counts as they are needed, with the
+     *  same divisions this used to precompute, so there is nothing to
+     *  recompute here: training more sentences into a trained model costs
+     *  only the time to count them. Kept so callers mark the end of training,
+     *  and to merge the counts of a model that spilled them (see spillCounts) */
     public void calculateProbs() {
-	// Set bigram values to conditional probability of second token given first
-	for (Map.Entry<String, DoubleValue> entry : bigramMap.entrySet()) {
-	    // An entry in the HashMap maps a token to a DoubleValue
-	    String bigram = entry.getKey();
-	    // The value for the token is in the value of the DoubleValue
-	    DoubleValue value = entry.getValue();
-	    double bigramCount = value.getValue();
-	    String token1 = bigramToken1(bigram); // Get first token of bigram
-	    // Prob is ratio of bigram count to token1 unigram count
-	    double condProb = bigramCount / unigramMap.get(token1).getValue();
-	    // Set map value to conditional probability 
-	    value.setValue(condProb);
-	}
-	// Store unigrams with zero count to remove from map
-	List<String> zeroTokens = new ArrayList<String>();
-	// Set unigram values to unigram probability
-	for (Map.Entry<String, DoubleValue> entry : unigramMap.entrySet()) {
-	    // An entry in the HashMap maps a token to a DoubleValue
-	    String token = entry.getKey();
-	    // Uniggram count is the current map value
-	    DoubleValue value = entry.getValue();
-	    double count = value.getValue();
-	    if (count == 0) 
-		// If count is zero (due to first encounter as <UNK>)
-		// then remove save it to remove from map
-		zeroTokens.add(token);
-	    else
-		// Set map value to prob of unigram
-		value.setValue(count / tokenCount);
-	}
-	// Remove zero count unigrams from map
-	for (String token : zeroTokens) 
-	    unigramMap.remove(token);
-    }
-
-    /** Return bigram string as two tokens separated by a newline */
-    public String bigram (String prevToken, String token) {
-	return prevToken + "\n" + token;
-    }
-
-    /** Return fist token of bigram (substring before newline) */
-    public String bigramToken1 (String bigram) {
-	int newlinePos = bigram.indexOf("\n");
-	return bigram.substring(0,newlinePos);
-    }
-
-    /** Return second token of bigram (substring after newline) */
-    public String bigramToken2 (String bigram) {
-	int newlinePos = bigram.indexOf("\n");
-	return bigram.substring(newlinePos + 1, bigram.length());
+	long start = metrics == null ? 0 : System.nanoTime();
+	modCount++;
+	if (spiller != null)
+	    spiller.merge(this);
+	if (metrics != null)
+	    metrics.calculatedProbs(System.nanoTime() - start);
+    }
+
+    /** Return the unigram probability of the token with ID id */
+    public double unigramProb(int id) {
+	return unigram[id] / tokenCount;
+    }
+
+    /** Return P(id | prevId), the bigram probability of the token with ID id
+     *  following the token with ID prevId (zero if the bigram was never seen) */
+    public double bigramProb(int prevId, int id) {
+	double bigramCount = bigramTable.get(BigramTable.key(prevId, id));
+	// Prob is ratio of bigram count to prevId unigram count; an approximate
+	// count (see CountMinBigramTable) may overestimate, so cap it at that
+	return bigramCount == 0 ? 0 : Math.min(bigramCount, unigram[prevId]) / unigram[prevId];
+    }
+
+    /** Return a number that increases whenever the model may score some sentence
+     *  differently than before: after training or calculateProbs, and after a
+     *  change to the interpolation weights. Caches of scores (see CachingScorer)
+     *  compare it to tell when they are stale */
+    public long version() {
+	if (Double.compare(lambda1, versionLambda1) != 0 || Double.compare(lambda2, versionLambda2) != 0) {
+	    versionLambda1 = lambda1;
+	    versionLambda2 = lambda2;
+	    lambdaChanges++;
+	}
+	return modCount + lambdaChanges;
+    }
+
+    /** Turn on training and scoring metrics for the model and return them.
+     *  Enable them before training or scoring starts on other threads */
+    public synchronized ModelMetrics enableMetrics() {
+	if (metrics == null)
+	    metrics = new ModelMetrics(this);
+	return metrics;
+    }
+
+    /** Return the model's metrics, or null if they are not enabled */
+    public ModelMetrics getMetrics() {
+	return metrics;
+    }
+
+    /** Turn off metrics */
+    public synchronized void disableMetrics() {
+	metrics = null;
+    }
+
+    /** Count bigrams in an in-memory table that fits in budgetBytes, spilling
+     *  it to sorted runs in dir (a temporary directory if null) whenever it
+     *  fills; calculateProbs merges the runs and maps the result as the
+     *  bigram table (see CountSpiller). Call before training */
+    public void spillCounts(File dir, long budgetBytes) throws IOException {
+	if (bigramTable.getClass() != BigramTable.class || bigramTable.size() > 0)
+	    throw new IllegalStateException("Spill the counts of an untrained model with an exact bigram table");
+	spiller = new CountSpiller(dir, budgetBytes);
+	bigramTable = spiller.newTable();
+    }
+
+    /** Return the spiller of the model's bigram counts, or null if they are
+     *  kept in memory */
+    public CountSpiller getSpiller() {
+	return spiller;
+    }
+
+    /** Return the number of bigrams stored (for a CountMinBigramTable, the
+     *  number of exact heavy hitters) */
+    public long tableSize() {
+	return bigramTable.size();
+    }
+
+    /** Return the estimated bytes of the unigram counts and bigram table */
+    public long estimatedBytes() {
+	return 8L * unigram.length + ModelCompactor.bigramBytes(this);
+    }
+
+    /** Return the ID under which token is scored: its own ID if the model
+     *  has a unigram prob for it, otherwise the ID of <UNK> */
+    public int scoringId (String token) {
+	int id = vocab.id(token);
+	if (id < 0 || unigram[id] == 0)
+	    return Vocabulary.UNK;
+	return id;
+    }
+
+    /** Return the index of likely next tokens for the model as trained so far.
+     *  It is built on first use after training (see calculateProbs) or a
+     *  change to the interpolation weights, and reused until the next */
+    public synchronized SuccessorIndex successorIndex() {
+	long version = version();
+	if (successorIndex == null || successorIndexVersion != version) {
+	    successorIndex = new SuccessorIndex(this);
+	    successorIndexVersion = version;
+	}
+	return successorIndex;
+    }
+
+    /** Return the (at most) k tokens most likely to follow prevToken, most
+     *  likely first (for a BackwardBigramModel, to precede it) */
+    public List<String> topK(String prevToken, int k) {
+	return successorIndex().topK(prevToken, k);
+    }
+
+    /** Like topK but only returns tokens starting with prefix */
+    public List<String> topK(String prevToken, String prefix, int k) {
+	return successorIndex().topK(prevToken, prefix, k);
     }
 
     /** Print model as lists of unigram and bigram probabilities */
     public void print() {
 	System.out.println("Unigram probs:");
-	for (Map.Entry<String, DoubleValue> entry : unigramMap.entrySet()) {
-	    // An entry in the HashMap maps a token to a DoubleValue
-	    String token = entry.getKey();
-	    // The value for the token is in the value of the DoubleValue
-	    DoubleValue value = entry.getValue();
-	    System.out.println(token + " : " + value.getValue());
+	for (int id = 0; id < vocab.size(); id++) {
+	    if (unigram[id] != 0)
+		System.out.println(vocab.token(id) + " : " + unigramProb(id));
 	}
 	System.out.println("\nBigram probs:");
-	for (Map.Entry<String, DoubleValue> entry : bigramMap.entrySet()) {
-	    // An entry in the HashMap maps a token to a DoubleValue
-	    String bigram = entry.getKey();
-	    // The value for the token is in the value of the DoubleValue
-	    DoubleValue value = entry.getValue();
-	    System.out.println(bigramToken2(bigram) + " given " + bigramToken1(bigram) + 
-			       " : " + value.getValue());
+	for (int slot = 0; slot < bigramTable.capacity(); slot++) {
+	    if (!bigramTable.isUsed(slot))
+		continue;
+	    long bigram = bigramTable.keyAt(slot);
+	    int id1 = BigramTable.id1(bigram);
+	    int id2 = BigramTable.id2(bigram);
+	    System.out.println(vocab.token(id2) + " given " + vocab.token(id1) + 
+			       " : " + bigramProb(id1, id2));
 	}
   }
 
+    /** Save the trained model to file in the binary format of ModelFile */
+    public void save(File file) throws IOException {
+	ModelFile.save(this, file);
+    }
+
+    /** Load a model saved with save, memory-mapping its bigram table */
+    public static BigramModel load(File file) throws IOException {
+	return ModelFile.load(file);
+    }
+
     /** Use sentences as a test set to evaluate the model. Print out perplexity
      *  of the model for this test data */
     public void test (List<List<String>> sentences) {
-	// Compute log probability of sentence to avoid underflow
-	double totalLogProb = 0;
-	// Keep count of total number of tokens predicted
-	double totalNumTokens = 0;
-	// Accumulate log prob of all test sentences
-	for (List<String> sentence : sentences) {
-	    // Num of tokens in sentence plus 1 for predicting </S>
-	    totalNumTokens += sentence.size() + 1;
-	    // Compute log prob of sentence
-	    double sentenceLogProb = sentenceLogProb(sentence);
-	    //	    System.out.println(sentenceLogProb + " : " + sentence);
-	    // Add to total log prob (since add logs to multiply probs)
-	    totalLogProb += sentenceLogProb;
-	}
-	// Given log prob compute perplexity
-	double perplexity = Math.exp(-totalLogProb / totalNumTokens);
-	System.out.println("Perplexity = " + perplexity );
+	ModelMetrics scoring = scoringStarted();
+	try {
+	    // Compute log probability of sentence to avoid underflow
+	    double totalLogProb = 0;
+	    // Keep count of total number of tokens predicted
+	    double totalNumTokens = 0;
+	    if (evalThreads > 0) {
+		// Score sentences in parallel, num of tokens includes 1 per sentence for </S>
+		totalLogProb = ParallelScorer.sumLogProbs(sentences, this::sentenceLogProb, evalThreads);
+		totalNumTokens = wordCount(sentences) + sentences.size();
+	    }
+	    else {
+		// Accumulate log prob of all test sentences
+		for (List<String> sentence : sentences) {
+		    // Num of tokens in sentence plus 1 for predicting </S>
+		    totalNumTokens += sentence.size() + 1;
+		    // Compute log prob of sentence
+		    double sentenceLogProb = sentenceLogProb(sentence);
+		    //	    System.out.println(sentenceLogProb + " : " + sentence);
+		    // Add to total log prob (since add logs to multiply probs)
+		    totalLogProb += sentenceLogProb;
+		}
+	    }
+	    // Given log prob compute perplexity
+	    double perplexity = Math.exp(-totalLogProb / totalNumTokens);
+	    System.out.println("Perplexity = " + perplexity );
+	}
+	finally {
+	    scoringEnded(scoring);
+	}
     }
     
     /* Compute log probability of sentence given current model */
     public double sentenceLogProb (List<String> sentence) {
-	// Set start-sentence as initial token
-	String prevToken = "<S>";
-	// Maintain total sentence prob as sum of individual token
-	// log probs (since adding logs is same as multiplying probs)
-	double sentenceLogProb = 0;
-	// Check prediction of each token in sentence
-	for (String token : sentence) {
-	    // Retrieve unigram prob
-	    DoubleValue unigramVal = unigramMap.get(token);
-	    if (unigramVal == null) {
+	ModelMetrics scoring = scoringStarted();
+	try {
+	    // Set start-sentence as initial token
+	    int prevId = Vocabulary.START;
+	    // Maintain total sentence prob as sum of individual token
+	    // log probs (since adding logs is same as multiplying probs)
+	    double sentenceLogProb = 0;
+	    // Check prediction of each token in sentence
+	    for (String token : sentence) {
 		// If token not in unigram model, treat as <UNK> token
-		token = "<UNK>";
-		unigramVal = unigramMap.get(token);
+		int id = scoringId(token);
+		// Compute log prob of token using interpolated prob of unigram and bigram
+		double logProb = Math.log(predictionProb(prevId, id));
+		// Add token log prob to sentence log prob
+		sentenceLogProb += logProb;
+		// update previous token and move to next token
+		prevId = id;
 	    }
-	    // Get bigram prob
-	    String bigram = bigram(prevToken, token);
-	    DoubleValue bigramVal = bigramMap.get(bigram);
-	    // Compute log prob of token using interpolated prob of unigram and bigram
-	    double logProb = Math.log(interpolatedProb(unigramVal, bigramVal));
-	    // Add token log prob to sentence log prob
+	    // Check prediction of end of sentence token
+	    double logProb = Math.log(predictionProb(prevId, Vocabulary.END));
+	    // Update sentence log prob based on prediction of </S>
 	    sentenceLogProb += logProb;
-	    // update previous token and move to next token
-	    prevToken = token;
+	    return sentenceLogProb;
+	}
+	finally {
+	    scoringEnded(scoring);
 	}
-	// Check prediction of end of sentence token
-	DoubleValue unigramVal = unigramMap.get("</S>");
-	String bigram = bigram(prevToken, "</S>");
-	DoubleValue bigramVal = bigramMap.get(bigram);
-	double logProb = Math.log(interpolatedProb(unigramVal, bigramVal));
-	// Update sentence log prob based on prediction of </S>
-	sentenceLogProb += logProb;
-	return sentenceLogProb;
     }
 
     /** Like test1 but excludes predicting end-of-sentence when computing perplexity */
     public void test2 (List<List<String>> sentences) {
-	double totalLogProb = 0;
-	double totalNumTokens = 0;
-	for (List<String> sentence : sentences) {
-	    totalNumTokens += sentence.size();
-	    double sentenceLogProb = sentenceLogProb2(sentence);
-	    //	    System.out.println(sentenceLogProb + " : " + sentence);
-	    totalLogProb += sentenceLogProb;
+	ModelMetrics scoring = scoringStarted();
+	try {
+	    double totalLogProb = 0;
+	    double totalNumTokens = 0;
+	    if (evalThreads > 0) {
+		totalLogProb = ParallelScorer.sumLogProbs(sentences, this::sentenceLogProb2, evalThreads);
+		totalNumTokens = wordCount(sentences);
+	    }
+	    else {
+		for (List<String> sentence : sentences) {
+		    totalNumTokens += sentence.size();
+		    double sentenceLogProb = sentenceLogProb2(sentence);
+		    //	    System.out.println(sentenceLogProb + " : " + sentence);
+		    totalLogProb += sentenceLogProb;
+		}
+	    }
+	    double perplexity = Math.exp(-totalLogProb / totalNumTokens);
+	    System.out.println("Word Perplexity = " + perplexity );
+	}
+	finally {
+	    scoringEnded(scoring);
 	}
-	double perplexity = Math.exp(-totalLogProb / totalNumTokens);
-	System.out.println("Word Perplexity = " + perplexity );
     }
     
     /** Like sentenceLogProb but excludes predicting end-of-sentence when computing prob */
     public double sentenceLogProb2 (List<String> sentence) {
-	String prevToken = "<S>";
-	double sentenceLogProb = 0;
-	for (String token : sentence) {
-	    DoubleValue unigramVal = unigramMap.get(token);
-	    if (unigramVal == null) {
-		token = "<UNK>";
-		unigramVal = unigramMap.get(token);
+	ModelMetrics scoring = scoringStarted();
+	try {
+	    int prevId = Vocabulary.START;
+	    double sentenceLogProb = 0;
+	    for (String token : sentence) {
+		int id = scoringId(token);
+		double logProb = Math.log(predictionProb(prevId, id));
+		sentenceLogProb += logProb;
+		prevId = id;
 	    }
-	    String bigram = bigram(prevToken, token);
-	    DoubleValue bigramVal = bigramMap.get(bigram);
-	    double logProb = Math.log(interpolatedProb(unigramVal, bigramVal));
-	    sentenceLogProb += logProb;
-	    prevToken = token;
+	    return sentenceLogProb;
+	}
+	finally {
+	    scoringEnded(scoring);
 	}
-	return sentenceLogProb;
     }
 
     /** Returns vector of probabilities of predicting each token in the sentence
      *  including the end of sentence */
     public Double[] sentenceTokenProbs (List<String> sentence) {
-	// Set start-sentence as initial token
-	String prevToken = "<S>";
+	double[] probs = new double[sentence.size() + 1];
+	sentenceTokenProbs(sentence, probs, 0);
 	// Vector for storing token prediction probs
-	Double[] tokenProbs = new Double[sentence.size() + 1];
-	// Token counter
-	int i = 0;
-	// Compute prob of predicting each token in sentence
-	for (String token : sentence) {
-	    DoubleValue unigramVal = unigramMap.get(token);
-	    if (unigramVal == null) {
-		token = "<UNK>";
-		unigramVal = unigramMap.get(token);
+	Double[] tokenProbs = new Double[probs.length];
+	for (int i = 0; i < probs.length; i++)
+	    tokenProbs[i] = probs[i];
+	return tokenProbs;
+    }
+
+    /** Store the probabilities of predicting each token in the sentence followed
+     *  by the end of sentence in tokenProbs[offset] to tokenProbs[offset + sentence.size()]
+     *  and return the number stored, sentence.size() + 1. Allocates nothing */
+    public int sentenceTokenProbs (List<String> sentence, double[] tokenProbs, int offset) {
+	ModelMetrics scoring = scoringStarted();
+	try {
+	    // Set start-sentence as initial token
+	    int prevId = Vocabulary.START;
+	    // Token counter
+	    int i = offset;
+	    // Compute prob of predicting each token in sentence
+	    for (String token : sentence) {
+		int id = scoringId(token);
+		// Store prediction prob for i'th token
+		tokenProbs[i] = predictionProb(prevId, id);
+		prevId = id;
+		i++;
 	    }
-	    String bigram = bigram(prevToken, token);
-	    DoubleValue bigramVal = bigramMap.get(bigram);
-	    // Store prediction prob for i'th token
-	    tokenProbs[i] = interpolatedProb(unigramVal, bigramVal);
-	    prevToken = token;
-	    i++;
+	    // Store end of sentence prediction prob
+	    tokenProbs[i] = predictionProb(prevId, Vocabulary.END);
+	    return i + 1 - offset;
 	}
-	// Check prediction of end of sentence
-	DoubleValue unigramVal = unigramMap.get("</S>");
-	String bigram = bigram(prevToken, "</S>");
-	DoubleValue bigramVal = bigramMap.get(bigram);
-	// Store end of sentence prediction prob
-	tokenProbs[i] = interpolatedProb(unigramVal, bigramVal);
-	return tokenProbs;
+	finally {
+	    scoringEnded(scoring);
+	}
+    }
+
+    /** Return the ID under which each token of corpus's vocabulary is scored
+     *  (see scoringId), indexed by corpus token ID. The array is kept for the
+     *  last corpus vocabulary and model version asked for */
+    protected int[] scoringIds (Corpus corpus) {
+	ScoringIds cached = scoringIds;
+	long version = version();
+	Vocabulary corpusVocab = corpus.getVocabulary();
+	if (cached == null || cached.vocab != corpusVocab || cached.version != version ||
+	    cached.ids.length != corpusVocab.size()) {
+	    int[] ids = new int[corpusVocab.size()];
+	    for (int id = 0; id < ids.length; id++)
+		ids[id] = scoringId(corpusVocab.token(id));
+	    cached = new ScoringIds(corpusVocab, version, ids);
+	    scoringIds = cached;
+	}
+	return cached.ids;
+    }
+
+    /** Scoring IDs of a corpus vocabulary for a model version */
+    private static class ScoringIds {
+	final Vocabulary vocab;
+	final long version;
+	final int[] ids;
+
+	ScoringIds(Vocabulary vocab, long version, int[] ids) {
+	    this.vocab = vocab;
+	    this.version = version;
+	    this.ids = ids;
+	}
+    }
+
+    /** Last scoring IDs computed (see scoringIds) */
+    private volatile ScoringIds scoringIds = null;
+
+    /** Compute log probability of sentence s of corpus, like sentenceLogProb */
+    public double sentenceLogProb (Corpus corpus, int s) {
+	return corpusLogProb(corpus, s, true);
     }
 
-    /** Interpolate bigram prob using bigram and unigram model predictions */	 
-    public double interpolatedProb(DoubleValue unigramVal, DoubleValue bigramVal) {
-	double bigramProb = 0;
-	// In bigram unknown then its prob is zero
-	if (bigramVal != null)
-	    bigramProb = bigramVal.getValue();
+    /** Like sentenceLogProb(Corpus, int) but excludes predicting end-of-sentence */
+    public double sentenceLogProb2 (Corpus corpus, int s) {
+	return corpusLogProb(corpus, s, false);
+    }
+
+    /** Sum the log probs of the tokens of sentence s of corpus, in the order the
+     *  model predicts them, and of end-of-sentence if includeEnd */
+    protected double corpusLogProb (Corpus corpus, int s, boolean includeEnd) {
+	ModelMetrics scoring = scoringStarted();
+	try {
+	    int[] ids = scoringIds(corpus);
+	    int prevId = Vocabulary.START;
+	    double sentenceLogProb = 0;
+	    int length = corpus.end(s) - corpus.start(s);
+	    for (int k = 0; k < length; k++) {
+		int id = ids[corpus.tokenId(tokenPosition(corpus, s, k))];
+		sentenceLogProb += Math.log(predictionProb(prevId, id));
+		prevId = id;
+	    }
+	    if (includeEnd)
+		sentenceLogProb += Math.log(predictionProb(prevId, Vocabulary.END));
+	    return sentenceLogProb;
+	}
+	finally {
+	    scoringEnded(scoring);
+	}
+    }
+
+    /** Store the probabilities of predicting each token of sentence s of corpus,
+     *  in sentence order, followed by end of sentence from tokenProbs[offset],
+     *  like sentenceTokenProbs, and return the number stored */
+    public int sentenceTokenProbs (Corpus corpus, int s, double[] tokenProbs, int offset) {
+	ModelMetrics scoring = scoringStarted();
+	try {
+	    int[] ids = scoringIds(corpus);
+	    int prevId = Vocabulary.START;
+	    int start = corpus.start(s);
+	    int length = corpus.end(s) - start;
+	    for (int k = 0; k < length; k++) {
+		int position = tokenPosition(corpus, s, k);
+		int id = ids[corpus.tokenId(position)];
+		tokenProbs[offset + position - start] = predictionProb(prevId, id);
+		prevId = id;
+	    }
+	    tokenProbs[offset + length] = predictionProb(prevId, Vocabulary.END);
+	    return length + 1;
+	}
+	finally {
+	    scoringEnded(scoring);
+	}
+    }
+
+    /** Like test, for the sentences of a Corpus */
+    public void test (Corpus corpus) {
+	ModelMetrics scoring = scoringStarted();
+	try {
+	    if (evalThreads > 0) {
+		test((List<List<String>>) corpus);
+		return;
+	    }
+	    double totalLogProb = 0;
+	    double totalNumTokens = 0;
+	    for (int s = 0; s < corpus.size(); s++) {
+		totalNumTokens += corpus.end(s) - corpus.start(s) + 1;
+		totalLogProb += sentenceLogProb(corpus, s);
+	    }
+	    double perplexity = Math.exp(-totalLogProb / totalNumTokens);
+	    System.out.println("Perplexity = " + perplexity );
+	}
+	finally {
+	    scoringEnded(scoring);
+	}
+    }
+
+    /** Like test2, for the sentences of a Corpus */
+    public void test2 (Corpus corpus) {
+	ModelMetrics scoring = scoringStarted();
+	try {
+	    if (evalThreads > 0) {
+		test2((List<List<String>>) corpus);
+		return;
+	    }
+	    double totalLogProb = 0;
+	    double totalNumTokens = 0;
+	    for (int s = 0; s < corpus.size(); s++) {
+		totalNumTokens += corpus.end(s) - corpus.start(s);
+		totalLogProb += sentenceLogProb2(corpus, s);
+	    }
+	    double perplexity = Math.exp(-totalLogProb / totalNumTokens);
+	    System.out.println("Word Perplexity = " + perplexity );
+	}
+	finally {
+	    scoringEnded(scoring);
+	}
+    }
+
+    /** Return interpolatedProb(prevId, id) for a token being scored, recording
+     *  the prediction in the metrics if they are enabled */
+    protected double predictionProb(int prevId, int id) {
+	ModelMetrics metrics = this.metrics;
+	if (metrics == null)
+	    return interpolatedProb(prevId, id);
+	// Interpolate as interpolatedProb does, with the bigram prob looked up once
+	double bigramProb = bigramProb(prevId, id);
+	metrics.predicted(prevId == Vocabulary.START, id == Vocabulary.UNK, bigramProb == 0);
+	return lambda1 * unigramProb(id) + lambda2 * bigramProb;
+    }
+
+    /** Record the start of a scoring call in the metrics if they are enabled,
+     *  and return them (or null) for scoringEnded, so the call ends in the
+     *  metrics it started in even if they are turned off meanwhile */
+    protected ModelMetrics scoringStarted() {
+	ModelMetrics metrics = this.metrics;
+	if (metrics != null)
+	    metrics.scoringStarted();
+	return metrics;
+    }
+
+    /** Record the end of a scoring call started with scoringStarted */
+    protected static void scoringEnded(ModelMetrics metrics) {
+	if (metrics != null)
+	    metrics.scoringEnded();
+    }
+
+    /** Interpolate prob of token with ID id following token with ID prevId
+     *  using bigram and unigram model predictions */	 
+    public double interpolatedProb(int prevId, int id) {
 	// Linearly combine weighted unigram and bigram probs
-	return lambda1 * unigramVal.getValue() + lambda2 * bigramProb;
+	return lambda1 * unigramProb(id) + lambda2 * bigramProb(prevId, id);
     }
 
     public static int wordCount (List<List<String>> sentences) {
@@ -319,6 +824,36 @@ public class BigramModel {
 	return wordCount;
     }
 
+    /** Train and test model like main, but stream the sentences from the LDC POS
+     *  tagged input files instead of holding the corpus in memory. A first pass
+     *  counts the sentences to find the split, training then streams the first
+     *  part, and only the test sentences (the last testFraction) are kept in
+     *  memory. The model is not tested on the training data. Run with
+     *  -Dlm.spill=MB to count bigrams in that many megabytes, spilling them
+     *  to disk (see CountSpiller.install) */
+    public static void trainAndTestStreaming (BigramModel model, File[] files, double testFraction) throws IOException {
+	ModelMetrics.install(model);
+	CountSpiller.install(model);
+	// First pass only counts sentences
+	int numSentences = POSTaggedFile.countSentences(files);
+	int numTest = (int)Math.round(numSentences * testFraction);
+	int numTrain = numSentences - numTest;
+	System.out.println("# Train Sentences = " + numTrain + 
+			   "\n# Test Sentences = " + numTest);
+	System.out.println("Training...");
+	try (Stream<List<String>> sentences = POSTaggedFile.sentenceStream(files)) {
+	    model.train(sentences.limit(numTrain).iterator());
+	}
+	CountSpiller.report(model, System.out);
+	List<List<String>> testSentences;
+	try (Stream<List<String>> sentences = POSTaggedFile.sentenceStream(files)) {
+	    testSentences = sentences.skip(numTrain).collect(Collectors.toList());
+	}
+	System.out.println("Testing...");
+	model.test(testSentences);
+	model.test2(testSentences);
+    }
+
     /** Train and test a bigram model.
      *  Command format: "nlp.lm.BigramModel [DIR]* [TestFrac]" where DIR 
      *  is the name of a file or directory whose LDC POS Tagged files should be 
@@ -326,7 +861,10 @@ public class BigramModel {
      *  in this data that should be used for testing, the rest for training.
      *  0 < TestFrac < 1
      *  Uses the last fraction of the data for testing and the first part
-     *  for training.
+     *  for training. Run with -Dlm.stream=true to stream the training data
+     *  instead of loading it all (see trainAndTestStreaming), or with
+     *  -Dlm.corpusCache=DIR to load it from a cache of the parsed corpus
+     *  (see CorpusCache), reporting the time to the start of training.
      */
     public static void main(String[] args) throws IOException {
 	// All but last arg is a file/directory of LDC tagged input data
@@ -335,21 +873,27 @@ public class BigramModel {
 	    files[i] = new File(args[i]);
 	// Last arg is the TestFrac
 	double testFraction = Double.valueOf(args[args.length -1]);
+	if (Boolean.getBoolean("lm.stream")) {
+	    trainAndTestStreaming(new BigramModel(), files, testFraction);
+	    return;
+	}
 	// Get list of sentences from the LDC POS tagged input files
-	List<List<String>> sentences = 	POSTaggedFile.convertToTokenLists(files);
+	Corpus sentences = Corpus.load(files);
 	int numSentences = sentences.size();
 	// Compute number of test sentences based on TestFrac
 	int numTest = (int)Math.round(numSentences * testFraction);
 	// Take test sentences from end of data
-	List<List<String>> testSentences = sentences.subList(numSentences - numTest, numSentences);
+	Corpus testSentences = sentences.subList(numSentences - numTest, numSentences);
 	// Take training sentences from start of data
-	List<List<String>> trainSentences = sentences.subList(0, numSentences - numTest);
+	Corpus trainSentences = sentences.subList(0, numSentences - numTest);
 	System.out.println("# Train Sentences = " + trainSentences.size() + 
 			   " (# words = " + wordCount(trainSentences) + 
 			   ") \n# Test Sentences = " + testSentences.size() +
 			   " (# words = " + wordCount(testSentences) + ")");
 	// Create a bigram model and train it.
 	BigramModel model = new BigramModel();
+	ModelMetrics.install(model);
+	CorpusCache.reportStartup(System.out);
 	System.out.println("Training...");
 	model.train(trainSentences);
 	// Test on training data using test and test2
@@ -0,0 +1,200 @@
+package lm;
+
+import java.util.*;
+
+/**
+ * An open-addressing hash table from a bigram of token IDs, packed into a
+ * single long as (id1 << 32 | id2), to a double. Keys and values live in
+ * two parallel primitive arrays so lookups and updates allocate nothing.
+ *
+ * @author TSM
+ */
+
+public class BigramTable {
+
+    /** Marks an unused slot; no valid bigram packs to this key since IDs are never negative */
+    protected static final long EMPTY = -1L;
+
+    /** Resize once this fraction of the slots are in use */
+    protected static final double MAX_LOAD = 0.6;
+
+    /** Packed bigram keys, EMPTY for unused slots */
+    protected long[] keys;
+
+    /** Value for the key in the same slot */
+    protected double[] values;
+
+    /** Number of bigrams stored */
+    protected int size = 0;
+
+    /** Create an empty table */
+    public BigramTable() {
+	this(1024);
+    }
+
+    /** Create an empty table sized to hold about expectedSize bigrams without resizing */
+    public BigramTable(int expectedSize) {
+	int capacity = capacityFor(expectedSize);
+	keys = new long[capacity];
+	Arrays.fill(keys, EMPTY);
+	values = new double[capacity];
+    }
+
+    /** Return the number of slots of a table created for expectedSize bigrams */
+    public static int capacityFor(int expectedSize) {
+	int capacity = 16;
+	while (capacity * MAX_LOAD < expectedSize)
+	    capacity *= 2;
+	return capacity;
+    }
+
+    /** Return the key for the bigram "token1 token2" */
+    public static long key(int id1, int id2) {
+	return ((long) id1 << 32) | (id2 & 0xFFFFFFFFL);
+    }
+
+    /** Return the ID of the first token of a bigram key */
+    public static int id1(long key) {
+	return (int) (key >>> 32);
+    }
+
+    /** Return the ID of the second token of a bigram key */
+    public static int id2(long key) {
+	return (int) key;
+    }
+
+    /** Return the value stored for key, or 0 if it is absent */
+    public double get(long key) {
+	int slot = find(key);
+	return keys[slot] == EMPTY ? 0 : values[slot];
+    }
+
+    /** Return whether key is in the table */
+    public boolean contains(long key) {
+	return keys[find(key)] != EMPTY;
+    }
+
+    /** Set the value stored for key */
+    public void put(long key, double value) {
+	int slot = insert(key);
+	values[slot] = value;
+    }
+
+    /** Add n to the value stored for key (absent keys start at 0)
+     *  and return the new value */
+    public double add(long key, double n) {
+	int slot = insert(key);
+	values[slot] += n;
+	return values[slot];
+    }
+
+    /** Add 1 to the value stored for key and return the new value */
+    public double increment(long key) {
+	return add(key, 1);
+    }
+
+    /** Remove key and return whether it was in the table */
+    public boolean remove(long key) {
+	int hole = find(key);
+	if (keys[hole] == EMPTY)
+	    return false;
+	// Shift back each later key in the probe run that may not skip the hole
+	int mask = keys.length - 1;
+	for (int slot = (hole + 1) & mask; keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+	    int home = hash(keys[slot]) & mask;
+	    if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+		keys[hole] = keys[slot];
+		values[hole] = values[slot];
+		hole = slot;
+	    }
+	}
+	keys[hole] = EMPTY;
+	values[hole] = 0;
+	size--;
+	return true;
+    }
+
+    /** Remove every key, keeping the slots */
+    public void clear() {
+	Arrays.fill(keys, EMPTY);
+	Arrays.fill(values, 0);
+	size = 0;
+    }
+
+    /** Return the number of bigrams stored */
+    public int size() {
+	return size;
+    }
+
+    /** Return the number of slots; used with keyAt/valueAt to walk the table */
+    public int capacity() {
+	return keys.length;
+    }
+
+    /** Return the key in this slot, or EMPTY if unused */
+    public long keyAt(int slot) {
+	return keys[slot];
+    }
+
+    /** Return whether this slot holds a bigram */
+    public boolean isUsed(int slot) {
+	return keys[slot] != EMPTY;
+    }
+
+    /** Return the value in this slot */
+    public double valueAt(int slot) {
+	return values[slot];
+    }
+
+    /** Set the value in this slot */
+    public void setValueAt(int slot, double value) {
+	values[slot] = value;
+    }
+
+    /** Return the slot holding key, or the empty slot where it would go */
+    protected int find(long key) {
+	int mask = keys.length - 1;
+	int slot = hash(key) & mask;
+	while (keys[slot] != key && keys[slot] != EMPTY)
+	    slot = (slot + 1) & mask;
+	return slot;
+    }
+
+    /** Return the slot holding key, inserting it with value 0 if absent */
+    protected int insert(long key) {
+	int slot = find(key);
+	if (keys[slot] == EMPTY) {
+	    if (size + 1 > keys.length * MAX_LOAD) {
+		rehash(keys.length * 2);
+		slot = find(key);
+	    }
+	    keys[slot] = key;
+	    size++;
+	}
+	return slot;
+    }
+
+    /** Move every entry into a table with newCapacity slots */
+    protected void rehash(int newCapacity) {
+	long[] oldKeys = keys;
+	double[] oldValues = values;
+	keys = new long[newCapacity];
+	Arrays.fill(keys, EMPTY);
+	values = new double[newCapacity];
+	for (int i = 0; i < oldKeys.length; i++) {
+	    if (oldKeys[i] != EMPTY) {
+		int slot = find(oldKeys[i]);
+		keys[slot] = oldKeys[i];
+		values[slot] = oldValues[i];
+	    }
+	}
+    }
+
+    /** Spread the bits of a key so that neighbouring IDs land in different slots */
+    protected static int hash(long key) {
+	key ^= key >>> 33;
+	key *= 0xff51afd7ed558ccdL;
+	key ^= key >>> 33;
+	return (int) key;
+    }
+}
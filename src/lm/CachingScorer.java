@@ -0,0 +1,156 @@
+package lm;
+
+import java.util.*;
+
+/**
+ * An optional caching layer in front of a model's sentenceLogProb,
+ * sentenceLogProb2 and sentenceTokenProbs, for workloads that score the
+ * same sentences again and again. Scores are kept in a bounded ScoreCache
+ * (LRU, or frequency-aware with TinyLfuScoreCache) keyed by a copy of the
+ * sentence. Before every lookup the model's version is checked, so the
+ * cache is emptied when the model is retrained or its interpolation
+ * weights change. Safe to use from several threads: only the cache lookup
+ * and the store of a new score hold the lock, and misses are scored
+ * outside it, so threads score different sentences concurrently. Threads
+ * that miss on the same sentence at once each score it, and a score
+ * computed while the model changed is returned but not cached.
+ *
+ * @author TSM
+ */
+
+public class CachingScorer {
+
+    /** Marks a score that has not been computed yet */
+    protected static final double MISSING = Double.NaN;
+
+    /** Scores cached for one sentence, computed as they are asked for */
+    public static class Scores {
+	double logProb = MISSING;
+	double logProb2 = MISSING;
+	double[] tokenProbs = null;
+    }
+
+    /** Model whose scores are cached */
+    protected final BigramModel model;
+
+    /** Cached scores by sentence */
+    protected final ScoreCache<List<String>, Scores> cache;
+
+    /** Model version the cached scores were computed under */
+    protected long version;
+
+    /** Number of times the cache was emptied because the model changed */
+    protected long invalidations = 0;
+
+    /** Cache scores of model in an LRU cache of maxSize sentences */
+    public CachingScorer(BigramModel model, int maxSize) {
+	this(model, new ScoreCache<List<String>, Scores>(maxSize));
+    }
+
+    /** Cache scores of model in the given cache, e.g. a TinyLfuScoreCache */
+    public CachingScorer(BigramModel model, ScoreCache<List<String>, Scores> cache) {
+	this.model = model;
+	this.cache = cache;
+	this.version = model.version();
+    }
+
+    /** Return model.sentenceLogProb(sentence), from the cache if possible */
+    public double sentenceLogProb(List<String> sentence) {
+	Scores scores;
+	long modelVersion;
+	synchronized (this) {
+	    scores = scores(sentence);
+	    if (!Double.isNaN(scores.logProb))
+		return scores.logProb;
+	    modelVersion = version;
+	}
+	double logProb = model.sentenceLogProb(sentence);
+	synchronized (this) {
+	    if (model.version() == modelVersion)
+		scores.logProb = logProb;
+	}
+	return logProb;
+    }
+
+    /** Return model.sentenceLogProb2(sentence), from the cache if possible */
+    public double sentenceLogProb2(List<String> sentence) {
+	Scores scores;
+	long modelVersion;
+	synchronized (this) {
+	    scores = scores(sentence);
+	    if (!Double.isNaN(scores.logProb2))
+		return scores.logProb2;
+	    modelVersion = version;
+	}
+	double logProb2 = model.sentenceLogProb2(sentence);
+	synchronized (this) {
+	    if (model.version() == modelVersion)
+		scores.logProb2 = logProb2;
+	}
+	return logProb2;
+    }
+
+    /** Return model.sentenceTokenProbs(sentence), from the cache if possible */
+    public Double[] sentenceTokenProbs(List<String> sentence) {
+	double[] probs = new double[sentence.size() + 1];
+	sentenceTokenProbs(sentence, probs, 0);
+	Double[] tokenProbs = new Double[probs.length];
+	for (int i = 0; i < probs.length; i++)
+	    tokenProbs[i] = probs[i];
+	return tokenProbs;
+    }
+
+    /** Store model's token probs for sentence in tokenProbs from offset, from the
+     *  cache if possible, and return the number stored */
+    public int sentenceTokenProbs(List<String> sentence, double[] tokenProbs, int offset) {
+	Scores scores;
+	long modelVersion;
+	synchronized (this) {
+	    scores = scores(sentence);
+	    if (scores.tokenProbs != null) {
+		System.arraycopy(scores.tokenProbs, 0, tokenProbs, offset, scores.tokenProbs.length);
+		return scores.tokenProbs.length;
+	    }
+	    modelVersion = version;
+	}
+	double[] probs = new double[sentence.size() + 1];
+	model.sentenceTokenProbs(sentence, probs, 0);
+	synchronized (this) {
+	    if (model.version() == modelVersion)
+		scores.tokenProbs = probs;
+	}
+	System.arraycopy(probs, 0, tokenProbs, offset, probs.length);
+	return probs.length;
+    }
+
+    /** Return the cached scores of sentence, adding an empty entry if there are none,
+     *  after emptying the cache if the model has changed. Callers hold the lock */
+    protected Scores scores(List<String> sentence) {
+	long modelVersion = model.version();
+	if (modelVersion != version) {
+	    cache.clear();
+	    invalidations++;
+	    version = modelVersion;
+	}
+	Scores scores = cache.get(sentence);
+	if (scores == null) {
+	    scores = new Scores();
+	    cache.put(new ArrayList<String>(sentence), scores);
+	}
+	return scores;
+    }
+
+    /** Return the cache, e.g. for its hit, miss and eviction counts */
+    public ScoreCache<List<String>, Scores> getCache() {
+	return cache;
+    }
+
+    /** Return the number of times the cache was emptied because the model changed */
+    public synchronized long getInvalidations() {
+	return invalidations;
+    }
+
+    public synchronized String toString() {
+	return cache + ", invalidations=" + invalidations;
+    }
+}
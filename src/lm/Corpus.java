@@ -0,0 +1,206 @@
+package lm;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A tokenized corpus held compactly: every token occurrence is an int ID
+ * in the corpus's Vocabulary, stored in one flat array, with the start of
+ * each sentence in a second array. A Corpus is also a List of sentences
+ * whose elements are lightweight Sentence views over the arrays, so it can
+ * be passed wherever a List<List<String>> is taken, and subList gives a
+ * Corpus over the same arrays. The models' train and test methods for a
+ * Corpus read the IDs directly (translating them to model IDs once per
+ * distinct token) instead of looking up each token String.
+ *
+ * A Corpus is immutable and may be read by several threads.
+ *
+ * @author TSM
+ */
+
+public class Corpus extends AbstractList<List<String>> implements RandomAccess {
+
+    /** Vocabulary of the token IDs */
+    protected final Vocabulary vocab;
+
+    /** Token IDs of all the sentences, one after another */
+    protected final int[] tokens;
+
+    /** Sentence s of the arrays spans tokens[starts[s]] to tokens[starts[s + 1] - 1] */
+    protected final int[] starts;
+
+    /** First sentence of the arrays in this corpus, and number of sentences */
+    protected final int first;
+    protected final int size;
+
+    /** Create a corpus of numSentences sentences over the token and sentence
+     *  start arrays (starts must have numSentences + 1 entries) */
+    public Corpus(Vocabulary vocab, int[] tokens, int[] starts, int numSentences) {
+	this(vocab, tokens, starts, 0, numSentences);
+    }
+
+    protected Corpus(Vocabulary vocab, int[] tokens, int[] starts, int first, int size) {
+	this.vocab = vocab;
+	this.tokens = tokens;
+	this.starts = starts;
+	this.first = first;
+	this.size = size;
+    }
+
+    /** Read a corpus from LDC POS tagged input files or directories, with the
+     *  same sentences in the same order as POSTaggedFile.convertToTokenLists.
+     *  Run with -Dlm.corpusCache=DIR to read it from a cache file in DIR
+     *  written by an earlier run on the same files (see CorpusCache) */
+    public static Corpus load(File[] files) {
+	String cacheDir = System.getProperty("lm.corpusCache");
+	if (cacheDir != null)
+	    return CorpusCache.load(files, new File(cacheDir));
+	return parse(files);
+    }
+
+    /** Read a corpus from LDC POS tagged input files or directories like load,
+     *  always parsing the files */
+    public static Corpus parse(File[] files) {
+	Builder builder = new Builder(new Vocabulary());
+	new LdcTokenizer(builder.vocab).tokenize(files, builder::add);
+	return builder.build();
+    }
+
+    /** Return a corpus holding sentences */
+    public static Corpus of(List<List<String>> sentences) {
+	Builder builder = new Builder(new Vocabulary());
+	for (List<String> sentence : sentences)
+	    builder.add(sentence);
+	return builder.build();
+    }
+
+    /** Collects sentences into the arrays of a Corpus */
+    public static class Builder {
+	protected final Vocabulary vocab;
+	protected int[] tokens = new int[1 << 16];
+	protected int[] starts = new int[1 << 12];
+	protected int numSentences = 0;
+
+	/** Create a builder for a corpus whose token IDs are in vocab */
+	public Builder(Vocabulary vocab) {
+	    this.vocab = vocab;
+	}
+
+	/** Add a sentence of ids[0] to ids[length - 1] */
+	public void add(int[] ids, int length) {
+	    int start = starts[numSentences];
+	    if (start + length > tokens.length)
+		tokens = Arrays.copyOf(tokens, Math.max(2 * tokens.length, start + length));
+	    System.arraycopy(ids, 0, tokens, start, length);
+	    if (numSentences + 2 > starts.length)
+		starts = Arrays.copyOf(starts, 2 * starts.length);
+	    starts[++numSentences] = start + length;
+	}
+
+	/** Add a sentence of tokens, adding new ones to the vocabulary */
+	public void add(List<String> sentence) {
+	    int[] ids = new int[sentence.size()];
+	    int i = 0;
+	    for (String token : sentence)
+		ids[i++] = vocab.add(token);
+	    add(ids, ids.length);
+	}
+
+	/** Return the corpus of the sentences added, with arrays trimmed to size */
+	public Corpus build() {
+	    return new Corpus(vocab, Arrays.copyOf(tokens, starts[numSentences]),
+			      Arrays.copyOf(starts, numSentences + 1), numSentences);
+	}
+    }
+
+    /** Return the vocabulary of the token IDs */
+    public Vocabulary getVocabulary() {
+	return vocab;
+    }
+
+    /** Return the number of sentences */
+    @Override
+    public int size() {
+	return size;
+    }
+
+    /** Return a view of sentence s */
+    @Override
+    public Sentence get(int s) {
+	if (s < 0 || s >= size)
+	    throw new IndexOutOfBoundsException("Sentence " + s + " of " + size);
+	return new Sentence(s);
+    }
+
+    /** Return the corpus of sentences from to to - 1, sharing this corpus's arrays */
+    @Override
+    public Corpus subList(int from, int to) {
+	if (from < 0 || to > size || from > to)
+	    throw new IndexOutOfBoundsException("Sentences " + from + " to " + to + " of " + size);
+	return new Corpus(vocab, tokens, starts, first + from, to - from);
+    }
+
+    /** Return the index in tokenId of the first token of sentence s */
+    public int start(int s) {
+	return starts[first + s];
+    }
+
+    /** Return the index in tokenId after the last token of sentence s */
+    public int end(int s) {
+	return starts[first + s + 1];
+    }
+
+    /** Return the ID of the token at index i of the token array */
+    public int tokenId(int i) {
+	return tokens[i];
+    }
+
+    /** Return the number of tokens in the corpus, not counting sentence ends */
+    public int wordCount() {
+	return starts[first + size] - starts[first];
+    }
+
+    /** Return the approximate number of bytes of heap held by the corpus arrays
+     *  (not counting the vocabulary) */
+    public long arrayBytes() {
+	return 4L * tokens.length + 4L * starts.length;
+    }
+
+    /** A sentence of the corpus, viewed as a List of its token Strings. The
+     *  Strings are the vocabulary's own, so the view allocates nothing per token */
+    public class Sentence extends AbstractList<String> implements RandomAccess {
+	/** Index of the sentence in the corpus */
+	protected final int index;
+
+	protected Sentence(int index) {
+	    this.index = index;
+	}
+
+	/** Return the corpus the sentence is in */
+	public Corpus corpus() {
+	    return Corpus.this;
+	}
+
+	/** Return the index of the sentence in its corpus */
+	public int index() {
+	    return index;
+	}
+
+	@Override
+	public int size() {
+	    return end(index) - start(index);
+	}
+
+	/** Return the ID of token i of the sentence */
+	public int id(int i) {
+	    return tokens[start(index) + i];
+	}
+
+	@Override
+	public String get(int i) {
+	    if (i < 0 || i >= size())
+		throw new IndexOutOfBoundsException("Token " + i + " of " + size());
+	    return vocab.token(id(i));
+	}
+    }
+}
@@ -0,0 +1,224 @@
+package lm;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Caches the Corpus read from LDC POS tagged files in a binary file, so
+ * later runs on the same files map it instead of parsing them again (see
+ * Corpus.load). A cache file holds:
+ *
+ *   header: int MAGIC, int VERSION, int key length K, K bytes of key:
+ *           int number of input files F, then F times (int length, UTF-8
+ *           absolute path, long size, long last-modified time)
+ *   corpus: int vocabulary size V, V tokens as (int length, UTF-8 bytes),
+ *           padding to a multiple of 8 bytes, int number of sentences S,
+ *           int number of tokens N, N token IDs as ints, S + 1 sentence
+ *           starts as ints
+ *
+ * The key lists the input files in the order they are read (see
+ * POSTaggedFile.listInputFiles), so changing, adding or removing a file
+ * makes the cache stale, and a stale cache is parsed again and rewritten.
+ * A file changed without changing its size or last-modified time is not
+ * noticed. The cache file for a list of inputs is named by a hash of their
+ * paths, so one directory can cache several corpora. A cache is written to
+ * a temporary file and renamed, so a concurrent run never reads a partial
+ * one. Loading maps the file and copies the token and sentence arrays in
+ * bulk; only the vocabulary is decoded token by token.
+ *
+ * @author TSM
+ */
+
+public class CorpusCache {
+
+    /** First four bytes of a cache file: "LMCC" */
+    public static final int MAGIC = 0x4C4D4343;
+
+    /** Version of the format written by write; other versions are stale */
+    public static final int VERSION = 1;
+
+    /** Most ints copied from one mapping of the file */
+    protected static final int MAP_INTS = 1 << 28;
+
+    /** How the last corpus loaded through the cache was read, for reportStartup */
+    protected static String lastLoad = null;
+
+    /** Return the corpus of the LDC POS tagged input files or directories, as
+     *  Corpus.parse does, reading it from its cache file in dir if that is up
+     *  to date and otherwise parsing the files and writing the cache. An
+     *  unreadable or unwritable cache is reported on System.err and ignored */
+    public static Corpus load(File[] files, File dir) {
+	long start = System.nanoTime();
+	List<File> inputFiles = new ArrayList<File>();
+	POSTaggedFile.listInputFiles(files, inputFiles);
+	// The key is taken before parsing, so a file changed meanwhile makes the cache stale
+	byte[] key = key(inputFiles);
+	File cacheFile = cacheFile(dir, inputFiles);
+	Corpus corpus = null;
+	if (cacheFile.exists()) {
+	    try {
+		corpus = read(cacheFile, key);
+	    }
+	    catch (IOException e) {
+		System.err.println("Ignoring unreadable corpus cache " + cacheFile + ": " + e.getMessage());
+	    }
+	}
+	if (corpus != null) {
+	    lastLoad = "Corpus read from cache " + cacheFile + " in " + millisSince(start) + " ms";
+	    return corpus;
+	}
+	corpus = Corpus.parse(files);
+	long parseMillis = millisSince(start);
+	long writeStart = System.nanoTime();
+	String written;
+	try {
+	    dir.mkdirs();
+	    write(corpus, key, cacheFile);
+	    written = "cached to " + cacheFile + " in " + millisSince(writeStart) + " ms";
+	}
+	catch (IOException e) {
+	    System.err.println("Could not write corpus cache " + cacheFile + ": " + e.getMessage());
+	    written = "not cached";
+	}
+	lastLoad = "Corpus parsed from " + inputFiles.size() + " files in " + parseMillis + " ms, " + written;
+	return corpus;
+    }
+
+    /** Return the cache file in dir for the input files */
+    public static File cacheFile(File dir, List<File> inputFiles) {
+	StringBuilder paths = new StringBuilder();
+	for (File file : inputFiles)
+	    paths.append(file.getAbsolutePath()).append('\n');
+	return new File(dir, String.format("corpus-%08x.bin", paths.toString().hashCode()));
+    }
+
+    /** Return the key of the input files: their paths, sizes and
+     *  last-modified times, in order */
+    public static byte[] key(List<File> inputFiles) {
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream(bytes);
+	try {
+	    out.writeInt(inputFiles.size());
+	    for (File file : inputFiles) {
+		byte[] path = file.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+		out.writeInt(path.length);
+		out.write(path);
+		out.writeLong(file.length());
+		out.writeLong(file.lastModified());
+	    }
+	}
+	catch (IOException e) {
+	    // Writing to a byte array does not fail
+	    throw new UncheckedIOException(e);
+	}
+	return bytes.toByteArray();
+    }
+
+    /** Write corpus to a cache file under key, replacing any there */
+    public static void write(Corpus corpus, byte[] key, File cacheFile) throws IOException {
+	File temp = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getAbsoluteFile().getParentFile());
+	try {
+	    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+	    try {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(key.length);
+		out.write(key);
+		Vocabulary vocab = corpus.getVocabulary();
+		out.writeInt(vocab.size());
+		for (int id = 0; id < vocab.size(); id++) {
+		    byte[] bytes = vocab.token(id).getBytes(StandardCharsets.UTF_8);
+		    out.writeInt(bytes.length);
+		    out.write(bytes);
+		}
+		ModelFile.pad(out);
+		int numSentences = corpus.size();
+		int base = numSentences == 0 ? 0 : corpus.start(0);
+		out.writeInt(numSentences);
+		out.writeInt(corpus.wordCount());
+		for (int i = base; i < base + corpus.wordCount(); i++)
+		    out.writeInt(corpus.tokenId(i));
+		for (int s = 0; s < numSentences; s++)
+		    out.writeInt(corpus.start(s) - base);
+		out.writeInt(corpus.wordCount());
+	    }
+	    finally {
+		out.close();
+	    }
+	    Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	finally {
+	    // Nothing is left to delete once the file is moved
+	    temp.delete();
+	}
+    }
+
+    /** Read the corpus from a cache file by memory-mapping it. Returns null if
+     *  the cache is stale: of another version or written under another key */
+    public static Corpus read(File cacheFile, byte[] key) throws IOException {
+	try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+	    ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+	    if (buffer.getInt() != MAGIC)
+		throw new IOException("Not a corpus cache file");
+	    if (buffer.getInt() != VERSION)
+		return null;
+	    byte[] cachedKey = new byte[buffer.getInt()];
+	    buffer.get(cachedKey);
+	    if (!Arrays.equals(cachedKey, key))
+		return null;
+	    int vocabSize = buffer.getInt();
+	    Vocabulary vocab = new Vocabulary();
+	    byte[] bytes = new byte[64];
+	    for (int id = 0; id < vocabSize; id++) {
+		int length = buffer.getInt();
+		if (length > bytes.length)
+		    bytes = new byte[Math.max(length, bytes.length * 2)];
+		buffer.get(bytes, 0, length);
+		// <S>, </S> and <UNK> are already in the vocabulary
+		if (vocab.add(new String(bytes, 0, length, StandardCharsets.UTF_8)) != id)
+		    throw new IOException("Corrupt vocabulary at token " + id);
+	    }
+	    buffer.position((buffer.position() + 7) & ~7);
+	    int numSentences = buffer.getInt();
+	    int numTokens = buffer.getInt();
+	    long position = buffer.position();
+	    int[] tokens = readInts(channel, position, numTokens);
+	    int[] starts = readInts(channel, position + 4L * numTokens, numSentences + 1);
+	    if (starts[0] != 0 || starts[numSentences] != numTokens)
+		throw new IOException("Corrupt sentence starts");
+	    return new Corpus(vocab, tokens, starts, numSentences);
+	}
+	catch (BufferUnderflowException e) {
+	    throw new EOFException("Truncated corpus cache file");
+	}
+    }
+
+    /** Read length ints at position of channel, mapping at most MAP_INTS at a time */
+    protected static int[] readInts(FileChannel channel, long position, int length) throws IOException {
+	if (length < 0 || position + 4L * length > channel.size())
+	    throw new EOFException("Truncated corpus cache file");
+	int[] array = new int[length];
+	for (int i = 0; i < length; i += MAP_INTS) {
+	    int n = Math.min(MAP_INTS, length - i);
+	    channel.map(FileChannel.MapMode.READ_ONLY, position + 4L * i, 4L * n).asIntBuffer().get(array, i, n);
+	}
+	return array;
+    }
+
+    /** Print how the corpus was loaded and how long after the JVM started this
+     *  is, the start of training, if a corpus was loaded through the cache */
+    public static void reportStartup(PrintStream out) {
+	if (lastLoad != null)
+	    out.println(lastLoad + "\nStartup to first training step = " +
+			ManagementFactory.getRuntimeMXBean().getUptime() + " ms");
+    }
+
+    protected static long millisSince(long startNanos) {
+	return (System.nanoTime() - startNanos) / 1000000;
+    }
+}
@@ -0,0 +1,42 @@
+package lm;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Thrown when one or more LDC POS tagged files or directories could not
+ * be read. Loaders read every file they can before throwing, so a run
+ * fails once with all of the errors (see getErrors) rather than at the
+ * first one. The first error is the cause and the rest are suppressed.
+ *
+ * @author TSM
+ */
+
+public class CorpusReadException extends UncheckedIOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The errors, in the order of the files they occurred in */
+    protected final List<IOException> errors;
+
+    public CorpusReadException(List<IOException> errors) {
+	super(message(errors), errors.get(0));
+	this.errors = Collections.unmodifiableList(new ArrayList<IOException>(errors));
+	for (int i = 1; i < errors.size(); i++)
+	    addSuppressed(errors.get(i));
+    }
+
+    /** Return the errors, in the order of the files they occurred in */
+    public List<IOException> getErrors() {
+	return errors;
+    }
+
+    /** Return a message listing each error on its own line */
+    protected static String message(List<IOException> errors) {
+	StringBuilder message = new StringBuilder();
+	message.append(errors.size() == 1 ? "1 input file" : errors.size() + " input files").append(" could not be read:");
+	for (IOException error : errors)
+	    message.append("\n  ").append(error.getMessage());
+	return message.toString();
+    }
+}
@@ -0,0 +1,407 @@
+package lm;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Unigram and bigram counts of one shard of a corpus, saved to a binary
+ * count file so that shards can be counted by separate processes (or
+ * machines) and merged into a model equal to one trained on all of the
+ * shards concatenated in order.
+ *
+ * A model counts the first occurrence of each token in its training data
+ * as <UNK>, and which occurrence is first depends on every earlier shard.
+ * So a shard is counted raw, every token under its own ID, and records for
+ * each of its tokens where it first occurs (the sentence, its first and
+ * last index in it, and the tokens around those). When shards are merged
+ * in order, each token's first occurrence in all of them is found, and its
+ * counts there, and those of the bigrams it is in, are moved to <UNK>, for
+ * a forward model reading sentences from the start and for a backward model
+ * reading them from the end. Tokens get model IDs in order of first
+ * occurrence, as in training, so a merged model saves to the same bytes.
+ *
+ * File format (big-endian, as written by DataOutputStream):
+ *
+ *   int MAGIC, int VERSION, int number of sentences, double token count,
+ *   int vocabulary size V, V tokens as (int length, UTF-8 bytes),
+ *   V raw unigram counts as doubles, for each token ID from UNK + 1 to
+ *   V - 1 its first occurrence as 7 ints (see FIRST_FIELDS),
+ *   int bigram count B, B raw bigram keys in ascending order as longs,
+ *   B counts as doubles
+ *
+ * @author TSM
+ */
+
+public class CountFile {
+
+    /** First four bytes of a count file: "LMCT" */
+    public static final int MAGIC = 0x4C4D4354;
+
+    /** Version of the format written by write */
+    public static final int VERSION = 1;
+
+    /** Ints per token of its first occurrence: the sentence, then for a
+     *  forward and a backward reading the index in the sentence of the
+     *  occurrence read first and the IDs of the tokens read just before and
+     *  after it (<S> and </S> at the ends). Indexes count from the start of
+     *  the sentence either way */
+    protected static final int FIRST_FIELDS = 7;
+    protected static final int SENTENCE = 0;
+    protected static final int FORWARD = 1;
+    protected static final int BACKWARD = 4;
+    protected static final int INDEX = 0;
+    protected static final int BEFORE = 1;
+    protected static final int AFTER = 2;
+
+    /** Tokens of the shard, in order of first occurrence */
+    public Vocabulary vocab;
+
+    /** Raw unigram counts by token ID, <S> and </S> included */
+    public double[] unigram;
+
+    /** Raw bigram counts keyed by BigramTable.key */
+    public BigramTable bigramTable;
+
+    /** Total count of tokens, <S> and </S> included */
+    public double tokenCount = 0;
+
+    /** Number of sentences counted */
+    public int numSentences = 0;
+
+    /** First occurrence of each token ID, FIRST_FIELDS ints each */
+    protected int[] firsts;
+
+    /** Token IDs of the sentence being counted */
+    private int[] sentenceIds = new int[64];
+
+    /** Create empty counts */
+    public CountFile() {
+	vocab = new Vocabulary();
+	unigram = new double[1024];
+	bigramTable = new BigramTable();
+	firsts = new int[1024 * FIRST_FIELDS];
+    }
+
+    /** Count a sentence of the shard, after those counted before */
+    public void countSentence(List<String> sentence) {
+	int s = numSentences++;
+	int length = sentence.size();
+	if (length > sentenceIds.length)
+	    sentenceIds = new int[Math.max(length, 2 * sentenceIds.length)];
+	int firstNewId = vocab.size();
+	int prevId = Vocabulary.START;
+	unigram[prevId]++;
+	for (int i = 0; i < length; i++) {
+	    String token = sentence.get(i);
+	    int id = vocab.id(token);
+	    if (id < 0) {
+		id = vocab.add(token);
+		if (id >= unigram.length) {
+		    unigram = Arrays.copyOf(unigram, 2 * unigram.length);
+		    firsts = Arrays.copyOf(firsts, 2 * firsts.length);
+		}
+		firsts[id * FIRST_FIELDS + SENTENCE] = s;
+		firsts[id * FIRST_FIELDS + FORWARD + INDEX] = i;
+	    }
+	    if (id >= firstNewId)
+		firsts[id * FIRST_FIELDS + BACKWARD + INDEX] = i;
+	    sentenceIds[i] = id;
+	    unigram[id]++;
+	    bigramTable.increment(BigramTable.key(prevId, id));
+	    prevId = id;
+	}
+	unigram[Vocabulary.END]++;
+	bigramTable.increment(BigramTable.key(prevId, Vocabulary.END));
+	tokenCount += length + 2;
+	// Record the neighbours of the first and last occurrences of new tokens
+	for (int id = firstNewId; id < vocab.size(); id++) {
+	    int first = id * FIRST_FIELDS;
+	    int i = firsts[first + FORWARD + INDEX];
+	    firsts[first + FORWARD + BEFORE] = i > 0 ? sentenceIds[i - 1] : Vocabulary.START;
+	    firsts[first + FORWARD + AFTER] = i < length - 1 ? sentenceIds[i + 1] : Vocabulary.END;
+	    i = firsts[first + BACKWARD + INDEX];
+	    firsts[first + BACKWARD + BEFORE] = i < length - 1 ? sentenceIds[i + 1] : Vocabulary.START;
+	    firsts[first + BACKWARD + AFTER] = i > 0 ? sentenceIds[i - 1] : Vocabulary.END;
+	}
+    }
+
+    /** Count every sentence read from an Iterator */
+    public void countSentences(Iterator<List<String>> sentences) {
+	while (sentences.hasNext())
+	    countSentence(sentences.next());
+    }
+
+    /** Write the counts to file */
+    public void write(File file) throws IOException {
+	try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+	    out.writeInt(MAGIC);
+	    out.writeInt(VERSION);
+	    out.writeInt(numSentences);
+	    out.writeDouble(tokenCount);
+	    int vocabSize = vocab.size();
+	    out.writeInt(vocabSize);
+	    for (int id = 0; id < vocabSize; id++) {
+		byte[] bytes = vocab.token(id).getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	    }
+	    for (int id = 0; id < vocabSize; id++)
+		out.writeDouble(unigram[id]);
+	    for (int i = (Vocabulary.UNK + 1) * FIRST_FIELDS; i < vocabSize * FIRST_FIELDS; i++)
+		out.writeInt(firsts[i]);
+	    long[] keys = new long[bigramTable.size()];
+	    int n = 0;
+	    for (int slot = 0; slot < bigramTable.capacity(); slot++) {
+		if (bigramTable.isUsed(slot))
+		    keys[n++] = bigramTable.keyAt(slot);
+	    }
+	    Arrays.sort(keys);
+	    out.writeInt(n);
+	    for (long key : keys)
+		out.writeLong(key);
+	    for (long key : keys)
+		out.writeDouble(bigramTable.get(key));
+	}
+    }
+
+    /** Read counts written by write */
+    public static CountFile read(File file) throws IOException {
+	try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+	    if (in.readInt() != MAGIC)
+		throw new IOException("Not a count file: " + file);
+	    int version = in.readInt();
+	    if (version != VERSION)
+		throw new IOException("Unsupported count file version " + version + ": " + file);
+	    CountFile counts = new CountFile();
+	    counts.numSentences = in.readInt();
+	    counts.tokenCount = in.readDouble();
+	    int vocabSize = in.readInt();
+	    for (int id = 0; id < vocabSize; id++) {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		String token = new String(bytes, StandardCharsets.UTF_8);
+		if (id > Vocabulary.UNK && counts.vocab.add(token) != id)
+		    throw new IOException("Duplicate token " + token + ": " + file);
+	    }
+	    counts.unigram = new double[Math.max(vocabSize, 1)];
+	    for (int id = 0; id < vocabSize; id++)
+		counts.unigram[id] = in.readDouble();
+	    counts.firsts = new int[Math.max(vocabSize, 1) * FIRST_FIELDS];
+	    for (int i = (Vocabulary.UNK + 1) * FIRST_FIELDS; i < vocabSize * FIRST_FIELDS; i++)
+		counts.firsts[i] = in.readInt();
+	    int numBigrams = in.readInt();
+	    long[] keys = new long[numBigrams];
+	    for (int i = 0; i < numBigrams; i++)
+		keys[i] = in.readLong();
+	    counts.bigramTable = new BigramTable(numBigrams);
+	    for (int i = 0; i < numBigrams; i++)
+		counts.bigramTable.put(keys[i], in.readDouble());
+	    return counts;
+	}
+    }
+
+    /**
+     * Counts of a forward or backward model merged from shards in order
+     * (see CountFile). Each shard's raw counts are added under model IDs,
+     * then the first occurrences of the tokens new in it are moved to <UNK>.
+     */
+    public static class Merger {
+
+	/** Whether the counts are for a backward model */
+	public final boolean backward;
+
+	/** Model vocabulary, unigram and bigram counts, and token count */
+	protected final Vocabulary vocab = new Vocabulary();
+	protected double[] unigram = new double[1024];
+	protected final BigramTable bigramTable = new BigramTable();
+	protected double tokenCount = 0;
+
+	public Merger(boolean backward) {
+	    this.backward = backward;
+	}
+
+	/** Add the counts of the next shard */
+	public void add(CountFile shard) {
+	    int vocabSize = shard.vocab.size();
+	    int[] firsts = shard.firsts;
+	    int direction = backward ? BACKWARD : FORWARD;
+	    // Tokens first seen in this shard, in the order the model reads them
+	    List<Integer> newIds = new ArrayList<Integer>();
+	    for (int id = Vocabulary.UNK + 1; id < vocabSize; id++) {
+		if (vocab.id(shard.vocab.token(id)) < 0)
+		    newIds.add(id);
+	    }
+	    if (backward)
+		newIds.sort(Comparator.comparingInt((Integer id) -> firsts[id * FIRST_FIELDS + SENTENCE])
+			    .thenComparingInt(id -> -firsts[id * FIRST_FIELDS + BACKWARD + INDEX]));
+	    boolean[] isNew = new boolean[vocabSize];
+	    for (int id : newIds) {
+		isNew[id] = true;
+		int modelId = vocab.add(shard.vocab.token(id));
+		if (modelId >= unigram.length)
+		    unigram = Arrays.copyOf(unigram, Math.max(2 * unigram.length, modelId + 1));
+	    }
+	    int[] modelIds = new int[vocabSize];
+	    for (int id = 0; id < vocabSize; id++)
+		modelIds[id] = id <= Vocabulary.UNK ? id : vocab.id(shard.vocab.token(id));
+	    // Raw counts; a backward model reads each bigram the other way round,
+	    // from </S> (its <S>) to <S> (its </S>)
+	    for (int id = 0; id < vocabSize; id++)
+		unigram[modelIds[id]] += shard.unigram[id];
+	    BigramTable table = shard.bigramTable;
+	    for (int slot = 0; slot < table.capacity(); slot++) {
+		if (!table.isUsed(slot))
+		    continue;
+		int id1 = modelIds[BigramTable.id1(table.keyAt(slot))];
+		int id2 = modelIds[BigramTable.id2(table.keyAt(slot))];
+		long key = backward ? BigramTable.key(swapEnds(id2), swapEnds(id1)) : BigramTable.key(id1, id2);
+		bigramTable.add(key, table.valueAt(slot));
+	    }
+	    tokenCount += shard.tokenCount;
+	    // Move the first occurrence of each new token to <UNK>
+	    int step = backward ? -1 : 1;
+	    for (int id : newIds) {
+		int first = id * FIRST_FIELDS;
+		int s = firsts[first + SENTENCE];
+		int i = firsts[first + direction + INDEX];
+		int before = firsts[first + direction + BEFORE];
+		int after = firsts[first + direction + AFTER];
+		unigram[modelIds[id]]--;
+		unigram[Vocabulary.UNK]++;
+		// The bigram ending here, whose first token may also be a first occurrence
+		decrement(BigramTable.key(modelIds[before], modelIds[id]));
+		int beforeId = firstAt(shard, isNew, before, s, i - step) ? Vocabulary.UNK : modelIds[before];
+		bigramTable.increment(BigramTable.key(beforeId, Vocabulary.UNK));
+		// The bigram starting here, unless the next token's own move covers it
+		if (!firstAt(shard, isNew, after, s, i + step)) {
+		    decrement(BigramTable.key(modelIds[id], modelIds[after]));
+		    bigramTable.increment(BigramTable.key(Vocabulary.UNK, modelIds[after]));
+		}
+	    }
+	}
+
+	/** Return whether the first occurrence read of id is at index i of sentence s */
+	protected boolean firstAt(CountFile shard, boolean[] isNew, int id, int s, int i) {
+	    int first = id * FIRST_FIELDS;
+	    return id > Vocabulary.UNK && isNew[id] && shard.firsts[first + SENTENCE] == s &&
+		shard.firsts[first + (backward ? BACKWARD : FORWARD) + INDEX] == i;
+	}
+
+	/** Subtract one from the count of key, removing it at zero */
+	protected void decrement(long key) {
+	    if (bigramTable.add(key, -1) == 0)
+		bigramTable.remove(key);
+	}
+
+	/** Return the model of the merged counts */
+	public BigramModel toModel() {
+	    BigramModel model = backward ? new BackwardBigramModel() : new BigramModel();
+	    model.vocab = vocab;
+	    model.unigram = unigram;
+	    model.bigramTable = bigramTable;
+	    model.tokenCount = tokenCount;
+	    model.calculateProbs();
+	    return model;
+	}
+    }
+
+    /** Swap the IDs of <S> and </S> */
+    protected static int swapEnds(int id) {
+	return id == Vocabulary.START ? Vocabulary.END : id == Vocabulary.END ? Vocabulary.START : id;
+    }
+
+    /** Merge count files, in the order of the shards they count, into a
+     *  trained forward, backward or bidirectional model */
+    public static BigramModel merge(List<File> files, String kind) throws IOException {
+	boolean forward = kind.equals("forward") || kind.equals("bidirectional");
+	boolean backward = kind.equals("backward") || kind.equals("bidirectional");
+	if (!forward && !backward)
+	    throw new IllegalArgumentException("Unknown model: " + kind);
+	Merger forwardCounts = forward ? new Merger(false) : null;
+	Merger backwardCounts = backward ? new Merger(true) : null;
+	for (File file : files) {
+	    CountFile shard = read(file);
+	    if (forward)
+		forwardCounts.add(shard);
+	    if (backward)
+		backwardCounts.add(shard);
+	}
+	if (!backward)
+	    return forwardCounts.toModel();
+	if (!forward)
+	    return backwardCounts.toModel();
+	BidirectionalBigramModel model = new BidirectionalBigramModel(forwardCounts.toModel(), backwardCounts.toModel(), 0.5, 0.5);
+	model.calculateProbs();
+	return model;
+    }
+
+    /** Count a shard of a corpus into a count file, or merge count files into
+     *  a saved model (see ModelFile).
+     *  Command format: "lm.CountFile count [-shard I/N] COUNTS [DIR]*" counts
+     *  the sentences of DIR (as for BigramModel), or with -shard only the
+     *  I'th of N contiguous slices of them (from 0), into the file COUNTS;
+     *  "lm.CountFile merge [-model forward|backward|bidirectional] MODEL
+     *  [COUNTS]*" merges count files, in the order of their shards, into a
+     *  model (default forward) saved to the file MODEL */
+    public static void main(String[] args) throws IOException {
+	if (args.length < 2)
+	    throw new IllegalArgumentException("Usage: lm.CountFile count [-shard I/N] COUNTS [DIR]* | " +
+					       "merge [-model forward|backward|bidirectional] MODEL [COUNTS]*");
+	String command = args[0];
+	int i = 1;
+	if (command.equals("count")) {
+	    int shard = 0;
+	    int numShards = 1;
+	    if (args[i].equals("-shard")) {
+		String[] parts = args[i + 1].split("/");
+		shard = Integer.parseInt(parts[0]);
+		numShards = Integer.parseInt(parts[1]);
+		if (shard < 0 || shard >= numShards)
+		    throw new IllegalArgumentException("Bad shard: " + args[i + 1]);
+		i += 2;
+	    }
+	    File out = new File(args[i++]);
+	    File[] files = new File[args.length - i];
+	    for (int j = 0; j < files.length; j++)
+		files[j] = new File(args[i + j]);
+	    long start = System.nanoTime();
+	    // Stream the shard's sentences; the split needs the number of them first
+	    long from = 0;
+	    long to = Long.MAX_VALUE;
+	    if (numShards > 1) {
+		long numSentences = POSTaggedFile.countSentences(files);
+		from = numSentences * shard / numShards;
+		to = numSentences * (shard + 1) / numShards;
+	    }
+	    CountFile counts = new CountFile();
+	    try (Stream<List<String>> sentences = POSTaggedFile.sentenceStream(files)) {
+		counts.countSentences(sentences.skip(from).limit(to - from).iterator());
+	    }
+	    counts.write(out);
+	    System.out.println("Counted " + counts.numSentences + " sentences (" + (long) counts.tokenCount + " tokens, " +
+			       counts.vocab.size() + " types, " + counts.bigramTable.size() + " bigrams) into " + out +
+			       " in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+	else if (command.equals("merge")) {
+	    String kind = "forward";
+	    if (args[i].equals("-model")) {
+		kind = args[i + 1];
+		i += 2;
+	    }
+	    File out = new File(args[i++]);
+	    List<File> files = new ArrayList<File>();
+	    for (; i < args.length; i++)
+		files.add(new File(args[i]));
+	    long start = System.nanoTime();
+	    BigramModel model = merge(files, kind);
+	    ModelFile.save(model, out);
+	    System.out.println("Merged " + files.size() + " count files into a " + kind + " model of " +
+			       model.tableSize() + " bigrams, saved to " + out + " in " +
+			       (System.nanoTime() - start) / 1000000 + " ms");
+	}
+	else
+	    throw new IllegalArgumentException("Unknown command: " + command);
+    }
+}
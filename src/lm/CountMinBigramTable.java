@@ -0,0 +1,413 @@
+package lm;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A BigramTable of approximate counts in a fixed memory budget, for text
+ * too large for the exact table. Counts are kept in a Count-Min sketch:
+ * depth rows of width int counters, each bigram hashed to one counter per
+ * row, with its count estimated as the smallest of them. Updates are
+ * conservative (only the counters below the new estimate are raised), so
+ * an estimate is never below the true count and is above it only by the
+ * counts of colliding bigrams. Since most of the bigrams a model asks about
+ * were never seen, get subtracts the count expected to collide with a
+ * bigram; otherwise every unseen bigram would get some probability and a
+ * context's probabilities would sum to far more than one. Counts no larger
+ * than that correction are lost, much as with a count cutoff.
+ *
+ * Optionally the most frequent bigrams are also held exactly in a bounded
+ * heavy-hitter table (a min-heap by count): a bigram whose estimate beats
+ * the least frequent heavy hitter takes its place, starting from its
+ * estimate, and then counts exactly without touching the sketch, which
+ * keeps the largest counts from colliding with the rest. An evicted
+ * bigram's count is returned to the sketch.
+ *
+ * Only the heavy hitters are stored as keys, so size, contains and the
+ * slot methods (capacity, keyAt, valueAt) cover only them, and the table
+ * cannot be saved or compacted. Unigram counts stay exact in the model,
+ * as they grow with the vocabulary rather than with the bigrams.
+ *
+ * @author TSM
+ */
+
+public class CountMinBigramTable extends BigramTable {
+
+    /** Default number of sketch rows */
+    public static final int DEFAULT_DEPTH = 4;
+
+    /** Default fraction of the memory budget given to heavy hitters */
+    public static final double DEFAULT_HEAVY_FRACTION = 0.25;
+
+    /** Number of rows, and counters in each (a power of two) */
+    public final int depth;
+    public final int width;
+
+    /** Counters, row by row; counts saturate at Integer.MAX_VALUE */
+    protected final int[] counters;
+
+    /** Maximum number of heavy hitters */
+    public final int maxHeavy;
+
+    /** Heavy-hitter keys and exact counts, as a min-heap by count */
+    protected final long[] heavyKeys;
+    protected final double[] heavyCounts;
+    protected int numHeavy = 0;
+
+    /** Total of the counts added to the sketch */
+    protected long sketchTotal = 0;
+
+    /** Heap index + 1 of each heavy hitter by key */
+    protected final BigramTable heavyIndex;
+
+    /** Create a sketch of depth rows of width counters each (rounded up
+     *  to a power of two), with at most maxHeavy exact heavy hitters */
+    public CountMinBigramTable(int depth, int width, int maxHeavy) {
+	super(0);
+	if (depth < 1 || width < 1 || maxHeavy < 0)
+	    throw new IllegalArgumentException("Bad sketch size: depth " + depth + ", width " + width +
+					       ", heavy hitters " + maxHeavy);
+	int w = Integer.highestOneBit(width);
+	if (w < width)
+	    w *= 2;
+	if ((long) depth * w > Integer.MAX_VALUE - 8)
+	    throw new IllegalArgumentException("Sketch too large: depth " + depth + ", width " + w);
+	this.depth = depth;
+	this.width = w;
+	counters = new int[depth * w];
+	this.maxHeavy = maxHeavy;
+	heavyKeys = new long[maxHeavy];
+	heavyCounts = new double[maxHeavy];
+	heavyIndex = new BigramTable(maxHeavy);
+    }
+
+    /** Create a sketch of depth rows and a heavy-hitter table that fit in
+     *  budgetBytes, heavyFraction of them for the heavy hitters */
+    public static CountMinBigramTable forBudget(long budgetBytes, int depth, double heavyFraction) {
+	if (depth < 1)
+	    throw new IllegalArgumentException("Need at least one row: " + depth);
+	if (heavyFraction < 0 || heavyFraction >= 1)
+	    throw new IllegalArgumentException("Heavy-hitter fraction must be in [0, 1): " + heavyFraction);
+	// Each heavy hitter takes a heap key and count and an index slot, and the
+	// index holds at most MAX_LOAD of its slots (see BigramTable.insert)
+	long heavyBudget = (long) (budgetBytes * heavyFraction);
+	int maxHeavy = 0;
+	for (long capacity = 16; 16 * capacity + 16 * (long) (capacity * MAX_LOAD) <= heavyBudget; capacity *= 2)
+	    maxHeavy = (int) (capacity * MAX_LOAD);
+	long sketchBudget = budgetBytes - (maxHeavy == 0 ? 0 : heavyIndexBytes(maxHeavy));
+	long width = Long.highestOneBit(Math.max(1, sketchBudget / (4L * depth)));
+	if (4L * depth * width > sketchBudget)
+	    throw new IllegalArgumentException("Budget of " + budgetBytes + " bytes is too small for " + depth + " rows");
+	return new CountMinBigramTable(depth, (int) Math.min(width, Integer.highestOneBit((1 << 30) / depth)), maxHeavy);
+    }
+
+    /** Return the bytes of a heavy-hitter table for maxHeavy bigrams */
+    protected static long heavyIndexBytes(int maxHeavy) {
+	return 16L * maxHeavy + 16L * capacityFor(maxHeavy);
+    }
+
+    /** Replace the bigram table of an untrained model with sketches that fit
+     *  in budgetBytes; a bidirectional model's forward and backward models
+     *  get half the budget each */
+    public static void install(BigramModel model, long budgetBytes, int depth, double heavyFraction) {
+	if (model instanceof SharedBidirectionalBigramModel)
+	    throw new IllegalArgumentException("Sketch the models of a BidirectionalBigramModel instead of a shared one");
+	if (model instanceof NgramModel)
+	    throw new IllegalArgumentException("Only bigram tables can be sketched, not an NgramModel's trie");
+	if (model instanceof BidirectionalBigramModel) {
+	    BidirectionalBigramModel bidirectional = (BidirectionalBigramModel) model;
+	    install(bidirectional.getForwardModel(), budgetBytes / 2, depth, heavyFraction);
+	    install(bidirectional.getBackwardModel(), budgetBytes / 2, depth, heavyFraction);
+	}
+	else {
+	    if (model.bigramTable.size() > 0)
+		throw new IllegalStateException("Install a sketch before training the model");
+	    model.bigramTable = forBudget(budgetBytes, depth, heavyFraction);
+	}
+    }
+
+    /** Spread all the bits of a key, to derive a counter in each row */
+    protected static long mix(long key) {
+	key ^= key >>> 33;
+	key *= 0xff51afd7ed558ccdL;
+	key ^= key >>> 33;
+	key *= 0xc4ceb9fe1a85ec53L;
+	key ^= key >>> 33;
+	return key;
+    }
+
+    /** Return the index in counters of the counter for hash in row, by double
+     *  hashing the two halves of the mixed key */
+    protected int counter(long hash, int row) {
+	return row * width + (((int) hash + row * ((int) (hash >>> 32) | 1)) & (width - 1));
+    }
+
+    /** Return the sketch's estimate of the count of key */
+    protected long estimate(long key) {
+	long hash = mix(key);
+	int min = Integer.MAX_VALUE;
+	for (int row = 0; row < depth; row++)
+	    min = Math.min(min, counters[counter(hash, row)]);
+	return min;
+    }
+
+    /** Raise the counters of key to at least count and return its new estimate */
+    protected long raise(long key, long count) {
+	long hash = mix(key);
+	int target = (int) Math.min(count, Integer.MAX_VALUE);
+	int min = Integer.MAX_VALUE;
+	for (int row = 0; row < depth; row++) {
+	    int c = counter(hash, row);
+	    if (counters[c] < target)
+		counters[c] = target;
+	    min = Math.min(min, counters[c]);
+	}
+	return min;
+    }
+
+    /** Return the exact count of key if it is a heavy hitter, otherwise its
+     *  estimate less the count expected to collide with it in a counter (the
+     *  sketch total over the width), or 0 if that leaves nothing */
+    @Override
+    public double get(long key) {
+	int heap = (int) heavyIndex.get(key);
+	if (heap != 0)
+	    return heavyCounts[heap - 1];
+	double count = estimate(key) - (double) sketchTotal / width;
+	return count > 0 ? count : 0;
+    }
+
+    /** Return whether key is a heavy hitter; other bigrams are not stored as keys */
+    @Override
+    public boolean contains(long key) {
+	return heavyIndex.contains(key);
+    }
+
+    /** Counts can only be added to */
+    @Override
+    public void put(long key, double value) {
+	throw new UnsupportedOperationException("Sketched counts can only be added to");
+    }
+
+    /** Add n (rounded up to a whole count) to the count of key and return
+     *  its new count or estimate */
+    @Override
+    public double add(long key, double n) {
+	int heap = (int) heavyIndex.get(key);
+	if (heap != 0) {
+	    double count = heavyCounts[heap - 1] += n;
+	    siftDown(heap - 1);
+	    return count;
+	}
+	// Conservative update: raise each counter only as far as the new estimate
+	long whole = (long) Math.ceil(n);
+	sketchTotal += whole;
+	long count = raise(key, estimate(key) + whole);
+	if (maxHeavy > 0 && (numHeavy < maxHeavy || count > heavyCounts[0]))
+	    promote(key, count);
+	return count;
+    }
+
+    /** Make key a heavy hitter with count, evicting the least frequent if full */
+    protected void promote(long key, double count) {
+	if (numHeavy < maxHeavy) {
+	    place(numHeavy++, key, count);
+	    siftUp(numHeavy - 1);
+	}
+	else {
+	    long evicted = heavyKeys[0];
+	    long evictedCount = (long) Math.ceil(heavyCounts[0]);
+	    // Return the counts it gained as a heavy hitter to the sketch
+	    sketchTotal += Math.max(0, evictedCount - estimate(evicted));
+	    raise(evicted, evictedCount);
+	    heavyIndex.remove(evicted);
+	    place(0, key, count);
+	    siftDown(0);
+	}
+    }
+
+    /** Put key and count at heap index i */
+    private void place(int i, long key, double count) {
+	heavyKeys[i] = key;
+	heavyCounts[i] = count;
+	heavyIndex.put(key, i + 1);
+    }
+
+    /** Move the heavy hitter at heap index i up past larger parents */
+    private void siftUp(int i) {
+	long key = heavyKeys[i];
+	double count = heavyCounts[i];
+	while (i > 0) {
+	    int parent = (i - 1) >>> 1;
+	    if (heavyCounts[parent] <= count)
+		break;
+	    place(i, heavyKeys[parent], heavyCounts[parent]);
+	    i = parent;
+	}
+	place(i, key, count);
+    }
+
+    /** Move the heavy hitter at heap index i down past smaller children */
+    private void siftDown(int i) {
+	long key = heavyKeys[i];
+	double count = heavyCounts[i];
+	while (true) {
+	    int child = 2 * i + 1;
+	    if (child >= numHeavy)
+		break;
+	    if (child + 1 < numHeavy && heavyCounts[child + 1] < heavyCounts[child])
+		child++;
+	    if (heavyCounts[child] >= count)
+		break;
+	    place(i, heavyKeys[child], heavyCounts[child]);
+	    i = child;
+	}
+	place(i, key, count);
+    }
+
+    /** Return the number of heavy hitters */
+    @Override
+    public int size() {
+	return numHeavy;
+    }
+
+    /** Every heap index below size is a slot holding a heavy hitter */
+    @Override
+    public int capacity() {
+	return numHeavy;
+    }
+
+    @Override
+    public long keyAt(int slot) {
+	return heavyKeys[slot];
+    }
+
+    @Override
+    public boolean isUsed(int slot) {
+	return slot < numHeavy;
+    }
+
+    @Override
+    public double valueAt(int slot) {
+	return heavyCounts[slot];
+    }
+
+    @Override
+    public void setValueAt(int slot, double value) {
+	throw new UnsupportedOperationException("Sketched counts can only be added to");
+    }
+
+    @Override
+    protected int insert(long key) {
+	throw new UnsupportedOperationException("Sketched counts can only be added to");
+    }
+
+    /** Return the bytes of the counters and the heavy-hitter table */
+    public long bytes() {
+	return 4L * counters.length + (maxHeavy == 0 ? 0 : heavyIndexBytes(maxHeavy));
+    }
+
+    /** Return the total probability model gives every token after prevId,
+     *  caching it in masses[prevId] */
+    protected static double contextMass(BigramModel model, double[] masses, int prevId) {
+	if (masses[prevId] == 0) {
+	    for (int id = Vocabulary.END; id < masses.length; id++) {
+		if (model.unigram[id] != 0)
+		    masses[prevId] += model.interpolatedProb(prevId, id);
+	    }
+	}
+	return masses[prevId];
+    }
+
+    /** Return {mean context mass, normalized perplexity} of a forward or
+     *  backward model on sentences, predicting end-of-sentence. The context
+     *  mass of a prediction is the total probability the model gives every
+     *  token in its context; overestimated counts push it above one and the
+     *  perplexity below what it should be. The normalized perplexity divides
+     *  each prediction by its context mass */
+    public static double[] contextMassPerplexity(BigramModel model, List<List<String>> sentences) {
+	if (model instanceof BidirectionalBigramModel)
+	    throw new IllegalArgumentException("Bidirectional predictions have no single context");
+	boolean backward = model instanceof BackwardBigramModel;
+	double[] masses = new double[model.vocab.size()];
+	double totalMass = 0;
+	double totalLogProb = 0;
+	double totalNumTokens = 0;
+	for (List<String> sentence : sentences) {
+	    int length = sentence.size();
+	    int prevId = Vocabulary.START;
+	    for (int k = 0; k <= length; k++) {
+		int id = k < length ? model.scoringId(sentence.get(backward ? length - 1 - k : k)) : Vocabulary.END;
+		double mass = contextMass(model, masses, prevId);
+		totalMass += mass;
+		totalLogProb += Math.log(model.interpolatedProb(prevId, id) / mass);
+		prevId = id;
+	    }
+	    totalNumTokens += length + 1;
+	}
+	return new double[] {totalMass / totalNumTokens, Math.exp(-totalLogProb / totalNumTokens)};
+    }
+
+    /** Train an exact and a sketched model of the same kind, and report the
+     *  memory of each against the perplexity lost on the held-out split, as
+     *  scored and normalized, with the mean context mass of each (see
+     *  contextMassPerplexity): scored perplexities are comparable only while
+     *  the sketch's mass stays near one.
+     *  Command format: "lm.CountMinBigramTable [-model forward|backward]
+     *  [-budget KB] [-depth D] [-heavy F] [DIR]* TestFrac" where KB is the
+     *  memory budget of the bigram counts in kilobytes (default 1024), D the
+     *  number of sketch rows (default 4), F the fraction of the budget for
+     *  exact heavy hitters (default 0.25), and DIR and TestFrac are as for
+     *  BigramModel */
+    public static void main(String[] args) throws IOException {
+	String kind = "forward";
+	long budget = 1024 * 1024;
+	int depth = DEFAULT_DEPTH;
+	double heavyFraction = DEFAULT_HEAVY_FRACTION;
+	int i = 0;
+	for (; i < args.length && args[i].startsWith("-"); i += 2) {
+	    if (args[i].equals("-model"))
+		kind = args[i + 1];
+	    else if (args[i].equals("-budget"))
+		budget = Long.parseLong(args[i + 1]) * 1024;
+	    else if (args[i].equals("-depth"))
+		depth = Integer.parseInt(args[i + 1]);
+	    else if (args[i].equals("-heavy"))
+		heavyFraction = Double.parseDouble(args[i + 1]);
+	    else
+		throw new IllegalArgumentException("Unknown option: " + args[i]);
+	}
+	if (!kind.equals("forward") && !kind.equals("backward"))
+	    throw new IllegalArgumentException("Unknown model: " + kind);
+	File[] files = new File[args.length - i - 1];
+	for (int j = 0; j < files.length; j++)
+	    files[j] = new File(args[i + j]);
+	double testFraction = Double.valueOf(args[args.length - 1]);
+	Corpus sentences = Corpus.load(files);
+	int numSentences = sentences.size();
+	int numTest = (int)Math.round(numSentences * testFraction);
+	Corpus testSentences = sentences.subList(numSentences - numTest, numSentences);
+	Corpus trainSentences = sentences.subList(0, numSentences - numTest);
+	BigramModel exact = CrossValidator.modelFactory(kind, 2).get();
+	BigramModel sketched = CrossValidator.modelFactory(kind, 2).get();
+	install(sketched, budget, depth, heavyFraction);
+	System.out.println("Training...");
+	exact.train(trainSentences);
+	sketched.train(trainSentences);
+	ModelCompactor.report("Exact", exact, testSentences);
+	ModelCompactor.report("Sketch", sketched, testSentences);
+	double[] exactNormalized = contextMassPerplexity(exact, testSentences);
+	double[] sketchNormalized = contextMassPerplexity(sketched, testSentences);
+	System.out.println("Mean Context Mass: Exact = " + exactNormalized[0] + ", Sketch = " + sketchNormalized[0]);
+	System.out.println("Normalized Perplexity: Exact = " + exactNormalized[1] + ", Sketch = " + sketchNormalized[1]);
+	double exactPerplexity = ModelCompactor.perplexity(exact, testSentences, true);
+	double sketchPerplexity = ModelCompactor.perplexity(sketched, testSentences, true);
+	long exactBytes = ModelCompactor.bigramBytes(exact);
+	System.out.println("Budget = " + (budget / 1024) + " KB (" + depth + " rows, " +
+			   (100 * heavyFraction) + "% heavy hitters), Memory saved = " +
+			   (100.0 * (exactBytes - ModelCompactor.bigramBytes(sketched)) / exactBytes) +
+			   "%, Perplexity lost = " + (100.0 * (sketchPerplexity - exactPerplexity) / exactPerplexity) +
+			   "%, Normalized Perplexity lost = " +
+			   (100.0 * (sketchNormalized[1] - exactNormalized[1]) / exactNormalized[1]) + "%");
+    }
+}
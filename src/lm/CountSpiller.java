@@ -0,0 +1,338 @@
+package lm;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * External-memory bigram counting for a BigramModel whose bigram table
+ * would not fit in the heap (see BigramModel.spillCounts). The model counts
+ * into an in-memory table of at most maxBigrams bigrams; when it is full
+ * (checked before each sentence) its counts are sorted by key and spilled
+ * to disk as a run, and the table is cleared. calculateProbs then merges
+ * the runs, at most MAX_FAN_IN at a time, summing the counts of equal
+ * keys, into one run whose key and count files have the layout of a model
+ * file's bigram section, and memory-maps it as the model's bigram table
+ * (see MappedBigramTable). The model then scores from the mapped counts,
+ * and ModelFile.save streams them into a model file without sorting.
+ *
+ * A run is a file of its bigram keys (packed (id1, id2), see BigramTable.key)
+ * in ascending order and a file of their counts in the same order. Training
+ * more after the merge makes the merged run an input to the next merge.
+ * Unigram counts stay in memory, as they grow with the vocabulary rather
+ * than with the bigrams. Runs are deleted once merged and the rest at exit.
+ *
+ * @author TSM
+ */
+
+public class CountSpiller {
+
+    /** Maximum number of runs merged at once */
+    public static final int MAX_FAN_IN = 64;
+
+    /** Bytes of buffer for each run file read or written */
+    protected static final int BUFFER_SIZE = 1 << 16;
+
+    /** A sorted run of bigram counts */
+    protected static class Run {
+	/** Files of the keys in ascending order and of their counts */
+	final File keys;
+	final File counts;
+
+	/** Number of bigrams in the run */
+	final long numBigrams;
+
+	Run(File keys, File counts, long numBigrams) {
+	    this.keys = keys;
+	    this.counts = counts;
+	    this.numBigrams = numBigrams;
+	}
+
+	void delete() {
+	    keys.delete();
+	    counts.delete();
+	}
+    }
+
+    /** Directory the runs are written to */
+    public final File dir;
+
+    /** Number of bigrams the in-memory table holds before it is spilled */
+    public final int maxBigrams;
+
+    /** Runs waiting to be merged */
+    protected final List<Run> runs = new ArrayList<Run>();
+
+    /** Run mapped as the model's bigram table after the last merge, and the table */
+    protected Run merged = null;
+    protected MappedBigramTable mergedTable = null;
+
+    /** Number of runs spilled from memory, bytes written to runs (spilled
+     *  and merged), and the number and time of merges */
+    protected int numSpills = 0;
+    protected long bytesWritten = 0;
+    protected int numMerges = 0;
+    protected long mergeNanos = 0;
+
+    /** Create a spiller whose in-memory table fits in budgetBytes, writing
+     *  runs to dir, or to a new temporary directory if dir is null */
+    public CountSpiller(File dir, long budgetBytes) throws IOException {
+	// A table sized for n bigrams never rehashes, and spilling sorts n keys
+	int maxBigrams = 0;
+	for (long n = 1024; n <= Integer.MAX_VALUE / 2 && 16L * BigramTable.capacityFor((int) n) + 8 * n <= budgetBytes; n *= 2)
+	    maxBigrams = (int) n;
+	if (maxBigrams == 0)
+	    throw new IllegalArgumentException("Budget of " + budgetBytes + " bytes is too small to count bigrams in");
+	this.maxBigrams = maxBigrams;
+	if (dir == null) {
+	    dir = Files.createTempDirectory("lm-spill").toFile();
+	    dir.deleteOnExit();
+	}
+	else if (!dir.isDirectory() && !dir.mkdirs())
+	    throw new IOException("Could not create spill directory: " + dir);
+	this.dir = dir;
+    }
+
+    /** Return an empty in-memory table for the model to count into */
+    protected BigramTable newTable() {
+	return new BigramTable(maxBigrams);
+    }
+
+    /** Called before each sentence the model counts: spill its table if it is
+     *  full, or give it a new one if it is the mapped result of a merge */
+    protected void makeRoom(BigramModel model) {
+	if (mergedTable != null && model.bigramTable == mergedTable) {
+	    // Training resumed: the merged counts are merged again with the new
+	    runs.add(merged);
+	    merged = null;
+	    mergedTable = null;
+	    model.bigramTable = newTable();
+	}
+	else if (model.bigramTable.size() >= maxBigrams) {
+	    try {
+		spill(model.bigramTable);
+	    }
+	    catch (IOException e) {
+		throw new UncheckedIOException(new IOException("Could not spill bigram counts to " + dir, e));
+	    }
+	    model.bigramTable.clear();
+	}
+    }
+
+    /** Write the counts of table to a new run */
+    protected void spill(BigramTable table) throws IOException {
+	long[] keys = new long[table.size()];
+	int n = 0;
+	for (int slot = 0; slot < table.capacity(); slot++) {
+	    if (table.isUsed(slot))
+		keys[n++] = table.keyAt(slot);
+	}
+	Arrays.sort(keys);
+	File keyFile = newRunFile("keys");
+	File countFile = newRunFile("counts");
+	try (DataOutputStream keyOut = output(keyFile); DataOutputStream countOut = output(countFile)) {
+	    for (long key : keys) {
+		keyOut.writeLong(key);
+		countOut.writeDouble(table.get(key));
+	    }
+	}
+	runs.add(new Run(keyFile, countFile, n));
+	numSpills++;
+	bytesWritten += 16L * n;
+    }
+
+    /** Called by calculateProbs: if any counts were spilled, spill the rest,
+     *  merge every run into one, and make it the model's bigram table */
+    protected void merge(BigramModel model) {
+	if (runs.isEmpty())
+	    return;
+	long start = System.nanoTime();
+	try {
+	    if (model.bigramTable.size() > 0)
+		spill(model.bigramTable);
+	    model.bigramTable = null;
+	    // Merge the oldest runs first, so each pass reads every count about once
+	    while (runs.size() > 1) {
+		List<Run> inputs = new ArrayList<Run>(runs.subList(0, Math.min(MAX_FAN_IN, runs.size())));
+		runs.subList(0, inputs.size()).clear();
+		runs.add(mergeRuns(inputs));
+	    }
+	    merged = runs.remove(0);
+	    mergedTable = map(merged);
+	    model.bigramTable = mergedTable;
+	}
+	catch (IOException e) {
+	    throw new UncheckedIOException(new IOException("Could not merge bigram counts in " + dir, e));
+	}
+	numMerges++;
+	mergeNanos += System.nanoTime() - start;
+    }
+
+    /** Merge sorted runs into a new one, summing the counts of equal keys,
+     *  and delete them */
+    protected Run mergeRuns(List<Run> inputs) throws IOException {
+	int k = inputs.size();
+	DataInputStream[] keyIns = new DataInputStream[k];
+	DataInputStream[] countIns = new DataInputStream[k];
+	long[] remaining = new long[k];
+	// Next key of each run, and a min-heap of the runs by it
+	long[] heads = new long[k];
+	int[] heap = new int[k];
+	int heapSize = 0;
+	File keyFile = newRunFile("keys");
+	File countFile = newRunFile("counts");
+	long n = 0;
+	try (DataOutputStream keyOut = output(keyFile); DataOutputStream countOut = output(countFile)) {
+	    for (int r = 0; r < k; r++) {
+		keyIns[r] = input(inputs.get(r).keys);
+		countIns[r] = input(inputs.get(r).counts);
+		remaining[r] = inputs.get(r).numBigrams;
+		if (remaining[r] > 0) {
+		    heads[r] = keyIns[r].readLong();
+		    heap[heapSize++] = r;
+		    siftUp(heap, heapSize - 1, heads);
+		}
+	    }
+	    long key = -1;
+	    double count = 0;
+	    while (heapSize > 0) {
+		int r = heap[0];
+		if (heads[r] != key) {
+		    if (key >= 0) {
+			keyOut.writeLong(key);
+			countOut.writeDouble(count);
+			n++;
+		    }
+		    key = heads[r];
+		    count = 0;
+		}
+		count += countIns[r].readDouble();
+		if (--remaining[r] > 0)
+		    heads[r] = keyIns[r].readLong();
+		else
+		    heap[0] = heap[--heapSize];
+		siftDown(heap, heapSize, 0, heads);
+	    }
+	    if (key >= 0) {
+		keyOut.writeLong(key);
+		countOut.writeDouble(count);
+		n++;
+	    }
+	}
+	finally {
+	    for (int r = 0; r < k; r++) {
+		if (keyIns[r] != null)
+		    keyIns[r].close();
+		if (countIns[r] != null)
+		    countIns[r].close();
+	    }
+	}
+	for (Run input : inputs)
+	    input.delete();
+	bytesWritten += 16L * n;
+	return new Run(keyFile, countFile, n);
+    }
+
+    /** Move heap[i] up past parents with larger heads */
+    private static void siftUp(int[] heap, int i, long[] heads) {
+	int r = heap[i];
+	while (i > 0 && heads[heap[(i - 1) >>> 1]] > heads[r]) {
+	    heap[i] = heap[(i - 1) >>> 1];
+	    i = (i - 1) >>> 1;
+	}
+	heap[i] = r;
+    }
+
+    /** Move heap[i] down past children with smaller heads */
+    private static void siftDown(int[] heap, int size, int i, long[] heads) {
+	if (i >= size)
+	    return;
+	int r = heap[i];
+	while (true) {
+	    int child = 2 * i + 1;
+	    if (child >= size)
+		break;
+	    if (child + 1 < size && heads[heap[child + 1]] < heads[heap[child]])
+		child++;
+	    if (heads[heap[child]] >= heads[r])
+		break;
+	    heap[i] = heap[child];
+	    i = child;
+	}
+	heap[i] = r;
+    }
+
+    /** Memory-map a run as a read-only bigram table, in chunks (see
+     *  MappedBigramTable.map), so it may be larger than one 2 GB mapping */
+    protected static MappedBigramTable map(Run run) throws IOException {
+	try (FileChannel keys = FileChannel.open(run.keys.toPath(), StandardOpenOption.READ);
+	     FileChannel counts = FileChannel.open(run.counts.toPath(), StandardOpenOption.READ)) {
+	    return MappedBigramTable.map(keys, 0, counts, 0, run.numBigrams);
+	}
+    }
+
+    /** Return a new file in dir for part of a run, deleted at exit */
+    protected File newRunFile(String part) throws IOException {
+	File file = File.createTempFile("run", "." + part, dir);
+	file.deleteOnExit();
+	return file;
+    }
+
+    protected static DataOutputStream output(File file) throws IOException {
+	return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    }
+
+    protected static DataInputStream input(File file) throws IOException {
+	return new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+    }
+
+    /** Return whether counts have been spilled that calculateProbs has not merged */
+    public boolean hasUnmergedRuns() {
+	return !runs.isEmpty();
+    }
+
+    /** Return the number of runs spilled from memory */
+    public int getNumSpills() {
+	return numSpills;
+    }
+
+    /** Return the bytes written to runs, spilled and merged */
+    public long getBytesWritten() {
+	return bytesWritten;
+    }
+
+    /** Return the total time spent merging, in milliseconds */
+    public long getMergeMillis() {
+	return mergeNanos / 1000000;
+    }
+
+    /** Return a one-line summary of the spilling so far */
+    public String summary() {
+	return numSpills + " spills of up to " + maxBigrams + " bigrams, " + (bytesWritten >> 10) + " KB written, " +
+	    numMerges + " merges in " + getMergeMillis() + " ms" +
+	    (merged != null ? ", " + merged.numBigrams + " bigrams mapped" : "");
+    }
+
+    /** Spill the bigram counts of an untrained model if the lm.spill system
+     *  property gives a memory budget in megabytes, writing the runs to the
+     *  lm.spillDir directory (default a temporary one) */
+    public static void install(BigramModel model) throws IOException {
+	long budgetMB = Long.getLong("lm.spill", 0);
+	if (budgetMB <= 0)
+	    return;
+	String dir = System.getProperty("lm.spillDir");
+	model.spillCounts(dir == null ? null : new File(dir), budgetMB << 20);
+    }
+
+    /** Print the spilling summary of model, or of its forward and backward
+     *  models, if its counts are spilled */
+    public static void report(BigramModel model, PrintStream out) {
+	if (model instanceof BidirectionalBigramModel && !(model instanceof SharedBidirectionalBigramModel)) {
+	    report(((BidirectionalBigramModel) model).getForwardModel(), out);
+	    report(((BidirectionalBigramModel) model).getBackwardModel(), out);
+	}
+	else if (model.getSpiller() != null)
+	    out.println("Spilled " + model.getClass().getSimpleName() + " counts: " + model.getSpiller().summary());
+    }
+}
@@ -0,0 +1,264 @@
+package lm;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * K-fold cross-validation of a kind of model over one parsed Corpus. The
+ * sentences are split into k contiguous folds; for each fold a new model
+ * is trained on the other folds and tested on it. The corpus is parsed
+ * once and only read by the folds (training reads slices of it without
+ * copying), so the folds can be trained and tested concurrently, each on
+ * its own model. Results are reported per fold and in aggregate, both as
+ * the mean over folds and pooled over every test token.
+ *
+ * @author TSM
+ */
+
+public class CrossValidator {
+
+    /** Perplexities and time of one fold */
+    public static class FoldResult {
+	/** Index of the fold, from 0 */
+	public final int fold;
+
+	/** Number of training and test sentences */
+	public final int numTrain;
+	public final int numTest;
+
+	/** Total log prob of the test sentences with and without end-of-sentence,
+	 *  and the number of tokens each predicts */
+	public final double logProb;
+	public final double numTokens;
+	public final double wordLogProb;
+	public final double numWords;
+
+	/** Time to train and to test */
+	public final long trainMillis;
+	public final long testMillis;
+
+	public FoldResult(int fold, int numTrain, int numTest, double logProb, double numTokens,
+			  double wordLogProb, double numWords, long trainMillis, long testMillis) {
+	    this.fold = fold;
+	    this.numTrain = numTrain;
+	    this.numTest = numTest;
+	    this.logProb = logProb;
+	    this.numTokens = numTokens;
+	    this.wordLogProb = wordLogProb;
+	    this.numWords = numWords;
+	    this.trainMillis = trainMillis;
+	    this.testMillis = testMillis;
+	}
+
+	/** Perplexity including end-of-sentence, as test prints */
+	public double perplexity() {
+	    return Math.exp(-logProb / numTokens);
+	}
+
+	/** Perplexity excluding end-of-sentence, as test2 prints */
+	public double wordPerplexity() {
+	    return Math.exp(-wordLogProb / numWords);
+	}
+
+	public String toString() {
+	    return "Fold " + (fold + 1) + ": " + numTrain + " train, " + numTest + " test sentences, Perplexity = " +
+		perplexity() + ", Word Perplexity = " + wordPerplexity() + " (train " + trainMillis +
+		" ms, test " + testMillis + " ms)";
+	}
+    }
+
+    /** Sentences to cross-validate on */
+    protected final Corpus corpus;
+
+    /** Number of folds */
+    protected final int numFolds;
+
+    /** Creates an untrained model for each fold */
+    protected final Supplier<? extends BigramModel> modelFactory;
+
+    public CrossValidator(Corpus corpus, int numFolds, Supplier<? extends BigramModel> modelFactory) {
+	if (numFolds < 2 || numFolds > corpus.size())
+	    throw new IllegalArgumentException("Need 2 to " + corpus.size() + " folds: " + numFolds);
+	this.corpus = corpus;
+	this.numFolds = numFolds;
+	this.modelFactory = modelFactory;
+    }
+
+    /** Return the index of the first sentence of fold (numFolds for the end) */
+    public int foldStart(int fold) {
+	return (int) ((long) corpus.size() * fold / numFolds);
+    }
+
+    /** Train a new model on every fold but fold, in corpus order, and test it on fold */
+    public FoldResult runFold(int fold) {
+	int from = foldStart(fold);
+	int to = foldStart(fold + 1);
+	Corpus head = corpus.subList(0, from);
+	Corpus test = corpus.subList(from, to);
+	Corpus tail = corpus.subList(to, corpus.size());
+	long start = System.nanoTime();
+	BigramModel model = modelFactory.get();
+	model.trainSentences(head);
+	model.trainSentences(tail);
+	model.calculateProbs();
+	long trained = System.nanoTime();
+	double logProb = 0;
+	double wordLogProb = 0;
+	for (int s = 0; s < test.size(); s++) {
+	    logProb += model.sentenceLogProb(test, s);
+	    wordLogProb += model.sentenceLogProb2(test, s);
+	}
+	long tested = System.nanoTime();
+	int numWords = test.wordCount();
+	return new FoldResult(fold, head.size() + tail.size(), test.size(), logProb, numWords + test.size(),
+			      wordLogProb, numWords, (trained - start) / 1000000, (tested - trained) / 1000000);
+    }
+
+    /** Run every fold, numThreads at a time, and return the results in fold order */
+    public List<FoldResult> run(int numThreads) {
+	List<Callable<FoldResult>> folds = new ArrayList<Callable<FoldResult>>();
+	for (int fold = 0; fold < numFolds; fold++) {
+	    final int f = fold;
+	    folds.add(() -> runFold(f));
+	}
+	ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, numFolds)));
+	try {
+	    List<FoldResult> results = new ArrayList<FoldResult>();
+	    for (Future<FoldResult> result : pool.invokeAll(folds))
+		results.add(result.get());
+	    return results;
+	}
+	catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new RuntimeException("Interrupted while cross-validating", e);
+	}
+	catch (ExecutionException e) {
+	    throw new RuntimeException("Fold failed", e.getCause());
+	}
+	finally {
+	    pool.shutdown();
+	}
+    }
+
+    /** Print the mean and standard deviation over folds and the pooled
+     *  perplexity and word perplexity of results */
+    public static void printSummary(List<FoldResult> results, PrintStream out) {
+	double[] perplexities = new double[results.size()];
+	double[] wordPerplexities = new double[results.size()];
+	double logProb = 0, numTokens = 0, wordLogProb = 0, numWords = 0;
+	for (int i = 0; i < results.size(); i++) {
+	    FoldResult result = results.get(i);
+	    perplexities[i] = result.perplexity();
+	    wordPerplexities[i] = result.wordPerplexity();
+	    logProb += result.logProb;
+	    numTokens += result.numTokens;
+	    wordLogProb += result.wordLogProb;
+	    numWords += result.numWords;
+	}
+	out.println("Mean Perplexity = " + mean(perplexities) + " (std dev " + stdDev(perplexities) +
+		    "), Mean Word Perplexity = " + mean(wordPerplexities) + " (std dev " + stdDev(wordPerplexities) + ")");
+	out.println("Pooled Perplexity = " + Math.exp(-logProb / numTokens) +
+		    ", Pooled Word Perplexity = " + Math.exp(-wordLogProb / numWords));
+    }
+
+    /** Return the mean of values */
+    protected static double mean(double[] values) {
+	double sum = 0;
+	for (double value : values)
+	    sum += value;
+	return sum / values.length;
+    }
+
+    /** Return the sample standard deviation of values */
+    protected static double stdDev(double[] values) {
+	double mean = mean(values);
+	double sum = 0;
+	for (double value : values)
+	    sum += (value - mean) * (value - mean);
+	return Math.sqrt(sum / (values.length - 1));
+    }
+
+    /** Reset the peak usage of the heap memory pools */
+    protected static void resetPeakHeap() {
+	for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+	    if (pool.getType() == MemoryType.HEAP)
+		pool.resetPeakUsage();
+	}
+    }
+
+    /** Return the sum of the peak usage of the heap memory pools since they were reset */
+    protected static long peakHeapBytes() {
+	long bytes = 0;
+	for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+	    if (pool.getType() == MemoryType.HEAP)
+		bytes += pool.getPeakUsage().getUsed();
+	}
+	return bytes;
+    }
+
+    /** Return a factory of untrained models of a kind: forward, backward,
+     *  bidirectional or shared, of bigrams or (if order is not 2) N-grams */
+    public static Supplier<BigramModel> modelFactory(String kind, int order) {
+	if (order != 2) {
+	    if (kind.equals("forward"))
+		return () -> new NgramModel(order);
+	    if (kind.equals("backward"))
+		return () -> new BackwardNgramModel(order);
+	    if (kind.equals("bidirectional"))
+		return () -> new BidirectionalBigramModel(new NgramModel(order), new BackwardNgramModel(order), 0.5, 0.5);
+	}
+	else if (kind.equals("forward"))
+	    return BigramModel::new;
+	else if (kind.equals("backward"))
+	    return BackwardBigramModel::new;
+	else if (kind.equals("bidirectional"))
+	    return BidirectionalBigramModel::new;
+	else if (kind.equals("shared"))
+	    return SharedBidirectionalBigramModel::new;
+	throw new IllegalArgumentException("Unknown model: " + kind + (order != 2 ? " of order " + order : ""));
+    }
+
+    /** Cross-validate a model.
+     *  Command format: "lm.CrossValidator [-model forward|backward|bidirectional|shared]
+     *  [-order N] [-folds K] [-threads T] [DIR]*" where the model (default
+     *  forward) is a bigram model or, if N is not 2, an N-gram model; K is the
+     *  number of folds (default 10); T the number of folds run at once
+     *  (default the number of processors); and DIR is as for BigramModel */
+    public static void main(String[] args) throws IOException {
+	String kind = "forward";
+	int order = 2;
+	int numFolds = 10;
+	int numThreads = Runtime.getRuntime().availableProcessors();
+	List<File> fileList = new ArrayList<File>();
+	for (int i = 0; i < args.length; i++) {
+	    if (args[i].equals("-model"))
+		kind = args[++i];
+	    else if (args[i].equals("-order"))
+		order = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-folds"))
+		numFolds = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-threads"))
+		numThreads = Integer.parseInt(args[++i]);
+	    else
+		fileList.add(new File(args[i]));
+	}
+	Supplier<BigramModel> factory = modelFactory(kind, order);
+	resetPeakHeap();
+	long start = System.nanoTime();
+	Corpus sentences = Corpus.load(fileList.toArray(new File[0]));
+	long loaded = System.nanoTime();
+	System.out.println("# Sentences = " + sentences.size() + " (# words = " + sentences.wordCount() +
+			   "), " + numFolds + " folds on " + Math.min(numThreads, numFolds) + " threads");
+	System.out.println("Loaded in " + (loaded - start) / 1000000 + " ms");
+	List<FoldResult> results = new CrossValidator(sentences, numFolds, factory).run(numThreads);
+	long end = System.nanoTime();
+	for (FoldResult result : results)
+	    System.out.println(result);
+	printSummary(results, System.out);
+	System.out.println("Wall-clock = " + (end - start) / 1000000 + " ms (folds " + (end - loaded) / 1000000 +
+			   " ms), peak heap = " + peakHeapBytes() / (1 << 20) + " MB");
+    }
+}
@@ -0,0 +1,17 @@
+package lm;
+
+/**
+ * The arithmetic at the end of scoring: interpolating two component
+ * probabilities per token and summing the logs. BatchScorer gathers the
+ * component probabilities of many tokens into arrays and hands them to a
+ * kernel, so the loop can run over primitive arrays without model
+ * lookups (see BatchScorer.kernel for the implementations).
+ *
+ * @author TSM
+ */
+
+public interface InterpolationKernel {
+
+    /** Return the sum over i < n of log(weight1 * first[i] + weight2 * second[i]) */
+    double interpolatedLogSum(double[] first, double[] second, int n, double weight1, double weight2);
+}
@@ -0,0 +1,223 @@
+package lm;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Tunes the weights of a two-component linear interpolation on held-out
+ * data: lambda1 and lambda2 of a BigramModel (unigram and bigram
+ * components) or the forward and backward weights of a
+ * BidirectionalBigramModel. The probability of every held-out token
+ * (and end-of-sentence) under each component is looked up once into two
+ * arrays; the weights are then optimized over the arrays alone, by EM or
+ * by grid search, without touching the model. The weights found sum to
+ * one.
+ *
+ * @author TSM
+ */
+
+public class InterpolationTuner {
+
+    /** Probability of each held-out token under the first and second components */
+    protected final double[] first;
+    protected final double[] second;
+
+    /** EM stops after this many iterations, or sooner once the weight
+     *  changes by less than tolerance */
+    public int maxIterations = 200;
+    public double tolerance = 1e-9;
+
+    /** Create a tuner over the component probabilities of held-out tokens */
+    public InterpolationTuner(double[] first, double[] second) {
+	if (first.length != second.length)
+	    throw new IllegalArgumentException("Component probabilities differ in length");
+	this.first = first;
+	this.second = second;
+    }
+
+    /** Return the probability of each held-out token under the first component */
+    public double[] getFirstProbs() {
+	return first;
+    }
+
+    /** Return the probability of each held-out token under the second component */
+    public double[] getSecondProbs() {
+	return second;
+    }
+
+    /** Return a tuner over the unigram (first) and bigram (second) probabilities
+     *  of the tokens of sentences, each followed by end-of-sentence, in the
+     *  direction the model predicts them */
+    public static InterpolationTuner unigramBigram(BigramModel model, List<List<String>> sentences) {
+	return gather(model, sentences);
+    }
+
+    /** Return a tuner over the forward (first) and backward (second) probabilities
+     *  of the tokens of sentences, each followed by end-of-sentence */
+    public static InterpolationTuner forwardBackward(BidirectionalBigramModel model, List<List<String>> sentences) {
+	return gather(model, sentences);
+    }
+
+    /** Return a tuner over the component probabilities BatchScorer gathers from model */
+    protected static InterpolationTuner gather(BigramModel model, List<List<String>> sentences) {
+	int numTokens = BigramModel.wordCount(sentences) + sentences.size();
+	BatchScorer scorer = new BatchScorer(model, null, numTokens);
+	int i = 0;
+	for (List<String> sentence : sentences) {
+	    scorer.gather(sentence, i);
+	    i += sentence.size() + 1;
+	}
+	return new InterpolationTuner(scorer.first, scorer.second);
+    }
+
+    /** Return the log likelihood of the held-out tokens when the first component
+     *  has the given weight and the second one minus it */
+    public double logLikelihood(double weight) {
+	double logLikelihood = 0;
+	for (int i = 0; i < first.length; i++)
+	    logLikelihood += Math.log(weight * first[i] + (1 - weight) * second[i]);
+	return logLikelihood;
+    }
+
+    /** Return the perplexity of the held-out tokens when the first component
+     *  has the given weight and the second one minus it */
+    public double perplexity(double weight) {
+	return Math.exp(-logLikelihood(weight) / first.length);
+    }
+
+    /** Return the weight of the first component that maximizes the likelihood
+     *  of the held-out tokens, found by EM starting from weight */
+    public double em(double weight) {
+	for (int iteration = 0; iteration < maxIterations; iteration++) {
+	    // Expected share of each token generated by the first component
+	    double firstShare = 0;
+	    int numTokens = 0;
+	    for (int i = 0; i < first.length; i++) {
+		double weighted = weight * first[i];
+		double prob = weighted + (1 - weight) * second[i];
+		if (prob > 0) {
+		    firstShare += weighted / prob;
+		    numTokens++;
+		}
+	    }
+	    double newWeight = numTokens == 0 ? weight : firstShare / numTokens;
+	    boolean converged = Math.abs(newWeight - weight) < tolerance;
+	    weight = newWeight;
+	    if (converged)
+		break;
+	}
+	return weight;
+    }
+
+    /** Return the weight of the first component, out of 1/steps, 2/steps, ...,
+     *  (steps - 1)/steps, that maximizes the likelihood of the held-out tokens */
+    public double gridSearch(int steps) {
+	double bestWeight = 0.5;
+	double bestLogLikelihood = Double.NEGATIVE_INFINITY;
+	for (int step = 1; step < steps; step++) {
+	    double weight = (double) step / steps;
+	    double logLikelihood = logLikelihood(weight);
+	    if (logLikelihood > bestLogLikelihood) {
+		bestLogLikelihood = logLikelihood;
+		bestWeight = weight;
+	    }
+	}
+	return bestWeight;
+    }
+
+    /** Tune the weights of model by EM on held-out sentences and write them back.
+     *  For a BidirectionalBigramModel the forward and backward models are tuned
+     *  first and then the weights between them; the unigram and bigram weights
+     *  of a SharedBidirectionalBigramModel are left as they are */
+    public static void tune(BigramModel model, List<List<String>> heldOut) {
+	if (model instanceof BidirectionalBigramModel) {
+	    BidirectionalBigramModel bidirectional = (BidirectionalBigramModel) model;
+	    if (!(model instanceof SharedBidirectionalBigramModel)) {
+		tune(bidirectional.getForwardModel(), heldOut);
+		tune(bidirectional.getBackwardModel(), heldOut);
+	    }
+	    double total = bidirectional.getForwardLambda() + bidirectional.getBackwardLambda();
+	    double weight = forwardBackward(bidirectional, heldOut).em(bidirectional.getForwardLambda() / total);
+	    bidirectional.setForwardLambda(weight);
+	    bidirectional.setBackwardLambda(1 - weight);
+	}
+	else {
+	    double weight = unigramBigram(model, heldOut).em(model.lambda1 / (model.lambda1 + model.lambda2));
+	    model.lambda1 = weight;
+	    model.lambda2 = 1 - weight;
+	}
+    }
+
+    /** Print the weights of model */
+    protected static void printWeights(BigramModel model) {
+	if (model instanceof BidirectionalBigramModel) {
+	    BidirectionalBigramModel bidirectional = (BidirectionalBigramModel) model;
+	    if (!(model instanceof SharedBidirectionalBigramModel)) {
+		printWeights(bidirectional.getForwardModel());
+		printWeights(bidirectional.getBackwardModel());
+	    }
+	    System.out.println("  forwardLambda = " + bidirectional.getForwardLambda() +
+			       ", backwardLambda = " + bidirectional.getBackwardLambda());
+	}
+	else
+	    System.out.println("  " + model.getClass().getSimpleName() + ": lambda1 = " + model.lambda1 +
+			       ", lambda2 = " + model.lambda2);
+    }
+
+    /** Train a model on all but the last HeldOutFrac of the training sentences,
+     *  tune its weights on those, and compare test perplexities before and after.
+     *  Command format: "lm.InterpolationTuner [-model forward|backward|bidirectional|shared]
+     *  [-heldout HeldOutFrac] [DIR]* TestFrac" where DIR and TestFrac are as
+     *  for BigramModel and HeldOutFrac defaults to 0.1 */
+    public static void main(String[] args) throws IOException {
+	String kind = "forward";
+	double heldOutFraction = 0.1;
+	int i = 0;
+	for (; i < args.length && args[i].startsWith("-"); i += 2) {
+	    if (args[i].equals("-model"))
+		kind = args[i + 1];
+	    else if (args[i].equals("-heldout"))
+		heldOutFraction = Double.parseDouble(args[i + 1]);
+	    else
+		throw new IllegalArgumentException("Unknown option: " + args[i]);
+	}
+	File[] files = new File[args.length - i - 1];
+	for (int j = 0; j < files.length; j++)
+	    files[j] = new File(args[i + j]);
+	double testFraction = Double.valueOf(args[args.length - 1]);
+	List<List<String>> sentences = POSTaggedFile.convertToTokenLists(files);
+	int numSentences = sentences.size();
+	int numTest = (int)Math.round(numSentences * testFraction);
+	int numHeldOut = (int)Math.round((numSentences - numTest) * heldOutFraction);
+	int numTrain = numSentences - numTest - numHeldOut;
+	List<List<String>> trainSentences = sentences.subList(0, numTrain);
+	List<List<String>> heldOutSentences = sentences.subList(numTrain, numTrain + numHeldOut);
+	List<List<String>> testSentences = sentences.subList(numTrain + numHeldOut, numSentences);
+	System.out.println("# Train Sentences = " + trainSentences.size() +
+			   "\n# Held-out Sentences = " + heldOutSentences.size() +
+			   "\n# Test Sentences = " + testSentences.size());
+	BigramModel model;
+	if (kind.equals("forward"))
+	    model = new BigramModel();
+	else if (kind.equals("backward"))
+	    model = new BackwardBigramModel();
+	else if (kind.equals("bidirectional"))
+	    model = new BidirectionalBigramModel();
+	else if (kind.equals("shared"))
+	    model = new SharedBidirectionalBigramModel();
+	else
+	    throw new IllegalArgumentException("Unknown model: " + kind);
+	System.out.println("Training...");
+	model.train(trainSentences);
+	System.out.println("Before tuning:");
+	printWeights(model);
+	model.test(testSentences);
+	model.test2(testSentences);
+	long start = System.nanoTime();
+	tune(model, heldOutSentences);
+	System.out.println("Tuned in " + (System.nanoTime() - start) / 1000000 + " ms:");
+	printWeights(model);
+	model.test(testSentences);
+	model.test2(testSentences);
+    }
+}
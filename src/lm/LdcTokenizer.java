@@ -0,0 +1,299 @@
+package lm;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * Tokenizes LDC POS tagged files by scanning their memory-mapped bytes
+ * (through one reused window array), emitting each sentence as an array
+ * of token IDs in a Vocabulary. It
+ * segments sentences exactly as POSTaggedFile does: "=======" lines end
+ * a sentence, "[ @" and "*x*" lines are skipped, tokens are split on
+ * spaces and brackets, a token's "/TAG" suffix (from its last slash) is
+ * dropped, a line whose last token is tagged "/." ends a sentence, and a
+ * sentence still open at the end of a file is dropped. No String is built
+ * for a token unless it has never been seen before: token bytes are
+ * looked up in a table of the byte sequences seen so far, and only new
+ * ones are decoded (in the platform charset, as FileReader does) and
+ * added to the vocabulary.
+ *
+ * A tokenizer and its vocabulary are not thread-safe.
+ *
+ * @author TSM
+ */
+
+public class LdcTokenizer {
+
+    /** Receives each sentence the tokenizer finds */
+    public interface SentenceSink {
+	/** Take the sentence ids[0] to ids[length - 1]. The array is reused
+	 *  for the next sentence, so copy what must be kept */
+	void sentence(int[] ids, int length);
+    }
+
+    /** Vocabulary the token IDs are in */
+    protected final Vocabulary vocab;
+
+    /** Charset the token bytes are decoded in */
+    protected final Charset charset = Charset.defaultCharset();
+
+    /** Open-addressing table of entry index + 1 (0 for an empty slot) by
+     *  hash of the entry's bytes */
+    protected int[] slots = new int[1 << 12];
+
+    /** Bytes, hash and vocabulary ID of each entry, in order of addition.
+     *  Byte sequences that decode to the same token share an ID */
+    protected byte[][] entryBytes = new byte[1 << 11][];
+    protected int[] entryHashes = new int[1 << 11];
+    protected int[] entryIds = new int[1 << 11];
+    protected int numEntries = 0;
+
+    /** Window of file bytes being tokenized */
+    protected byte[] window = new byte[1 << 16];
+
+    /** Sentence being built */
+    protected int[] sentence = new int[256];
+    protected int sentenceLength = 0;
+
+    /** Bytes of the token a line may end with to end a sentence, as
+     *  POSTaggedFile's end marker */
+    private static final byte[] END_TOKEN = {'<', '/', 'S', '>'};
+
+    /** FNV-1a hash parameters for token bytes */
+    private static final int HASH_SEED = 0x811C9DC5;
+    private static final int HASH_PRIME = 0x01000193;
+
+    /** Create a tokenizer adding tokens to vocab */
+    public LdcTokenizer(Vocabulary vocab) {
+	this.vocab = vocab;
+    }
+
+    /** Return the vocabulary of the token IDs */
+    public Vocabulary getVocabulary() {
+	return vocab;
+    }
+
+    /** Tokenize LDC tagged input files or directories, in the order
+     *  POSTaggedFile.convertToTokenLists reads them, passing each sentence
+     *  to sink. Every file is read before a CorpusReadException reporting
+     *  all those that could not be */
+    public void tokenize(File[] files, SentenceSink sink) {
+	List<File> inputFiles = new ArrayList<File>();
+	List<IOException> errors = new ArrayList<IOException>();
+	POSTaggedFile.listInputFiles(files, inputFiles, errors);
+	for (File file : inputFiles) {
+	    try {
+		tokenize(file, sink);
+	    }
+	    catch (IOException e) {
+		errors.add(new IOException("Could not read from POSTaggedFile: " + file, e));
+	    }
+	}
+	if (!errors.isEmpty())
+	    throw new CorpusReadException(errors);
+    }
+
+    /** Tokenize one LDC tagged file by memory-mapping it */
+    public void tokenize(File file, SentenceSink sink) throws IOException {
+	ByteBuffer buffer;
+	try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+	    FileChannel channel = raf.getChannel();
+	    if (channel.size() > Integer.MAX_VALUE)
+		throw new IOException("File too large to map: " + file);
+	    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+	}
+	tokenize(buffer, sink);
+    }
+
+    /** Tokenize the bytes from the buffer's position to its limit as one file.
+     *  The bytes are scanned a window at a time through a reused array, which
+     *  is much faster than reading a mapped buffer byte by byte */
+    public void tokenize(ByteBuffer buffer, SentenceSink sink) {
+	sentenceLength = 0;
+	int carry = 0;
+	while (buffer.hasRemaining() || carry > 0) {
+	    // Fill the window after the unfinished line carried over from the last one
+	    if (carry == window.length)
+		window = Arrays.copyOf(window, 2 * window.length);
+	    int n = Math.min(buffer.remaining(), window.length - carry);
+	    buffer.get(window, carry, n);
+	    int end = carry + n;
+	    boolean atEnd = !buffer.hasRemaining();
+	    int done = tokenizeLines(window, end, atEnd, sink);
+	    carry = end - done;
+	    System.arraycopy(window, done, window, 0, carry);
+	    if (atEnd)
+		break;
+	}
+	// A sentence left open at the end of the file is dropped
+	sentenceLength = 0;
+    }
+
+    /** Tokenize the complete lines in bytes[0] to bytes[end - 1], and the last
+     *  line even if it is not terminated if atEnd, and return the index after
+     *  the last line tokenized */
+    protected int tokenizeLines(byte[] bytes, int end, boolean atEnd, SentenceSink sink) {
+	int pos = 0;
+	while (pos < end) {
+	    int lineStart = pos;
+	    while (pos < end && bytes[pos] != '\n' && bytes[pos] != '\r')
+		pos++;
+	    if (pos == end && !atEnd)
+		return lineStart;
+	    int lineEnd = pos++;
+	    if (lineEnd == lineStart)
+		continue;
+	    if (startsWith(bytes, lineStart, lineEnd, "=======")) {
+		// Sentence boundary
+		if (sentenceLength > 0)
+		    emit(sink);
+		continue;
+	    }
+	    // Sentence number indicator for ATIS or comment for Brown
+	    if (startsWith(bytes, lineStart, lineEnd, "[ @") || startsWith(bytes, lineStart, lineEnd, "*x*"))
+		continue;
+	    tokenizeLine(bytes, lineStart, lineEnd, sink);
+	}
+	return end;
+    }
+
+    /** Add the tokens of the line from start to end to the sentence, ending
+     *  the sentence if the line's last token is tagged "/." */
+    protected void tokenizeLine(byte[] bytes, int start, int end, SentenceSink sink) {
+	// Trim as String.trim does
+	while (start < end && (bytes[start] & 0xFF) <= ' ')
+	    start++;
+	while (end > start && (bytes[end - 1] & 0xFF) <= ' ')
+	    end--;
+	int pos = start;
+	int tokenStart = -1;
+	int tokenEnd = -1;
+	int tokenPosEnd = -1;
+	while (true) {
+	    while (pos < end && isDelimiter(bytes[pos]))
+		pos++;
+	    if (pos == end)
+		break;
+	    tokenStart = pos;
+	    int slash = -1;
+	    while (pos < end && !isDelimiter(bytes[pos])) {
+		if (bytes[pos] == '/')
+		    slash = pos;
+		pos++;
+	    }
+	    tokenPosEnd = pos;
+	    tokenEnd = slash < 0 ? pos : slash;
+	    add(intern(bytes, tokenStart, tokenEnd));
+	}
+	if (tokenStart < 0)
+	    return;
+	if (tokenPosEnd - tokenStart >= 2 && bytes[tokenPosEnd - 2] == '/' && bytes[tokenPosEnd - 1] == '.')
+	    emit(sink);
+	else if (equals(bytes, tokenStart, tokenEnd, END_TOKEN)) {
+	    // POSTaggedFile takes a last token "</S>" for its end marker
+	    sentenceLength--;
+	    emit(sink);
+	}
+    }
+
+    /** Return true if b separates tokens, as " []" does for StringTokenizer */
+    protected static boolean isDelimiter(byte b) {
+	return b == ' ' || b == '[' || b == ']';
+    }
+
+    /** Return true if the bytes from start to end begin with prefix */
+    protected static boolean startsWith(byte[] bytes, int start, int end, String prefix) {
+	if (end - start < prefix.length())
+	    return false;
+	for (int i = 0; i < prefix.length(); i++) {
+	    if (bytes[start + i] != prefix.charAt(i))
+		return false;
+	}
+	return true;
+    }
+
+    /** Return true if the bytes from start to end are token */
+    protected static boolean equals(byte[] bytes, int start, int end, byte[] token) {
+	return Arrays.equals(bytes, start, end, token, 0, token.length);
+    }
+
+    /** Append id to the sentence */
+    protected void add(int id) {
+	if (sentenceLength == sentence.length)
+	    sentence = Arrays.copyOf(sentence, 2 * sentence.length);
+	sentence[sentenceLength++] = id;
+    }
+
+    /** Pass the sentence to sink and start a new one */
+    protected void emit(SentenceSink sink) {
+	sink.sentence(sentence, sentenceLength);
+	sentenceLength = 0;
+    }
+
+    /** Return the vocabulary ID of the token in the bytes from start to end,
+     *  adding it to the vocabulary if it is new */
+    protected int intern(byte[] bytes, int start, int end) {
+	int hash = HASH_SEED;
+	for (int i = start; i < end; i++)
+	    hash = (hash ^ (bytes[i] & 0xFF)) * HASH_PRIME;
+	int mask = slots.length - 1;
+	int slot = spread(hash) & mask;
+	while (slots[slot] != 0) {
+	    int entry = slots[slot] - 1;
+	    if (entryHashes[entry] == hash && equals(bytes, start, end, entryBytes[entry]))
+		return entryIds[entry];
+	    slot = (slot + 1) & mask;
+	}
+	// New byte sequence: decode it once
+	byte[] token = Arrays.copyOfRange(bytes, start, end);
+	int id = vocab.add(new String(token, charset));
+	if (numEntries == entryIds.length) {
+	    entryBytes = Arrays.copyOf(entryBytes, 2 * numEntries);
+	    entryHashes = Arrays.copyOf(entryHashes, 2 * numEntries);
+	    entryIds = Arrays.copyOf(entryIds, 2 * numEntries);
+	}
+	entryBytes[numEntries] = token;
+	entryHashes[numEntries] = hash;
+	entryIds[numEntries] = id;
+	slots[slot] = ++numEntries;
+	if (numEntries * 2 > slots.length)
+	    rehash();
+	return id;
+    }
+
+    /** Mix the high bits of hash into the low bits that pick a slot, since
+     *  FNV-1a's low bits depend only on the low bits of the token's bytes */
+    protected static int spread(int hash) {
+	return hash ^ (hash >>> 15);
+    }
+
+    /** Double the table of slots */
+    protected void rehash() {
+	slots = new int[2 * slots.length];
+	int mask = slots.length - 1;
+	for (int entry = 0; entry < numEntries; entry++) {
+	    int slot = spread(entryHashes[entry]) & mask;
+	    while (slots[slot] != 0)
+		slot = (slot + 1) & mask;
+	    slots[slot] = entry + 1;
+	}
+    }
+
+    /** Take a list of LDC tagged input files or directories and convert them to
+     *  a List of sentences each represented as a List of token Strings, like
+     *  POSTaggedFile.convertToTokenLists but sharing one String per token */
+    public static List<List<String>> convertToTokenLists(File[] files) {
+	Vocabulary vocab = new Vocabulary();
+	List<List<String>> sentences = new ArrayList<List<String>>();
+	new LdcTokenizer(vocab).tokenize(files, (ids, length) -> {
+		List<String> sentence = new ArrayList<String>(length);
+		for (int i = 0; i < length; i++)
+		    sentence.add(vocab.token(ids[i]));
+		sentences.add(sentence);
+	    });
+	return sentences;
+    }
+}
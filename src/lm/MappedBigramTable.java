@@ -0,0 +1,172 @@
+package lm;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only BigramTable whose keys are held in ascending order in
+ * LongBuffers, with the value for each key at the same index of
+ * DoubleBuffers. The buffers are normally views of a memory-mapped model
+ * file or merged count run (see ModelFile and CountSpiller), so the table
+ * is paged in by the OS on demand and shared between processes. A single
+ * mapping holds at most 2 GB, so the keys and values are split into chunks
+ * of CHUNK_SIZE entries, each its own mapping, and a table holds up to
+ * Integer.MAX_VALUE bigrams. Lookups are binary searches and allocate
+ * nothing.
+ *
+ * @author TSM
+ */
+
+public class MappedBigramTable extends BigramTable {
+
+    /** Entries in each chunk but the last: 2^27, or 1 GB of keys or values */
+    public static final int CHUNK_SHIFT = 27;
+    public static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    protected static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /** Bigram keys in ascending order, CHUNK_SIZE to a chunk */
+    protected LongBuffer[] sortedKeys;
+
+    /** Value for the key at the same index */
+    protected DoubleBuffer[] sortedValues;
+
+    /** Number of bigrams */
+    protected int numBigrams;
+
+    /** Create a table over sorted keys and their values */
+    public MappedBigramTable(LongBuffer sortedKeys, DoubleBuffer sortedValues) {
+	this(sortedKeys.limit());
+	wrapKeys(sortedKeys);
+	for (int c = 0; c < this.sortedValues.length; c++)
+	    this.sortedValues[c] = sortedValues.slice(c << CHUNK_SHIFT, chunkLength(c));
+    }
+
+    /** Create a table of numBigrams bigrams whose chunks are yet to be set */
+    protected MappedBigramTable(int numBigrams) {
+	super(0);
+	this.numBigrams = numBigrams;
+	this.sortedKeys = new LongBuffer[numChunks(numBigrams)];
+	this.sortedValues = new DoubleBuffer[numChunks(numBigrams)];
+    }
+
+    /** Map numBigrams sorted keys at keyPosition of keyChannel and their values
+     *  at valuePosition of valueChannel read-only, one mapping per chunk. The
+     *  mappings stay valid after the channels are closed */
+    public static MappedBigramTable map(FileChannel keyChannel, long keyPosition,
+					FileChannel valueChannel, long valuePosition, long numBigrams) throws IOException {
+	checkSize(numBigrams);
+	if (valuePosition + 8 * numBigrams > valueChannel.size())
+	    throw new EOFException("Truncated bigram table");
+	MappedBigramTable table = new MappedBigramTable((int) numBigrams);
+	table.mapKeys(keyChannel, keyPosition);
+	for (int c = 0; c < table.sortedValues.length; c++)
+	    table.sortedValues[c] = table.mapChunk(valueChannel, valuePosition, c, 8).asDoubleBuffer();
+	return table;
+    }
+
+    /** Throw IOException unless a table can hold numBigrams bigrams */
+    protected static void checkSize(long numBigrams) throws IOException {
+	if (numBigrams < 0 || numBigrams > Integer.MAX_VALUE)
+	    throw new IOException("Cannot map " + numBigrams + " bigrams");
+    }
+
+    /** Return the number of chunks holding numBigrams entries */
+    protected static int numChunks(int numBigrams) {
+	return (int) (((long) numBigrams + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+    }
+
+    /** Return the number of entries in chunk c */
+    protected int chunkLength(int c) {
+	return Math.min(CHUNK_SIZE, numBigrams - (c << CHUNK_SHIFT));
+    }
+
+    /** Split sorted keys into the chunks of the table */
+    protected void wrapKeys(LongBuffer keys) {
+	for (int c = 0; c < sortedKeys.length; c++)
+	    sortedKeys[c] = keys.slice(c << CHUNK_SHIFT, chunkLength(c));
+    }
+
+    /** Map the chunks of the table's keys at position of channel */
+    protected void mapKeys(FileChannel channel, long position) throws IOException {
+	if (position + 8L * numBigrams > channel.size())
+	    throw new EOFException("Truncated bigram table");
+	for (int c = 0; c < sortedKeys.length; c++)
+	    sortedKeys[c] = mapChunk(channel, position, c, 8).asLongBuffer();
+    }
+
+    /** Map chunk c of entries of entryBytes bytes each at position of channel */
+    protected MappedByteBuffer mapChunk(FileChannel channel, long position, int c, int entryBytes) throws IOException {
+	long offset = (long) entryBytes * ((long) c << CHUNK_SHIFT);
+	return channel.map(FileChannel.MapMode.READ_ONLY, position + offset, (long) entryBytes * chunkLength(c));
+    }
+
+    /** Return the key at index */
+    protected long sortedKey(int index) {
+	return sortedKeys[index >>> CHUNK_SHIFT].get(index & CHUNK_MASK);
+    }
+
+    /** Return the index of key, or a negative number if it is absent */
+    protected int indexOf(long key) {
+	int low = 0;
+	int high = numBigrams - 1;
+	while (low <= high) {
+	    int mid = (low + high) >>> 1;
+	    long midKey = sortedKey(mid);
+	    if (midKey < key)
+		low = mid + 1;
+	    else if (midKey > key)
+		high = mid - 1;
+	    else
+		return mid;
+	}
+	return -1;
+    }
+
+    @Override
+    public double get(long key) {
+	int index = indexOf(key);
+	return index < 0 ? 0 : valueAt(index);
+    }
+
+    @Override
+    public boolean contains(long key) {
+	return indexOf(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+	return numBigrams;
+    }
+
+    /** Every index is a slot holding a bigram */
+    @Override
+    public int capacity() {
+	return numBigrams;
+    }
+
+    @Override
+    public long keyAt(int slot) {
+	return sortedKey(slot);
+    }
+
+    @Override
+    public boolean isUsed(int slot) {
+	return true;
+    }
+
+    @Override
+    public double valueAt(int slot) {
+	return sortedValues[slot >>> CHUNK_SHIFT].get(slot & CHUNK_MASK);
+    }
+
+    @Override
+    public void setValueAt(int slot, double value) {
+	throw new UnsupportedOperationException("Mapped bigram table is read-only");
+    }
+
+    @Override
+    protected int insert(long key) {
+	throw new UnsupportedOperationException("Mapped bigram table is read-only");
+    }
+}
@@ -0,0 +1,280 @@
+package lm;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Shrinks the bigram table of a trained model for deployment. Bigrams
+ * are pruned either by a count cutoff (drop bigrams seen at most cutoff
+ * times) or by relative entropy (drop bigrams whose removal changes the
+ * model by less than a threshold, after Stolcke), and the bigram
+ * probabilities that remain in each context are renormalized to sum to
+ * one. Each context keeps at least its most frequent bigram. The
+ * probabilities can then be quantized to 8- or 16-bit codes into a
+ * per-model codebook (see QuantizedBigramTable).
+ *
+ * A compacted model stores renormalized probabilities scaled by the
+ * context counts in place of bigram counts, so it scores as before, in
+ * a read-only table (a MappedBigramTable over arrays, or the quantized
+ * table): training it further throws UnsupportedOperationException.
+ * Unigram counts are left unchanged. ModelFile saves a quantized table as
+ * its codes and codebook, so a saved model keeps the compacted size.
+ *
+ * @author TSM
+ */
+
+public class ModelCompactor {
+
+    /** Bigrams seen this many times or fewer are pruned */
+    public int countCutoff = 0;
+
+    /** Bigrams whose removal increases the relative entropy of the model
+     *  by less than this are pruned */
+    public double entropyThreshold = 0;
+
+    /** Bits per quantized probability, 8 or 16, or 0 to keep doubles */
+    public int bits = 0;
+
+    public ModelCompactor(int countCutoff, double entropyThreshold, int bits) {
+	if (bits != 0 && bits != 8 && bits != 16)
+	    throw new IllegalArgumentException("Codes must be 8 or 16 bits: " + bits);
+	this.countCutoff = countCutoff;
+	this.entropyThreshold = entropyThreshold;
+	this.bits = bits;
+    }
+
+    /** Compact the bigram table of a trained model in place. A bidirectional
+     *  model has both its forward and backward models compacted */
+    public void compact(BigramModel model) {
+	if (model instanceof SharedBidirectionalBigramModel)
+	    throw new IllegalArgumentException("Compact the models of a BidirectionalBigramModel instead of a shared one");
+	if (model instanceof NgramModel)
+	    throw new IllegalArgumentException("Only bigram tables can be compacted, not an NgramModel's trie");
+	if (model instanceof BidirectionalBigramModel) {
+	    BidirectionalBigramModel bidirectional = (BidirectionalBigramModel) model;
+	    compact(bidirectional.getForwardModel());
+	    compact(bidirectional.getBackwardModel());
+	}
+	else
+	    compactTable(model);
+	model.calculateProbs();
+    }
+
+    /** Prune, renormalize and optionally quantize the bigram table of model */
+    protected void compactTable(BigramModel model) {
+	BigramTable table = model.bigramTable;
+	if (table instanceof CountMinBigramTable)
+	    throw new IllegalArgumentException("Sketched counts cannot be compacted: they do not list every bigram");
+	double[] unigram = model.unigram;
+	int vocabSize = model.vocab.size();
+	// Total count of kept bigrams, and the most frequent bigram, in each context
+	double[] keptCount = new double[vocabSize];
+	double[] maxCount = new double[vocabSize];
+	int[] maxSlot = new int[vocabSize];
+	boolean[] keep = new boolean[table.capacity()];
+	for (int slot = 0; slot < table.capacity(); slot++) {
+	    if (!table.isUsed(slot))
+		continue;
+	    long key = table.keyAt(slot);
+	    int prevId = BigramTable.id1(key);
+	    double count = table.valueAt(slot);
+	    keep[slot] = !prune(model, prevId, BigramTable.id2(key), count);
+	    if (keep[slot])
+		keptCount[prevId] += count;
+	    if (count > maxCount[prevId]) {
+		maxCount[prevId] = count;
+		maxSlot[prevId] = slot;
+	    }
+	}
+	for (int id = 0; id < vocabSize; id++) {
+	    if (maxCount[id] > 0 && keptCount[id] == 0) {
+		keep[maxSlot[id]] = true;
+		keptCount[id] = maxCount[id];
+	    }
+	}
+	int numKept = 0;
+	for (int slot = 0; slot < keep.length; slot++) {
+	    if (keep[slot])
+		numKept++;
+	}
+	// Renormalized bigram probability P(B | A) = C(A B) / kept count of A
+	long[] keys = new long[numKept];
+	int n = 0;
+	for (int slot = 0; slot < keep.length; slot++) {
+	    if (keep[slot])
+		keys[n++] = table.keyAt(slot);
+	}
+	Arrays.sort(keys);
+	double[] probs = new double[numKept];
+	for (int i = 0; i < numKept; i++)
+	    probs[i] = table.get(keys[i]) / keptCount[BigramTable.id1(keys[i])];
+	if (bits == 0) {
+	    // A read-only table, so training the model further fails instead
+	    // of adding counts to the scaled probabilities
+	    double[] values = new double[numKept];
+	    for (int i = 0; i < numKept; i++)
+		values[i] = probs[i] * unigram[BigramTable.id1(keys[i])];
+	    model.bigramTable = new MappedBigramTable(LongBuffer.wrap(keys), DoubleBuffer.wrap(values));
+	}
+	else {
+	    double[] codebook = codebook(probs, 1 << bits);
+	    int[] codes = encode(probs, codebook);
+	    model.bigramTable = new QuantizedBigramTable(keys, codes, bits, codebook, unigram);
+	}
+    }
+
+    /** Return true if the bigram "prevId id" with the given count should be pruned.
+     *  The entropy criterion approximates the increase in relative entropy
+     *  of the model from dropping the bigram by P(A, B) log(P(B | A) / P'(B | A)),
+     *  where P' is the interpolated probability without the bigram */
+    protected boolean prune(BigramModel model, int prevId, int id, double count) {
+	if (count <= countCutoff)
+	    return true;
+	if (entropyThreshold <= 0)
+	    return false;
+	double prob = model.interpolatedProb(prevId, id);
+	double prunedProb = model.lambda1 * model.unigramProb(id);
+	double jointProb = count / model.tokenCount;
+	return jointProb * Math.log(prob / prunedProb) < entropyThreshold;
+    }
+
+    /** Return a codebook of at most numCodes probabilities, in ascending order,
+     *  for the given probabilities. The sorted probabilities are split into
+     *  numCodes bins holding equal numbers of them, and each code stands for
+     *  the mean of its bin so the probability mass of the bin is kept */
+    protected static double[] codebook(double[] probs, int numCodes) {
+	double[] sorted = probs.clone();
+	Arrays.sort(sorted);
+	int numBins = Math.max(1, Math.min(numCodes, sorted.length));
+	double[] codebook = new double[numBins];
+	for (int bin = 0; bin < numBins; bin++) {
+	    int start = (int)((long) sorted.length * bin / numBins);
+	    int end = (int)((long) sorted.length * (bin + 1) / numBins);
+	    double sum = 0;
+	    for (int i = start; i < end; i++)
+		sum += sorted[i];
+	    codebook[bin] = end > start ? sum / (end - start) : 0;
+	}
+	return codebook;
+    }
+
+    /** Return the code of the codebook entry nearest in log space to each probability */
+    protected static int[] encode(double[] probs, double[] codebook) {
+	int[] codes = new int[probs.length];
+	for (int i = 0; i < probs.length; i++) {
+	    int index = Arrays.binarySearch(codebook, probs[i]);
+	    if (index < 0) {
+		int above = Math.min(-index - 1, codebook.length - 1);
+		int below = Math.max(above - 1, 0);
+		double logProb = Math.log(probs[i]);
+		index = Math.abs(logProb - Math.log(codebook[below])) <= Math.abs(Math.log(codebook[above]) - logProb) ? below : above;
+	    }
+	    codes[i] = index;
+	}
+	return codes;
+    }
+
+    /** Return the estimated number of bytes used by the bigram tables of model */
+    public static long bigramBytes(BigramModel model) {
+	if (model instanceof BidirectionalBigramModel) {
+	    BidirectionalBigramModel bidirectional = (BidirectionalBigramModel) model;
+	    return bigramBytes(bidirectional.getForwardModel()) + bigramBytes(bidirectional.getBackwardModel());
+	}
+	BigramTable table = model.bigramTable;
+	if (table instanceof QuantizedBigramTable)
+	    return ((QuantizedBigramTable) table).bytes();
+	if (table instanceof CountMinBigramTable)
+	    return ((CountMinBigramTable) table).bytes();
+	// A long key and a double value per slot
+	return 16L * table.capacity();
+    }
+
+    /** Return the number of bigrams stored by model */
+    public static long bigramCount(BigramModel model) {
+	if (model instanceof BidirectionalBigramModel) {
+	    BidirectionalBigramModel bidirectional = (BidirectionalBigramModel) model;
+	    return bigramCount(bidirectional.getForwardModel()) + bigramCount(bidirectional.getBackwardModel());
+	}
+	return model.bigramTable.size();
+    }
+
+    /** Return the perplexity of model on sentences, predicting end-of-sentence
+     *  if includeEnd is true (as test does) or not (as test2 does) */
+    public static double perplexity(BigramModel model, List<List<String>> sentences, boolean includeEnd) {
+	double totalLogProb = 0;
+	double totalNumTokens = 0;
+	for (List<String> sentence : sentences) {
+	    if (includeEnd) {
+		totalNumTokens += sentence.size() + 1;
+		totalLogProb += model.sentenceLogProb(sentence);
+	    }
+	    else {
+		totalNumTokens += sentence.size();
+		totalLogProb += model.sentenceLogProb2(sentence);
+	    }
+	}
+	return Math.exp(-totalLogProb / totalNumTokens);
+    }
+
+    /** Print the size and held-out perplexity of model */
+    protected static void report(String label, BigramModel model, List<List<String>> testSentences) {
+	System.out.println(label + ": " + bigramCount(model) + " bigrams, " +
+			   (bigramBytes(model) / 1024) + " KB, Perplexity = " +
+			   perplexity(model, testSentences, true) + ", Word Perplexity = " +
+			   perplexity(model, testSentences, false));
+    }
+
+    /** Train a model, compact it, and report the memory saved against the
+     *  perplexity lost on the held-out split.
+     *  Command format: "lm.ModelCompactor [-model forward|backward|bidirectional]
+     *  [-cutoff N] [-entropy T] [-bits 8|16] [DIR]* TestFrac" where DIR and
+     *  TestFrac are as for BigramModel */
+    public static void main(String[] args) throws IOException {
+	String kind = "forward";
+	int cutoff = 0;
+	double threshold = 0;
+	int bits = 0;
+	int i = 0;
+	for (; i < args.length && args[i].startsWith("-"); i += 2) {
+	    if (args[i].equals("-model"))
+		kind = args[i + 1];
+	    else if (args[i].equals("-cutoff"))
+		cutoff = Integer.parseInt(args[i + 1]);
+	    else if (args[i].equals("-entropy"))
+		threshold = Double.parseDouble(args[i + 1]);
+	    else if (args[i].equals("-bits"))
+		bits = Integer.parseInt(args[i + 1]);
+	    else
+		throw new IllegalArgumentException("Unknown option: " + args[i]);
+	}
+	File[] files = new File[args.length - i - 1];
+	for (int j = 0; j < files.length; j++)
+	    files[j] = new File(args[i + j]);
+	double testFraction = Double.valueOf(args[args.length - 1]);
+	List<List<String>> sentences = POSTaggedFile.convertToTokenLists(files);
+	int numSentences = sentences.size();
+	int numTest = (int)Math.round(numSentences * testFraction);
+	List<List<String>> testSentences = sentences.subList(numSentences - numTest, numSentences);
+	List<List<String>> trainSentences = sentences.subList(0, numSentences - numTest);
+	BigramModel model;
+	if (kind.equals("forward"))
+	    model = new BigramModel();
+	else if (kind.equals("backward"))
+	    model = new BackwardBigramModel();
+	else if (kind.equals("bidirectional"))
+	    model = new BidirectionalBigramModel();
+	else
+	    throw new IllegalArgumentException("Unknown model: " + kind);
+	System.out.println("Training...");
+	model.train(trainSentences);
+	report("Before", model, testSentences);
+	long bytesBefore = bigramBytes(model);
+	double perplexityBefore = perplexity(model, testSentences, true);
+	new ModelCompactor(cutoff, threshold, bits).compact(model);
+	report("After", model, testSentences);
+	System.out.println("Memory saved = " + (100.0 * (bytesBefore - bigramBytes(model)) / bytesBefore) +
+			   "%, Perplexity lost = " +
+			   (100.0 * (perplexity(model, testSentences, true) - perplexityBefore) / perplexityBefore) + "%");
+    }
+}
@@ -0,0 +1,346 @@
+package lm;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Saves trained forward, backward and bidirectional bigram models in a
+ * compact binary format and loads them back by memory-mapping the file,
+ * so a model can be scored without re-reading and retraining on the LDC
+ * files. A file holds a header followed by one model section, or two
+ * (forward then backward) for a bidirectional model:
+ *
+ *   header:  int MAGIC, int VERSION, int kind (FORWARD, BACKWARD or
+ *            BIDIRECTIONAL), and for BIDIRECTIONAL the forward and
+ *            backward lambdas as doubles
+ *   section: double lambda1, double lambda2, double tokenCount,
+ *            int vocabulary size V, V tokens as (int length, UTF-8 bytes),
+ *            padding to a multiple of 8 bytes, V unigram counts as doubles,
+ *            int bigram count B, int bigram format F, B bigram keys as
+ *            longs in ascending order, then for F = COUNTS B bigram counts
+ *            as doubles, or for F = 8 or 16 int codebook size C, int
+ *            padding, C probabilities as doubles, B F-bit codes into them
+ *            and padding to a multiple of 8 bytes
+ *
+ * Only tokens with a nonzero unigram count are stored (plus <S>, </S> and
+ * <UNK>), with IDs renumbered densely; dropped tokens score as <UNK>
+ * either way. The model derives its probabilities from the stored counts
+ * exactly as it does in memory, so a loaded model gives bit-identical
+ * scores. A model whose probabilities were quantized by ModelCompactor
+ * stores its codes and codebook rather than counts, and loads as a
+ * QuantizedBigramTable, so the file and the loaded model keep the
+ * compacted size and the same scores. The vocabulary and unigram counts are read into memory on load
+ * while the bigram table stays in the mapped file, mapped in chunks so it
+ * may be larger than 2 GB (see MappedBigramTable).
+ * A loaded model cannot be trained further.
+ *
+ * @author TSM
+ */
+
+public class ModelFile {
+
+    /** First four bytes of a model file: "LMBG" */
+    public static final int MAGIC = 0x4C4D4247;
+
+    /** Version of the format written by save. Version 2, read as well, had no
+     *  quantized sections, so each bigram format was COUNTS. Version 1 stored
+     *  probabilities instead of counts and can no longer be read */
+    public static final int VERSION = 3;
+
+    /** Bigram format of a section storing counts as doubles; quantized
+     *  sections give the bits per code instead */
+    public static final int COUNTS = 0;
+
+    /** Kind of model stored in a file */
+    public static final int FORWARD = 0;
+    public static final int BACKWARD = 1;
+    public static final int BIDIRECTIONAL = 2;
+
+    /** Save a trained model to file */
+    public static void save(BigramModel model, File file) throws IOException {
+	checkBigramCounts(model);
+	ModelOutputStream out = new ModelOutputStream(file);
+	try {
+	    out.writeInt(MAGIC);
+	    out.writeInt(VERSION);
+	    if (model instanceof BidirectionalBigramModel) {
+		BidirectionalBigramModel bidirectional = (BidirectionalBigramModel) model;
+		out.writeInt(BIDIRECTIONAL);
+		out.writeDouble(bidirectional.getForwardLambda());
+		out.writeDouble(bidirectional.getBackwardLambda());
+		writeSection(bidirectional.getForwardModel(), out);
+		writeSection(bidirectional.getBackwardModel(), out);
+	    }
+	    else {
+		out.writeInt(model instanceof BackwardBigramModel ? BACKWARD : FORWARD);
+		writeSection(model, out);
+	    }
+	}
+	finally {
+	    out.close();
+	}
+    }
+
+    /** Throw IllegalArgumentException unless model keeps its counts in a
+     *  bigram table, as an NgramModel does not */
+    protected static void checkBigramCounts(BigramModel model) {
+	if (model instanceof BidirectionalBigramModel && !(model instanceof SharedBidirectionalBigramModel)) {
+	    checkBigramCounts(((BidirectionalBigramModel) model).getForwardModel());
+	    checkBigramCounts(((BidirectionalBigramModel) model).getBackwardModel());
+	}
+	else if (model instanceof NgramModel)
+	    throw new IllegalArgumentException("Only bigram models can be saved: " + model.getClass().getSimpleName());
+	else if (model.bigramTable instanceof CountMinBigramTable)
+	    throw new IllegalArgumentException("Sketched counts cannot be saved: they do not list every bigram");
+	else if (model.getSpiller() != null && model.getSpiller().hasUnmergedRuns())
+	    throw new IllegalStateException("Spilled counts are not merged: call calculateProbs before saving");
+    }
+
+    /** Write the vocabulary, unigram counts and sorted bigram table of model */
+    protected static void writeSection(BigramModel model, ModelOutputStream out) throws IOException {
+	out.writeDouble(model.lambda1);
+	out.writeDouble(model.lambda2);
+	out.writeDouble(model.tokenCount);
+	// Renumber the tokens with a unigram count densely, always keeping <S>, </S> and <UNK>
+	Vocabulary vocab = model.vocab;
+	int[] newIds = new int[vocab.size()];
+	List<String> tokens = new ArrayList<String>();
+	for (int id = 0; id < vocab.size(); id++) {
+	    if (id <= Vocabulary.UNK || model.unigram[id] != 0) {
+		newIds[id] = tokens.size();
+		tokens.add(vocab.token(id));
+	    }
+	    else
+		newIds[id] = -1;
+	}
+	out.writeInt(tokens.size());
+	for (String token : tokens) {
+	    byte[] bytes = token.getBytes(StandardCharsets.UTF_8);
+	    out.writeInt(bytes.length);
+	    out.write(bytes);
+	}
+	out.pad();
+	for (int id = 0; id < vocab.size(); id++) {
+	    if (newIds[id] >= 0)
+		out.writeDouble(model.unigram[id]);
+	}
+	BigramTable table = model.bigramTable;
+	if (table instanceof QuantizedBigramTable) {
+	    writeQuantizedBigrams((QuantizedBigramTable) table, newIds, out);
+	    return;
+	}
+	if (table instanceof MappedBigramTable) {
+	    writeSortedBigrams(table, newIds, out);
+	    return;
+	}
+	// Bigram keys under the new IDs, sorted
+	long[] keys = new long[table.size()];
+	int n = 0;
+	for (int slot = 0; slot < table.capacity(); slot++) {
+	    if (table.isUsed(slot)) {
+		long key = table.keyAt(slot);
+		keys[n++] = BigramTable.key(newIds[BigramTable.id1(key)], newIds[BigramTable.id2(key)]);
+	    }
+	}
+	Arrays.sort(keys);
+	out.writeInt(n);
+	out.writeInt(COUNTS);
+	for (int i = 0; i < n; i++)
+	    out.writeLong(keys[i]);
+	// Look up each count under the old IDs, in sorted key order
+	int[] oldIds = new int[tokens.size()];
+	for (int id = 0; id < vocab.size(); id++) {
+	    if (newIds[id] >= 0)
+		oldIds[newIds[id]] = id;
+	}
+	for (int i = 0; i < n; i++) {
+	    long oldKey = BigramTable.key(oldIds[BigramTable.id1(keys[i])], oldIds[BigramTable.id2(keys[i])]);
+	    out.writeDouble(table.get(oldKey));
+	}
+    }
+
+    /** Write the bigram count, keys and counts of a table whose slots hold its
+     *  keys in ascending order, such as the merged counts of a model that
+     *  spilled them, as they are read: renumbering keeps the IDs in order, so
+     *  the renumbered keys stay sorted */
+    protected static void writeSortedBigrams(BigramTable table, int[] newIds, DataOutputStream out) throws IOException {
+	int n = table.capacity();
+	out.writeInt(n);
+	out.writeInt(COUNTS);
+	writeSortedKeys(table, newIds, out);
+	for (int slot = 0; slot < n; slot++)
+	    out.writeDouble(table.valueAt(slot));
+    }
+
+    /** Write the bigram count, keys, codebook and codes of a quantized table,
+     *  whose keys are sorted as in writeSortedBigrams */
+    protected static void writeQuantizedBigrams(QuantizedBigramTable table, int[] newIds, ModelOutputStream out) throws IOException {
+	int n = table.capacity();
+	int bits = table.getBits();
+	out.writeInt(n);
+	out.writeInt(bits);
+	writeSortedKeys(table, newIds, out);
+	double[] codebook = table.getCodebook();
+	out.writeInt(codebook.length);
+	out.writeInt(0);
+	for (double prob : codebook)
+	    out.writeDouble(prob);
+	for (int slot = 0; slot < n; slot++) {
+	    if (bits == 8)
+		out.writeByte(table.codeAt(slot));
+	    else
+		out.writeShort(table.codeAt(slot));
+	}
+	out.pad();
+    }
+
+    /** Write the keys of a table whose slots hold them in ascending order,
+     *  renumbered by newIds */
+    protected static void writeSortedKeys(BigramTable table, int[] newIds, DataOutputStream out) throws IOException {
+	for (int slot = 0; slot < table.capacity(); slot++) {
+	    long key = table.keyAt(slot);
+	    out.writeLong(BigramTable.key(newIds[BigramTable.id1(key)], newIds[BigramTable.id2(key)]));
+	}
+    }
+
+    /** Pad the output with zero bytes to a multiple of 8 bytes. Only for
+     *  output of less than 2 GB, which out.size counts */
+    protected static void pad(DataOutputStream out) throws IOException {
+	while (out.size() % 8 != 0)
+	    out.writeByte(0);
+    }
+
+    /** Output to a model file that counts its position as a long, since
+     *  DataOutputStream.size stops counting at Integer.MAX_VALUE, so a file
+     *  with more than 2 GB of bigrams before a section is padded right */
+    protected static class ModelOutputStream extends DataOutputStream {
+
+	/** Counts the bytes passed through to the file */
+	protected static class Counter extends FilterOutputStream {
+	    long count = 0;
+
+	    Counter(OutputStream out) {
+		super(out);
+	    }
+
+	    @Override
+	    public void write(int b) throws IOException {
+		out.write(b);
+		count++;
+	    }
+
+	    @Override
+	    public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		count += len;
+	    }
+	}
+
+	public ModelOutputStream(File file) throws IOException {
+	    super(new Counter(new BufferedOutputStream(new FileOutputStream(file), 1 << 16)));
+	}
+
+	/** Return the number of bytes written */
+	public long position() {
+	    return ((Counter) out).count;
+	}
+
+	/** Pad with zero bytes to a multiple of 8 bytes */
+	public void pad() throws IOException {
+	    while (position() % 8 != 0)
+		writeByte(0);
+	}
+    }
+
+    /** Load a model saved with save by memory-mapping file. Returns a BigramModel,
+     *  BackwardBigramModel or BidirectionalBigramModel as was saved */
+    public static BigramModel load(File file) throws IOException {
+	// The mappings stay valid after the file is closed
+	try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+	    ByteBuffer buffer = window(channel, 0);
+	    if (buffer.getInt() != MAGIC)
+		throw new IOException("Not a bigram model file: " + file);
+	    int version = buffer.getInt();
+	    if (version != VERSION && version != 2)
+		throw new IOException("Unsupported model file version " + version + ": " + file);
+	    int kind = buffer.getInt();
+	    switch (kind) {
+	    case FORWARD: {
+		BigramModel model = new BigramModel();
+		readSection(model, channel, buffer.position());
+		return model;
+	    }
+	    case BACKWARD: {
+		BackwardBigramModel model = new BackwardBigramModel();
+		readSection(model, channel, buffer.position());
+		return model;
+	    }
+	    case BIDIRECTIONAL: {
+		double forwardLambda = buffer.getDouble();
+		double backwardLambda = buffer.getDouble();
+		BigramModel forwardModel = new BigramModel();
+		BackwardBigramModel backwardModel = new BackwardBigramModel();
+		long backwardPosition = readSection(forwardModel, channel, buffer.position());
+		readSection(backwardModel, channel, backwardPosition);
+		return new BidirectionalBigramModel(forwardModel, backwardModel, forwardLambda, backwardLambda);
+	    }
+	    default:
+		throw new IOException("Unknown model kind " + kind + ": " + file);
+	    }
+	}
+    }
+
+    /** Read the model section at position of channel into model and return the
+     *  position of its end. The bigram keys and counts are mapped in chunks
+     *  (see MappedBigramTable.map), so a section may be larger than 2 GB */
+    protected static long readSection(BigramModel model, FileChannel channel, long position) throws IOException {
+	ByteBuffer buffer = window(channel, position);
+	model.lambda1 = buffer.getDouble();
+	model.lambda2 = buffer.getDouble();
+	model.tokenCount = buffer.getDouble();
+	int vocabSize = buffer.getInt();
+	Vocabulary vocab = new Vocabulary();
+	byte[] bytes = new byte[64];
+	for (int id = 0; id < vocabSize; id++) {
+	    int length = buffer.getInt();
+	    if (length > bytes.length)
+		bytes = new byte[Math.max(length, bytes.length * 2)];
+	    buffer.get(bytes, 0, length);
+	    vocab.add(new String(bytes, 0, length, StandardCharsets.UTF_8));
+	}
+	// Padding is to a multiple of 8 bytes of the file, not of the section
+	buffer.position((int) (((position + buffer.position() + 7) & ~7L) - position));
+	double[] unigram = new double[Math.max(vocabSize, 1)];
+	buffer.asDoubleBuffer().get(unigram, 0, vocabSize);
+	buffer.position(buffer.position() + 8 * vocabSize);
+	int numBigrams = buffer.getInt();
+	int format = buffer.getInt();
+	long keyPosition = position + buffer.position();
+	long valuePosition = keyPosition + 8L * numBigrams;
+	model.vocab = vocab;
+	model.unigram = unigram;
+	if (format == COUNTS) {
+	    model.bigramTable = MappedBigramTable.map(channel, keyPosition, channel, valuePosition, numBigrams);
+	    return valuePosition + 8L * numBigrams;
+	}
+	if (format != 8 && format != 16)
+	    throw new IOException("Unknown bigram format " + format);
+	// The codebook follows the keys, and the codes follow the codebook
+	ByteBuffer codebookBuffer = window(channel, valuePosition);
+	double[] codebook = new double[codebookBuffer.getInt()];
+	codebookBuffer.getInt();
+	codebookBuffer.asDoubleBuffer().get(codebook);
+	long codePosition = valuePosition + 8 + 8L * codebook.length;
+	model.bigramTable = QuantizedBigramTable.map(channel, keyPosition, codePosition, numBigrams, format, codebook, unigram);
+	return (codePosition + format / 8 * (long) numBigrams + 7) & ~7L;
+    }
+
+    /** Map the file from position read-only, up to the 2 GB a mapping can hold */
+    protected static ByteBuffer window(FileChannel channel, long position) throws IOException {
+	return channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(channel.size() - position, Integer.MAX_VALUE));
+    }
+}
@@ -0,0 +1,292 @@
+package lm;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+
+/**
+ * Training and scoring metrics of one model: sentences and tokens trained
+ * and scored and their rates (over the time spent training and scoring,
+ * see scoringStarted), calculateProbs durations, the rate of tokens
+ * scored as <UNK> and of bigram misses (tokens whose bigram, or for an
+ * NgramModel longest N-gram, was never seen), and the size of the model's
+ * tables. Metrics are off unless enabled with model.enableMetrics(); a
+ * disabled model pays one null check per scored token. Counters are
+ * LongAdders, so one ModelMetrics can be updated from many scoring threads;
+ * only the scoring time takes a lock, at the start and end of each
+ * sentence or test set scored.
+ *
+ * Metrics can be read through JMX (see register) or printed periodically
+ * (see startReporter). Model mains call install, which does both when run
+ * with -Dlm.metrics=true, reporting every lm.metrics.period seconds
+ * (default 10, 0 for never), e.g.
+ *
+ *   java -Dlm.metrics=true -Dlm.metrics.period=5 lm.BigramModel [DIR]* TestFrac
+ *
+ * @author TSM
+ */
+
+public class ModelMetrics implements ModelMetricsMBean {
+
+    /** Model whose metrics these are */
+    protected final BigramModel model;
+
+    /** Sentences and tokens counted by trainSentences, and the time it took */
+    protected final LongAdder trainedSentences = new LongAdder();
+    protected final LongAdder trainedTokens = new LongAdder();
+    protected final LongAdder trainingNanos = new LongAdder();
+
+    /** Sentences and tokens (including end-of-sentence) scored */
+    protected final LongAdder scoredSentences = new LongAdder();
+    protected final LongAdder scoredTokens = new LongAdder();
+
+    /** Scored tokens that were <UNK> or whose bigram was never seen */
+    protected final LongAdder unknownTokens = new LongAdder();
+    protected final LongAdder bigramMisses = new LongAdder();
+
+    /** Calls to calculateProbs and their durations */
+    protected final LongAdder calculateProbsCount = new LongAdder();
+    protected final LongAdder calculateProbsNanos = new LongAdder();
+    protected volatile long lastCalculateProbsNanos = 0;
+
+    /** Scoring calls in progress, when the first of them started, and the
+     *  time during which at least one was in progress before that (see
+     *  scoringStarted); guarded by this */
+    private int activeScoringCalls = 0;
+    private long scoringSince = 0;
+    private long scoringNanos = 0;
+
+    /** Name the metrics are registered under, or null */
+    protected ObjectName objectName = null;
+
+    /** Reporter thread shared by all metrics */
+    private static ScheduledExecutorService reporter = null;
+
+    /** Create metrics for model (see BigramModel.enableMetrics) */
+    public ModelMetrics(BigramModel model) {
+	this.model = model;
+    }
+
+    /** Record sentences and tokens counted by trainSentences in nanos */
+    public void trained(long sentences, long tokens, long nanos) {
+	trainedSentences.add(sentences);
+	trainedTokens.add(tokens);
+	trainingNanos.add(nanos);
+    }
+
+    /** Record the prediction of one token: whether it is the first of its
+     *  sentence, was scored as <UNK>, and missed the bigram table */
+    public void predicted(boolean sentenceStart, boolean unknown, boolean bigramMiss) {
+	if (sentenceStart)
+	    scoredSentences.increment();
+	scoredTokens.increment();
+	if (unknown)
+	    unknownTokens.increment();
+	if (bigramMiss)
+	    bigramMisses.increment();
+    }
+
+    /** Record the start of a scoring call; each must be followed by one call
+     *  of scoringEnded. Scoring time is the time during which at least one
+     *  scoring call is in progress, so calls nested in others (sentences
+     *  scored by test) and calls on several threads at once (evalThreads,
+     *  a server) are timed once, and idle or training time is not */
+    public synchronized void scoringStarted() {
+	if (activeScoringCalls++ == 0)
+	    scoringSince = System.nanoTime();
+    }
+
+    /** Record the end of a scoring call */
+    public synchronized void scoringEnded() {
+	if (--activeScoringCalls == 0)
+	    scoringNanos += System.nanoTime() - scoringSince;
+    }
+
+    /** Return the scoring time so far, including calls in progress */
+    public synchronized long getScoringNanos() {
+	return scoringNanos + (activeScoringCalls > 0 ? System.nanoTime() - scoringSince : 0);
+    }
+
+    /** Record a calculateProbs call that took nanos */
+    public void calculatedProbs(long nanos) {
+	calculateProbsCount.increment();
+	calculateProbsNanos.add(nanos);
+	lastCalculateProbsNanos = nanos;
+    }
+
+    public long getTrainedSentences() {
+	return trainedSentences.sum();
+    }
+
+    public long getTrainedTokens() {
+	return trainedTokens.sum();
+    }
+
+    public double getTrainingSentencesPerSecond() {
+	return perSecond(trainedSentences.sum(), trainingNanos.sum());
+    }
+
+    public double getTrainingTokensPerSecond() {
+	return perSecond(trainedTokens.sum(), trainingNanos.sum());
+    }
+
+    public long getScoredSentences() {
+	return scoredSentences.sum();
+    }
+
+    public long getScoredTokens() {
+	return scoredTokens.sum();
+    }
+
+    public double getScoringSentencesPerSecond() {
+	return perSecond(scoredSentences.sum(), getScoringNanos());
+    }
+
+    public double getScoringTokensPerSecond() {
+	return perSecond(scoredTokens.sum(), getScoringNanos());
+    }
+
+    public double getUnknownRate() {
+	return fraction(unknownTokens.sum(), scoredTokens.sum());
+    }
+
+    public double getBigramMissRate() {
+	return fraction(bigramMisses.sum(), scoredTokens.sum());
+    }
+
+    public long getCalculateProbsCount() {
+	return calculateProbsCount.sum();
+    }
+
+    public double getLastCalculateProbsMillis() {
+	return lastCalculateProbsNanos / 1e6;
+    }
+
+    public double getTotalCalculateProbsMillis() {
+	return calculateProbsNanos.sum() / 1e6;
+    }
+
+    public int getVocabularySize() {
+	return model.vocab.size();
+    }
+
+    public long getTableSize() {
+	return model.tableSize();
+    }
+
+    public long getEstimatedBytes() {
+	return model.estimatedBytes();
+    }
+
+    public void reset() {
+	for (LongAdder adder : new LongAdder[] {trainedSentences, trainedTokens, trainingNanos, scoredSentences,
+						scoredTokens, unknownTokens, bigramMisses, calculateProbsCount,
+						calculateProbsNanos})
+	    adder.reset();
+	lastCalculateProbsNanos = 0;
+	synchronized (this) {
+	    // Calls in progress are timed from now
+	    scoringNanos = 0;
+	    scoringSince = System.nanoTime();
+	}
+    }
+
+    /** Return count per second over nanos, 0 if no time has passed */
+    protected static double perSecond(long count, long nanos) {
+	return nanos <= 0 ? 0 : count * 1e9 / nanos;
+    }
+
+    /** Return part / total, 0 if total is 0 */
+    protected static double fraction(long part, long total) {
+	return total == 0 ? 0 : (double) part / total;
+    }
+
+    /** Return a one-line summary of the metrics */
+    public String summary() {
+	return String.format("trained %d sentences (%.0f tokens/s), scored %d sentences, %d tokens (%.0f tokens/s), " +
+			     "<UNK> %.2f%%, bigram misses %.2f%%, calculateProbs %d in %.1f ms, " +
+			     "vocabulary %d, table %d, %.1f MB",
+			     getTrainedSentences(), getTrainingTokensPerSecond(), getScoredSentences(),
+			     getScoredTokens(), getScoringTokensPerSecond(), 100 * getUnknownRate(),
+			     100 * getBigramMissRate(), getCalculateProbsCount(), getTotalCalculateProbsMillis(),
+			     getVocabularySize(), getTableSize(), getEstimatedBytes() / 1e6);
+    }
+
+    /** Register the metrics with the platform MBean server as
+     *  lm:type=ModelMetrics,name=name, replacing any registered under it */
+    public synchronized void register(String name) throws JMException {
+	MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	unregister();
+	objectName = new ObjectName("lm:type=ModelMetrics,name=" + ObjectName.quote(name));
+	if (server.isRegistered(objectName))
+	    server.unregisterMBean(objectName);
+	server.registerMBean(this, objectName);
+    }
+
+    /** Unregister the metrics if they are registered */
+    public synchronized void unregister() throws JMException {
+	if (objectName != null) {
+	    ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+	    objectName = null;
+	}
+    }
+
+    /** Print name and a summary of the metrics to out every periodSeconds
+     *  seconds on a daemon thread, until the returned future is cancelled */
+    public ScheduledFuture<?> startReporter(String name, PrintStream out, long periodSeconds) {
+	return reporter().scheduleAtFixedRate(() -> out.println("[metrics] " + name + ": " + summary()),
+					      periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /** Return the reporter thread, starting it on first use */
+    private static synchronized ScheduledExecutorService reporter() {
+	if (reporter == null) {
+	    reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		    Thread thread = new Thread(runnable, "lm-metrics-reporter");
+		    thread.setDaemon(true);
+		    return thread;
+		});
+	}
+	return reporter;
+    }
+
+    /** If the lm.metrics system property is true, enable the metrics of model,
+     *  register them under the model's class name (for a bidirectional model,
+     *  those of its forward and backward models, as name.forward and
+     *  name.backward) and report them to
+     *  System.err every lm.metrics.period seconds and at exit. Does nothing
+     *  otherwise */
+    public static void install(BigramModel model) {
+	if (!Boolean.getBoolean("lm.metrics"))
+	    return;
+	long period = Long.getLong("lm.metrics.period", 10);
+	// The forward and backward models of a bidirectional model do the counting
+	Map<String, BigramModel> models = new LinkedHashMap<String, BigramModel>();
+	String name = model.getClass().getSimpleName();
+	model.enableMetrics();
+	if (model instanceof BidirectionalBigramModel && !(model instanceof SharedBidirectionalBigramModel)) {
+	    models.put(name + ".forward", ((BidirectionalBigramModel) model).getForwardModel());
+	    models.put(name + ".backward", ((BidirectionalBigramModel) model).getBackwardModel());
+	}
+	else
+	    models.put(name, model);
+	for (Map.Entry<String, BigramModel> entry : models.entrySet()) {
+	    ModelMetrics metrics = entry.getValue().getMetrics();
+	    try {
+		metrics.register(entry.getKey());
+	    }
+	    catch (JMException e) {
+		System.err.println("Could not register metrics for " + entry.getKey() + ": " + e);
+	    }
+	    if (period > 0) {
+		metrics.startReporter(entry.getKey(), System.err, period);
+		// Report a last time at exit, so short runs are reported too
+		String metricsName = entry.getKey();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println("[metrics] " + metricsName + ": " + metrics.summary())));
+	    }
+	}
+    }
+}
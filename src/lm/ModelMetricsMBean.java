@@ -0,0 +1,52 @@
+package lm;
+
+/**
+ * JMX view of the training and scoring metrics of a model (see ModelMetrics).
+ * Rates are averages over the time spent in trainSentences for training
+ * and over the time during which scoring calls were in progress for
+ * scoring (see ModelMetrics.scoringStarted).
+ *
+ * @author TSM
+ */
+
+public interface ModelMetricsMBean {
+
+    long getTrainedSentences();
+
+    long getTrainedTokens();
+
+    double getTrainingSentencesPerSecond();
+
+    double getTrainingTokensPerSecond();
+
+    long getScoredSentences();
+
+    long getScoredTokens();
+
+    double getScoringSentencesPerSecond();
+
+    double getScoringTokensPerSecond();
+
+    /** Fraction of scored tokens scored as <UNK> */
+    double getUnknownRate();
+
+    /** Fraction of scored tokens whose bigram (N-gram) was never seen */
+    double getBigramMissRate();
+
+    long getCalculateProbsCount();
+
+    double getLastCalculateProbsMillis();
+
+    double getTotalCalculateProbsMillis();
+
+    int getVocabularySize();
+
+    /** Number of bigrams (N-grams) stored */
+    long getTableSize();
+
+    /** Estimated bytes of the count arrays and tables */
+    long getEstimatedBytes();
+
+    /** Forget all counts and restart the rates */
+    void reset();
+}
@@ -0,0 +1,565 @@
+package lm;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * An N-gram language model of any order, generalizing BigramModel. Each
+ * token is predicted from the order - 1 tokens before it, with order - 1
+ * start tokens (<S>) before the first, and the sentence ends with </S>.
+ * N-gram counts are kept in a compact sorted-array trie (see NgramTrie),
+ * and the unigram counts, vocabulary and first-occurrence <UNK> handling
+ * are exactly those of BigramModel. Probabilities are smoothed either by
+ * fixed-weight interpolation of the maximum-likelihood estimates of every
+ * order (as BigramModel does for order 2, with identical scores), where
+ * the weight of an order whose context was never seen goes to the order
+ * below, or by backoff with absolute discounting, where an N-gram never
+ * seen backs off to the next lower order scaled by a weight that keeps
+ * each context's probabilities summing to one.
+ *
+ * Training counts into a hash trie, which calculateProbs (or the first
+ * scoring call) turns into the sorted trie; training more sentences turns
+ * it back. The bigram table of BigramModel is not used, so the tools built
+ * on it (ModelFile, ModelCompactor, BatchScorer, topK) do not apply.
+ *
+ * @author TSM
+ */
+
+public class NgramModel extends BigramModel {
+
+    /** How probabilities of unseen N-grams are estimated */
+    public enum Smoothing {
+	/** Fixed-weight interpolation of the estimates of every order */
+	INTERPOLATED,
+	/** Backoff to lower orders with absolute discounting */
+	BACKOFF
+    }
+
+    /** Length of the longest N-grams */
+    public final int order;
+
+    /** How probabilities are smoothed */
+    public final Smoothing smoothing;
+
+    /** Interpolation weight of each order, lambdas[n - 1] for n-grams */
+    protected double[] lambdas;
+
+    /** Count subtracted from each seen N-gram for backoff */
+    protected double discount = 0.75;
+
+    /** N-gram counts being trained, or null when they are in the trie */
+    protected NgramTrie.Builder counts;
+
+    /** Sorted trie and backoff weights, or null when there are counts to add */
+    private volatile Compacted compacted = null;
+
+    /** Reused buffer of model IDs of the sentence being trained */
+    protected int[] trainingIds = new int[64];
+
+    /** Per-thread buffers of model IDs of the sentence being scored */
+    private final ThreadLocal<int[]> scoringBuffer = new ThreadLocal<int[]>();
+
+    /** A sorted trie and, for backoff, the backoff weight of each of its
+     *  contexts by level and index */
+    private static class Compacted {
+	final NgramTrie trie;
+	final double[][] backoffWeights;
+
+	Compacted(NgramTrie trie, double[][] backoffWeights) {
+	    this.trie = trie;
+	    this.backoffWeights = backoffWeights;
+	}
+    }
+
+    /** Create an interpolated model of N-grams up to order long */
+    public NgramModel(int order) {
+	this(order, Smoothing.INTERPOLATED);
+    }
+
+    /** Create a model of N-grams up to order long. Interpolation weights
+     *  default to 0.1 for unigrams, as in BigramModel, and 0.9 split
+     *  between the higher orders with each order weighted twice the one below */
+    public NgramModel(int order, Smoothing smoothing) {
+	if (order < 1)
+	    throw new IllegalArgumentException("Order must be at least 1: " + order);
+	counts = new NgramTrie.Builder(order);
+	this.order = order;
+	this.smoothing = smoothing;
+	lambdas = new double[order];
+	if (order == 1)
+	    lambdas[0] = 1;
+	else {
+	    lambdas[0] = lambda1;
+	    double total = (1 << (order - 1)) - 1;
+	    for (int n = 2; n <= order; n++)
+		lambdas[n - 1] = lambda2 * (1 << (n - 2)) / total;
+	}
+    }
+
+    /** Return the interpolation weights, lambdas[n - 1] for n-grams */
+    public double[] getLambdas() {
+	return lambdas.clone();
+    }
+
+    /** Set the interpolation weights, one per order starting with unigrams */
+    public void setLambdas(double... lambdas) {
+	if (lambdas.length != order)
+	    throw new IllegalArgumentException("Need " + order + " weights, not " + lambdas.length);
+	this.lambdas = lambdas.clone();
+	modCount++;
+    }
+
+    /** Return the backoff discount */
+    public double getDiscount() {
+	return discount;
+    }
+
+    /** Set the count subtracted from each seen N-gram for backoff, in (0, 1).
+     *  A discount of 1 would give N-grams seen once probability 0 */
+    public synchronized void setDiscount(double discount) {
+	if (!(discount > 0 && discount < 1))
+	    throw new IllegalArgumentException("Discount must be in (0, 1): " + discount);
+	this.discount = discount;
+	Compacted current = compacted;
+	if (current != null)
+	    compacted = new Compacted(current.trie, backoffWeights(current.trie));
+	modCount++;
+    }
+
+    /** Accumulate unigram and N-gram counts for this sentence, given in the
+     *  order the model predicts its tokens */
+    @Override
+    public void trainSentence (List<String> sentence) {
+	modCount++;
+	int[] ids = trainingIds(sentence.size());
+	int n = order - 1;
+	unigram[Vocabulary.START]++;
+	tokenCount++;
+	for (String token : sentence) {
+	    int id = vocab.id(token);
+	    // Count the first occurrence of a token as <UNK>, as BigramModel does
+	    if (id < 0) {
+		addToVocab(token);
+		id = Vocabulary.UNK;
+	    }
+	    unigram[id]++;
+	    tokenCount++;
+	    ids[n++] = id;
+	}
+	unigram[Vocabulary.END]++;
+	tokenCount++;
+	ids[n++] = Vocabulary.END;
+	countNgrams(ids, n);
+    }
+
+    /** Accumulate unigram and N-gram counts for sentence s of corpus, exactly
+     *  as trainSentence does for it as a List */
+    @Override
+    protected void trainSentence (Corpus corpus, int s, int[] modelIds) {
+	modCount++;
+	int length = corpus.end(s) - corpus.start(s);
+	int[] ids = trainingIds(length);
+	int n = order - 1;
+	unigram[Vocabulary.START]++;
+	tokenCount++;
+	for (int k = 0; k < length; k++) {
+	    int corpusId = corpus.tokenId(tokenPosition(corpus, s, k));
+	    int id = modelIds[corpusId];
+	    if (id == NOT_SEEN) {
+		String token = corpus.getVocabulary().token(corpusId);
+		id = vocab.id(token);
+		if (id < 0) {
+		    modelIds[corpusId] = addToVocab(token);
+		    id = Vocabulary.UNK;
+		}
+		else
+		    modelIds[corpusId] = id;
+	    }
+	    unigram[id]++;
+	    tokenCount++;
+	    ids[n++] = id;
+	}
+	unigram[Vocabulary.END]++;
+	tokenCount++;
+	ids[n++] = Vocabulary.END;
+	countNgrams(ids, n);
+    }
+
+    /** Return the training ID buffer with the start padding in place, large
+     *  enough for a sentence of length tokens */
+    protected int[] trainingIds(int length) {
+	if (trainingIds.length < length + order)
+	    trainingIds = new int[2 * (length + order)];
+	Arrays.fill(trainingIds, 0, order - 1, Vocabulary.START);
+	return trainingIds;
+    }
+
+    /** Count the N-grams ending at each predicted token of a padded sentence */
+    protected synchronized void countNgrams(int[] ids, int length) {
+	if (counts == null)
+	    counts = new NgramTrie.Builder(compacted.trie);
+	compacted = null;
+	counts.count(ids, length, order - 1);
+    }
+
+    /** N-gram counts are trained on the calling thread */
+    @Override
+    public void trainSentencesParallel (List<List<String>> sentences, int numThreads) {
+	trainSentences(sentences);
+    }
+
+    /** Build the sorted trie from the counts trained so far */
+    @Override
+    public void calculateProbs() {
+	long start = metrics == null ? 0 : System.nanoTime();
+	modCount++;
+	trie();
+	if (metrics != null)
+	    metrics.calculatedProbs(System.nanoTime() - start);
+    }
+
+    /** Return the sorted trie of the counts trained so far, building it
+     *  if sentences have been counted since it was last built */
+    public NgramTrie trie() {
+	return compacted().trie;
+    }
+
+    /** Return the sorted trie and backoff weights, building them if needed */
+    private Compacted compacted() {
+	Compacted current = compacted;
+	if (current == null) {
+	    synchronized (this) {
+		current = compacted;
+		if (current == null) {
+		    NgramTrie trie = counts.build();
+		    counts = null;
+		    current = new Compacted(trie, backoffWeights(trie));
+		    compacted = current;
+		}
+	    }
+	}
+	return current;
+    }
+
+    /** Return the backoff weight of each context in trie by level and index
+     *  (null unless smoothing is BACKOFF): the probability mass discounted
+     *  from the N-grams seen in the context, divided by the lower-order
+     *  probability of the tokens not seen in it */
+    protected double[][] backoffWeights(NgramTrie trie) {
+	if (smoothing != Smoothing.BACKOFF)
+	    return null;
+	double[][] weights = new double[order][];
+	Compacted lower = new Compacted(trie, weights);
+	int[] ngram = new int[order];
+	for (int level = 1; level < order; level++) {
+	    // Parent index of each node at this level, to recover its tokens
+	    int[][] parents = new int[level + 1][];
+	    for (int up = 1; up <= level; up++) {
+		parents[up] = new int[trie.size(up)];
+		for (int i = 0; i < trie.size(up - 1); i++)
+		    Arrays.fill(parents[up], trie.childStart(up - 1, i), trie.childEnd(up - 1, i), i);
+	    }
+	    weights[level] = new double[trie.size(level)];
+	    for (int index = 0; index < trie.size(level); index++) {
+		double contextCount = trie.contextCount(level, index);
+		if (contextCount == 0)
+		    continue;
+		for (int up = level, i = index; up >= 1; i = parents[up][i], up--)
+		    ngram[up - 1] = trie.word(up, i);
+		double seen = 0;
+		double lowerSeen = 0;
+		for (int child = trie.childStart(level, index); child < trie.childEnd(level, index); child++) {
+		    if (trie.count(level + 1, child) == 0)
+			continue;
+		    seen++;
+		    ngram[level] = trie.word(level + 1, child);
+		    lowerSeen += backoffProb(lower, ngram, level, level);
+		}
+		weights[level][index] = discount * seen / contextCount / Math.max(1 - lowerSeen, Double.MIN_NORMAL);
+	    }
+	}
+	return weights;
+    }
+
+    /** Return the probability of ids[i] following ids[i - order + 1] to ids[i - 1] */
+    protected double ngramProb(int[] ids, int i) {
+	Compacted current = compacted();
+	ModelMetrics metrics = this.metrics;
+	if (metrics != null)
+	    metrics.predicted(i == order - 1, ids[i] == Vocabulary.UNK, current.trie.find(ids, i - order + 1, order) < 0);
+	if (smoothing == Smoothing.BACKOFF)
+	    return backoffProb(current, ids, i, order);
+	return interpolatedProb(current.trie, ids, i);
+    }
+
+    /** Interpolate the estimates of every order of ids[i] given the tokens
+     *  before it, moving the weight of an unseen context to the order below */
+    protected double interpolatedProb(NgramTrie trie, int[] ids, int i) {
+	double prob = 0;
+	double weight = 0;
+	for (int n = order; n >= 2; n--) {
+	    weight += lambdas[n - 1];
+	    int context = trie.find(ids, i - n + 1, n - 1);
+	    if (context < 0 || trie.contextCount(n - 1, context) == 0)
+		continue;
+	    int ngram = trie.child(n - 1, context, ids[i]);
+	    if (ngram >= 0)
+		prob += weight * (trie.count(n, ngram) / trie.contextCount(n - 1, context));
+	    weight = 0;
+	}
+	return prob + (weight + lambdas[0]) * unigramProb(ids[i]);
+    }
+
+    /** Return the backoff probability of ids[i] given at most maxOrder - 1
+     *  tokens before it */
+    private double backoffProb(Compacted current, int[] ids, int i, int maxOrder) {
+	NgramTrie trie = current.trie;
+	double weight = 1;
+	for (int n = maxOrder; n >= 2; n--) {
+	    int context = trie.find(ids, i - n + 1, n - 1);
+	    if (context < 0)
+		continue;
+	    double contextCount = trie.contextCount(n - 1, context);
+	    if (contextCount == 0)
+		continue;
+	    int ngram = trie.child(n - 1, context, ids[i]);
+	    if (ngram >= 0 && trie.count(n, ngram) > 0)
+		return weight * (trie.count(n, ngram) - discount) / contextCount;
+	    weight *= current.backoffWeights[n - 1][context];
+	}
+	return weight * unigramProb(ids[i]);
+    }
+
+    /** Return the index in a sentence of size tokens of the k'th token the
+     *  model predicts (first to last) */
+    protected int tokenIndex (int size, int k) {
+	return k;
+    }
+
+    /** Store order - 1 start IDs, the scoring IDs of the tokens of sentence
+     *  in the order the model predicts them, and the end ID in this thread's
+     *  buffer and return it */
+    protected int[] scoringIds (List<String> sentence) {
+	int size = sentence.size();
+	int[] ids = scoringBuffer(size);
+	int j = 0;
+	for (String token : sentence)
+	    ids[order - 1 + tokenIndex(size, j++)] = scoringId(token);
+	ids[order - 1 + size] = Vocabulary.END;
+	return ids;
+    }
+
+    /** Like scoringIds(List) for sentence s of corpus */
+    protected int[] scoringIds (Corpus corpus, int s) {
+	int[] corpusIds = scoringIds(corpus);
+	int length = corpus.end(s) - corpus.start(s);
+	int[] ids = scoringBuffer(length);
+	for (int k = 0; k < length; k++)
+	    ids[order - 1 + k] = corpusIds[corpus.tokenId(tokenPosition(corpus, s, k))];
+	ids[order - 1 + length] = Vocabulary.END;
+	return ids;
+    }
+
+    /** Return this thread's scoring buffer with start padding, large enough
+     *  for a sentence of size tokens */
+    private int[] scoringBuffer(int size) {
+	int[] ids = scoringBuffer.get();
+	if (ids == null || ids.length < size + order) {
+	    ids = new int[Math.max(64, 2 * (size + order))];
+	    Arrays.fill(ids, 0, order - 1, Vocabulary.START);
+	    scoringBuffer.set(ids);
+	}
+	return ids;
+    }
+
+    /** Sum the log probs of the first numTokens predictions in padded ids */
+    protected double logProb(int[] ids, int numTokens) {
+	ModelMetrics scoring = scoringStarted();
+	try {
+	    double logProb = 0;
+	    for (int k = 0; k < numTokens; k++)
+		logProb += Math.log(ngramProb(ids, order - 1 + k));
+	    return logProb;
+	}
+	finally {
+	    scoringEnded(scoring);
+	}
+    }
+
+    @Override
+    public double sentenceLogProb (List<String> sentence) {
+	return logProb(scoringIds(sentence), sentence.size() + 1);
+    }
+
+    @Override
+    public double sentenceLogProb2 (List<String> sentence) {
+	return logProb(scoringIds(sentence), sentence.size());
+    }
+
+    @Override
+    protected double corpusLogProb (Corpus corpus, int s, boolean includeEnd) {
+	int length = corpus.end(s) - corpus.start(s);
+	return logProb(scoringIds(corpus, s), includeEnd ? length + 1 : length);
+    }
+
+    @Override
+    public int sentenceTokenProbs (List<String> sentence, double[] tokenProbs, int offset) {
+	ModelMetrics scoring = scoringStarted();
+	try {
+	    int size = sentence.size();
+	    int[] ids = scoringIds(sentence);
+	    for (int k = 0; k < size; k++)
+		tokenProbs[offset + tokenIndex(size, k)] = ngramProb(ids, order - 1 + k);
+	    tokenProbs[offset + size] = ngramProb(ids, order - 1 + size);
+	    return size + 1;
+	}
+	finally {
+	    scoringEnded(scoring);
+	}
+    }
+
+    @Override
+    public int sentenceTokenProbs (Corpus corpus, int s, double[] tokenProbs, int offset) {
+	ModelMetrics scoring = scoringStarted();
+	try {
+	    int start = corpus.start(s);
+	    int length = corpus.end(s) - start;
+	    int[] ids = scoringIds(corpus, s);
+	    for (int k = 0; k < length; k++)
+		tokenProbs[offset + tokenPosition(corpus, s, k) - start] = ngramProb(ids, order - 1 + k);
+	    tokenProbs[offset + length] = ngramProb(ids, order - 1 + length);
+	    return length + 1;
+	}
+	finally {
+	    scoringEnded(scoring);
+	}
+    }
+
+    /** Return P(id | prevId) as estimated from the bigram counts (zero if
+     *  the bigram was never seen or the order is 1) */
+    @Override
+    public double bigramProb(int prevId, int id) {
+	NgramTrie trie = trie();
+	if (order < 2)
+	    return 0;
+	int context = trie.child(0, 0, prevId);
+	if (context < 0 || trie.contextCount(1, context) == 0)
+	    return 0;
+	int bigram = trie.child(1, context, id);
+	return bigram < 0 ? 0 : trie.count(2, bigram) / trie.contextCount(1, context);
+    }
+
+    /** Return the number of distinct N-grams of all orders */
+    @Override
+    public long tableSize() {
+	Compacted current = compacted;
+	if (current != null)
+	    return current.trie.size();
+	NgramTrie.Builder building = counts;
+	return building == null ? 0 : building.size();
+    }
+
+    /** Return the estimated bytes of the unigram counts and N-gram trie */
+    @Override
+    public long estimatedBytes() {
+	Compacted current = compacted;
+	if (current != null)
+	    return 8L * unigram.length + current.trie.bytes();
+	NgramTrie.Builder building = counts;
+	return 8L * unigram.length + (building == null ? 0 : building.bytes());
+    }
+
+    @Override
+    public SuccessorIndex successorIndex() {
+	throw new UnsupportedOperationException("Top-k prediction needs a BigramModel");
+    }
+
+    @Override
+    public void spillCounts(File dir, long budgetBytes) {
+	throw new UnsupportedOperationException("N-gram counts are kept in a trie, not a spillable bigram table");
+    }
+
+    @Override
+    public void save(File file) throws IOException {
+	throw new UnsupportedOperationException("ModelFile stores bigram models only");
+    }
+
+    /** Print the number and size of the N-grams of each order */
+    @Override
+    public void print() {
+	NgramTrie trie = trie();
+	for (int n = 1; n <= order; n++)
+	    System.out.println(n + "-grams: " + trie.size(n));
+	System.out.println("Trie bytes: " + trie.bytes());
+    }
+
+    /** Train and test an N-gram model.
+     *  Command format: "lm.NgramModel [-order N] [-smoothing interpolated|backoff]
+     *  [-discount D] [-model forward|backward|bidirectional] [DIR]* TestFrac"
+     *  where N is the longest N-gram (at least 1, default 3), D the
+     *  backoff discount (in (0, 1), default 0.75), and DIR and TestFrac are as for BigramModel. The
+     *  bidirectional model interpolates a forward and a backward N-gram
+     *  model with equal weights */
+    public static void main(String[] args) throws IOException {
+	int order = 3;
+	Smoothing smoothing = Smoothing.INTERPOLATED;
+	double discount = 0.75;
+	String kind = "forward";
+	List<File> fileList = new ArrayList<File>();
+	int i = 0;
+	for (; i < args.length - 1; i++) {
+	    if (args[i].equals("-order"))
+		order = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-smoothing"))
+		smoothing = Smoothing.valueOf(args[++i].toUpperCase());
+	    else if (args[i].equals("-discount"))
+		discount = Double.parseDouble(args[++i]);
+	    else if (args[i].equals("-model"))
+		kind = args[++i];
+	    else
+		fileList.add(new File(args[i]));
+	}
+	File[] files = fileList.toArray(new File[0]);
+	double testFraction = Double.valueOf(args[args.length - 1]);
+	Corpus sentences = Corpus.load(files);
+	int numSentences = sentences.size();
+	int numTest = (int)Math.round(numSentences * testFraction);
+	Corpus testSentences = sentences.subList(numSentences - numTest, numSentences);
+	Corpus trainSentences = sentences.subList(0, numSentences - numTest);
+	System.out.println("# Train Sentences = " + trainSentences.size() +
+			   " (# words = " + wordCount(trainSentences) +
+			   ") \n# Test Sentences = " + testSentences.size() +
+			   " (# words = " + wordCount(testSentences) + ")");
+	NgramModel forward = null;
+	NgramModel backward = null;
+	BigramModel model;
+	if (kind.equals("forward"))
+	    model = forward = new NgramModel(order, smoothing);
+	else if (kind.equals("backward"))
+	    model = backward = new BackwardNgramModel(order, smoothing);
+	else if (kind.equals("bidirectional")) {
+	    forward = new NgramModel(order, smoothing);
+	    backward = new BackwardNgramModel(order, smoothing);
+	    model = new BidirectionalBigramModel(forward, backward, 0.5, 0.5);
+	}
+	else
+	    throw new IllegalArgumentException("Unknown model: " + kind);
+	for (NgramModel ngramModel : new NgramModel[] {forward, backward}) {
+	    if (ngramModel != null)
+		ngramModel.setDiscount(discount);
+	}
+	ModelMetrics.install(model);
+	System.out.println("Training...");
+	model.train(trainSentences);
+	for (NgramModel ngramModel : new NgramModel[] {forward, backward}) {
+	    if (ngramModel != null)
+		System.out.println("# " + ngramModel.getClass().getSimpleName() + " " + order + "-grams = " +
+				   ngramModel.trie().size() + " (" + ngramModel.trie().bytes() / 1024 + " KB)");
+	}
+	model.test(trainSentences);
+	model.test2(trainSentences);
+	System.out.println("Testing...");
+	model.test(testSentences);
+	model.test2(testSentences);
+    }
+}
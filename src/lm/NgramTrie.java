@@ -0,0 +1,265 @@
+package lm;
+
+import java.util.*;
+
+/**
+ * A compact trie of N-gram counts stored as sorted primitive arrays, one
+ * set per level. Level n holds every distinct n-gram (n = 1 to order) as
+ * the ID of its last token and its count; the n-grams extending each node
+ * are stored contiguously at the next level, sorted by token ID, and
+ * children[n][i] to children[n][i + 1] is the range of node i's. Level 0
+ * is the single root, whose children are all of level 1. An n-gram is
+ * found by binary search down its n levels and nothing is allocated, so
+ * memory grows with the number of distinct N-grams at about 24 bytes each.
+ *
+ * A node's context count, the sum of its children's counts, is the number
+ * of times its n-gram was followed by a counted token (see NgramModel).
+ * A trie is built from counts with a Builder and is not changed after.
+ *
+ * @author TSM
+ */
+
+public class NgramTrie {
+
+    /** Length of the longest N-grams */
+    public final int order;
+
+    /** Per level, last token ID of each node, sorted within each parent's range */
+    protected final int[][] words;
+
+    /** Per level, count of each node's n-gram */
+    protected final double[][] counts;
+
+    /** Per level below order, sum of the counts of each node's children */
+    protected final double[][] contextCounts;
+
+    /** Per level below order, start of each node's children at the next level,
+     *  with one extra entry for the end of the last node's */
+    protected final int[][] children;
+
+    /** Create a trie from per-level arrays (see Builder.build) */
+    protected NgramTrie(int order, int[][] words, double[][] counts, int[][] children) {
+	this.order = order;
+	this.words = words;
+	this.counts = counts;
+	this.children = children;
+	contextCounts = new double[order][];
+	for (int level = 0; level < order; level++) {
+	    double[] contextCount = new double[words[level].length];
+	    double[] childCounts = counts[level + 1];
+	    int[] start = children[level];
+	    for (int i = 0; i < contextCount.length; i++) {
+		for (int child = start[i]; child < start[i + 1]; child++)
+		    contextCount[i] += childCounts[child];
+	    }
+	    contextCounts[level] = contextCount;
+	}
+    }
+
+    /** Return the number of nodes at level */
+    public int size(int level) {
+	return words[level].length;
+    }
+
+    /** Return the number of distinct N-grams of all orders */
+    public long size() {
+	long size = 0;
+	for (int level = 1; level <= order; level++)
+	    size += words[level].length;
+	return size;
+    }
+
+    /** Return the index at level + 1 of the child of node index at level
+     *  for token ID id, or -1 if there is none */
+    public int child(int level, int index, int id) {
+	int[] start = children[level];
+	int found = Arrays.binarySearch(words[level + 1], start[index], start[index + 1], id);
+	return found < 0 ? -1 : found;
+    }
+
+    /** Return the index at level n of the n-gram ids[from] to ids[from + n - 1],
+     *  or -1 if it was never counted */
+    public int find(int[] ids, int from, int n) {
+	int index = 0;
+	for (int level = 0; level < n && index >= 0; level++)
+	    index = child(level, index, ids[from + level]);
+	return index;
+    }
+
+    /** Return the count of node index at level */
+    public double count(int level, int index) {
+	return counts[level][index];
+    }
+
+    /** Return the context count of node index at level (below order) */
+    public double contextCount(int level, int index) {
+	return contextCounts[level][index];
+    }
+
+    /** Return the token ID of node index at level */
+    public int word(int level, int index) {
+	return words[level][index];
+    }
+
+    /** Return the index at level + 1 of the first child of node index at level */
+    public int childStart(int level, int index) {
+	return children[level][index];
+    }
+
+    /** Return the index at level + 1 after the last child of node index at level */
+    public int childEnd(int level, int index) {
+	return children[level][index + 1];
+    }
+
+    /** Return the approximate number of bytes in the trie's arrays */
+    public long bytes() {
+	long bytes = 0;
+	for (int level = 0; level <= order; level++) {
+	    bytes += 12L * words[level].length;
+	    if (level < order)
+		bytes += 4L * children[level].length + 8L * contextCounts[level].length;
+	}
+	return bytes;
+    }
+
+    /**
+     * Counts N-grams in a hash trie that can grow, for building an NgramTrie.
+     * Each node has an int ID (the root is 0) and an edge table maps (parent
+     * ID, token ID), packed with BigramTable.key, to the child's ID.
+     */
+    public static class Builder {
+
+	/** Length of the longest N-grams */
+	public final int order;
+
+	/** Child node ID by packed (parent node ID, token ID) */
+	protected BigramTable edges;
+
+	/** Count and level of each node by ID */
+	protected double[] nodeCounts;
+	protected byte[] nodeLevels;
+	protected int numNodes = 1;
+
+	/** Create an empty builder for N-grams up to order long */
+	public Builder(int order) {
+	    if (order < 1 || order > Byte.MAX_VALUE)
+		throw new IllegalArgumentException("Bad N-gram order " + order);
+	    this.order = order;
+	    edges = new BigramTable();
+	    nodeCounts = new double[1024];
+	    nodeLevels = new byte[1024];
+	}
+
+	/** Create a builder holding the counts of trie, to count more */
+	public Builder(NgramTrie trie) {
+	    this(trie.order);
+	    // Node IDs of the previous level by index
+	    int[] ids = {0};
+	    for (int level = 0; level < order; level++) {
+		int[] childIds = new int[trie.size(level + 1)];
+		for (int i = 0; i < ids.length; i++) {
+		    for (int child = trie.childStart(level, i); child < trie.childEnd(level, i); child++) {
+			childIds[child] = addNode(ids[i], trie.word(level + 1, child), level + 1);
+			nodeCounts[childIds[child]] = trie.count(level + 1, child);
+		    }
+		}
+		ids = childIds;
+	    }
+	}
+
+	/** Count the N-grams in ids[0] to ids[length - 1] that end at firstCounted
+	 *  or after: for each end position, the N-grams of every order up to order
+	 *  that fit in the array */
+	public void count(int[] ids, int length, int firstCounted) {
+	    for (int start = 0; start < length; start++) {
+		int node = 0;
+		int n = Math.min(order, length - start);
+		for (int level = 1; level <= n; level++) {
+		    int id = ids[start + level - 1];
+		    int child = (int) edges.get(BigramTable.key(node, id));
+		    if (child == 0)
+			child = addNode(node, id, level);
+		    if (start + level - 1 >= firstCounted)
+			nodeCounts[child]++;
+		    node = child;
+		}
+	    }
+	}
+
+	/** Add a node with zero count for token ID id under parent and return its ID */
+	protected int addNode(int parent, int id, int level) {
+	    if (numNodes == nodeCounts.length) {
+		nodeCounts = Arrays.copyOf(nodeCounts, 2 * numNodes);
+		nodeLevels = Arrays.copyOf(nodeLevels, 2 * numNodes);
+	    }
+	    int node = numNodes++;
+	    nodeLevels[node] = (byte) level;
+	    edges.put(BigramTable.key(parent, id), node);
+	    return node;
+	}
+
+	/** Return the number of nodes counted so far, not counting the root */
+	public int size() {
+	    return numNodes - 1;
+	}
+
+	/** Return the approximate number of bytes in the builder's tables */
+	public long bytes() {
+	    return 16L * edges.capacity() + 9L * nodeCounts.length;
+	}
+
+	/** Build the sorted-array trie of the counts so far */
+	public NgramTrie build() {
+	    // Gather the edges of each level
+	    long[][] levelKeys = new long[order + 1][];
+	    int[] levelSizes = new int[order + 1];
+	    for (int node = 1; node < numNodes; node++)
+		levelSizes[nodeLevels[node]]++;
+	    for (int level = 1; level <= order; level++)
+		levelKeys[level] = new long[levelSizes[level]];
+	    Arrays.fill(levelSizes, 0);
+	    for (int slot = 0; slot < edges.capacity(); slot++) {
+		if (edges.isUsed(slot)) {
+		    int level = nodeLevels[(int) edges.valueAt(slot)];
+		    levelKeys[level][levelSizes[level]++] = edges.keyAt(slot);
+		}
+	    }
+	    int[][] words = new int[order + 1][];
+	    double[][] counts = new double[order + 1][];
+	    int[][] children = new int[order][];
+	    words[0] = new int[1];
+	    counts[0] = new double[1];
+	    // Node IDs of the previous level by index, and index by node ID
+	    int[] ids = {0};
+	    int[] index = new int[numNodes];
+	    for (int level = 1; level <= order; level++) {
+		// Renumber parents by their index and sort by (parent index, token ID)
+		long[] keys = levelKeys[level];
+		for (int i = 0; i < keys.length; i++)
+		    keys[i] = BigramTable.key(index[BigramTable.id1(keys[i])], BigramTable.id2(keys[i]));
+		Arrays.sort(keys);
+		int[] levelWords = new int[keys.length];
+		double[] levelCounts = new double[keys.length];
+		int[] levelIds = new int[keys.length];
+		int[] start = new int[ids.length + 1];
+		for (int i = 0; i < keys.length; i++) {
+		    int parent = BigramTable.id1(keys[i]);
+		    levelWords[i] = BigramTable.id2(keys[i]);
+		    levelIds[i] = (int) edges.get(BigramTable.key(ids[parent], levelWords[i]));
+		    levelCounts[i] = nodeCounts[levelIds[i]];
+		    start[parent + 1]++;
+		}
+		for (int i = 0; i < ids.length; i++)
+		    start[i + 1] += start[i];
+		for (int i = 0; i < keys.length; i++)
+		    index[levelIds[i]] = i;
+		words[level] = levelWords;
+		counts[level] = levelCounts;
+		children[level - 1] = start;
+		levelKeys[level] = null;
+		ids = levelIds;
+	    }
+	    return new NgramTrie(order, words, counts, children);
+	}
+    }
+}
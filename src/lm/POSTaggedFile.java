@@ -2,6 +2,8 @@ package lm;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
 
 /** 
  *
@@ -18,15 +20,19 @@ public class POSTaggedFile {
     /** The I/O reader for accessing the file */
     protected BufferedReader reader = null;
 
-    /** Create an object for a given LDC POS tagged file */
+    /** Number of threads convertToTokenLists parses files on. Defaults to the
+     *  lm.loadThreads system property, or else the number of processors */
+    public static int loadThreads = Integer.getInteger("lm.loadThreads", Runtime.getRuntime().availableProcessors());
+
+    /** Create an object for a given LDC POS tagged file. Throws an
+     *  UncheckedIOException if the file cannot be opened */
     public POSTaggedFile(File file) {
 	this.file = file;
 	try {
 	    this.reader = new BufferedReader(new FileReader(file));
 	}
 	catch (IOException e) {
-	    System.out.println("\nCould not open POSTaggedFile: " + file);
-	    System.exit(1);
+	    throw new UncheckedIOException(new IOException("Could not open POSTaggedFile: " + file, e));
 	}
     }
 
@@ -53,8 +59,8 @@ public class POSTaggedFile {
 	    } while (line.equals(""));
 	}
 	catch (IOException e) {
-	    System.out.println("\nCould not read from TextFileDocument: " + file);
-	    System.exit(1);
+	    close();
+	    throw new UncheckedIOException(new IOException("Could not read from POSTaggedFile: " + file, e));
 	}
 	return line;
     }
@@ -92,16 +98,25 @@ public class POSTaggedFile {
         the sentences in this file */
     protected List<List<String>> tokenLists() {
 	List<List<String>> sentences = new ArrayList<List<String>>();
+	List<String> sentence;
+	while ((sentence = nextSentence()) != null) 
+	    sentences.add(sentence);
+	return sentences;
+    }
+
+    /** Return the next sentence in this file as a List of String tokens,
+        or null if there are no more sentences */
+    protected List<String> nextSentence() {
+	if (reader == null)
+	    return null;
 	List<String> sentence = new ArrayList<String>();
 	String line;
 	while ((line=getNextPOSLine()) != null) {
 	    // Newline line indicates new sentence
 	    if (line.equals("\n")) {
 		if (!sentence.isEmpty()) {
-		    // Save completed sentence
-		    sentences.add(sentence);
-		    // and start a new sentence
-		    sentence = new ArrayList<String>();
+		    // Return completed sentence
+		    return sentence;
 		}
 	    }
 	    else {
@@ -114,10 +129,8 @@ public class POSTaggedFile {
 			tokens.remove(tokens.size()-1);
 			// and add final sentence tokens
 			sentence.addAll(tokens);
-			// Save completed sentence
-			sentences.add(sentence);
-			// and start a new sentence
-			sentence = new ArrayList<String>();
+			// Return completed sentence
+			return sentence;
 		    }
 		    else {
 			// Add the tokens in the line to the current sentence
@@ -126,32 +139,225 @@ public class POSTaggedFile {
 		}
 	    }
 	}
-	// File should always end at end of a sentence
+	// End of file (reader is closed), which should always be at end of a sentence
+	reader = null;
 	assert(sentence.isEmpty());
-	return sentences;
+	return null;
+    }
+
+    /** Close the file if it has not been read to the end */
+    public void close() {
+	if (reader == null)
+	    return;
+	try {
+	    reader.close();
+	}
+	catch (IOException e) {
+	    // Nothing more will be read from it
+	}
+	reader = null;
     }
 
+    /** Return an Iterator over the sentences in this file, each represented as a List
+        of String tokens, that reads the file one sentence at a time */
+    public Iterator<List<String>> sentenceIterator() {
+	return new Iterator<List<String>>() {
+	    List<String> next = nextSentence();
+
+	    public boolean hasNext() {
+		return next != null;
+	    }
+
+	    public List<String> next() {
+		if (next == null)
+		    throw new NoSuchElementException();
+		List<String> sentence = next;
+		next = nextSentence();
+		return sentence;
+	    }
+	};
+    }
 
     /** Take a list of LDC tagged input files or directories and convert them to a List of sentences
-       each represented as a List of token Strings */
+       each represented as a List of token Strings. The files are parsed on loadThreads 
+       threads (see convertToTokenLists(File[], int)) */
     public static List<List<String>> convertToTokenLists(File[] files) { 
-	List<List<String>> sentences = new ArrayList<List<String>>();
+	return convertToTokenLists(files, loadThreads);
+    }
+
+    /** Take a list of LDC tagged input files or directories and convert them to a List of sentences
+       each represented as a List of token Strings, parsing up to numThreads files at once. 
+       The sentences are in the same order however many threads are used. Every file is 
+       read before a CorpusReadException reporting all those that could not be */
+    public static List<List<String>> convertToTokenLists(File[] files, int numThreads) { 
+	List<File> inputFiles = new ArrayList<File>();
+	List<IOException> errors = new ArrayList<IOException>();
+	listInputFiles(files, inputFiles, errors);
+	List<List<List<String>>> fileSentences = new ArrayList<List<List<String>>>();
+	if (numThreads <= 1 || inputFiles.size() <= 1) {
+	    for (File file : inputFiles) {
+		try {
+		    fileSentences.add(new POSTaggedFile(file).tokenLists());
+		}
+		catch (UncheckedIOException e) {
+		    errors.add(e.getCause());
+		}
+	    }
+	}
+	else {
+	    ExecutorService pool = Executors.newFixedThreadPool(Math.min(numThreads, inputFiles.size()));
+	    try {
+		List<Future<List<List<String>>>> futures = new ArrayList<Future<List<List<String>>>>();
+		for (File file : inputFiles)
+		    futures.add(pool.submit(() -> new POSTaggedFile(file).tokenLists()));
+		// Collect in file order, whatever order the files finish in
+		for (Future<List<List<String>>> future : futures) {
+		    try {
+			fileSentences.add(future.get());
+		    }
+		    catch (ExecutionException e) {
+			if (e.getCause() instanceof UncheckedIOException)
+			    errors.add(((UncheckedIOException) e.getCause()).getCause());
+			else if (e.getCause() instanceof RuntimeException)
+			    throw (RuntimeException) e.getCause();
+			else
+			    throw new IllegalStateException(e.getCause());
+		    }
+		    catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while reading input files", e);
+		    }
+		}
+	    }
+	    finally {
+		pool.shutdownNow();
+	    }
+	}
+	if (!errors.isEmpty())
+	    throw new CorpusReadException(errors);
+	int numSentences = 0;
+	for (List<List<String>> sentences : fileSentences)
+	    numSentences += sentences.size();
+	List<List<String>> sentences = new ArrayList<List<String>>(numSentences);
+	for (List<List<String>> someSentences : fileSentences)
+	    sentences.addAll(someSentences);
+	return sentences;
+    }
+	
+    /** Take a list of LDC tagged input files or directories and add the files to
+       process, in the order convertToTokenLists reads them, to inputFiles. Throws
+       a CorpusReadException if a directory cannot be listed */
+    public static void listInputFiles(File[] files, List<File> inputFiles) {
+	List<IOException> errors = new ArrayList<IOException>();
+	listInputFiles(files, inputFiles, errors);
+	if (!errors.isEmpty())
+	    throw new CorpusReadException(errors);
+    }
+
+    /** Like listInputFiles, but add an error to errors for each file or directory
+       that does not exist or cannot be listed */
+    protected static void listInputFiles(File[] files, List<File> inputFiles, List<IOException> errors) {
 	for (int i = 0; i < files.length; i++) {
 	    File file = files[i];
 	    if (!file.isDirectory()) {
-		if (!file.getName().contains("CHANGES.LOG"))
-		    sentences.addAll(new POSTaggedFile(file).tokenLists());
+		if (!file.exists())
+		    errors.add(new FileNotFoundException("No such input file: " + file));
+		else if (!file.getName().contains("CHANGES.LOG"))
+		    inputFiles.add(file);
 	    }
-	    else 
-	    {
+	    else {
 		File[] dirFiles = file.listFiles();
-		sentences.addAll(convertToTokenLists(dirFiles));
+		if (dirFiles == null)
+		    errors.add(new IOException("Could not list directory: " + file));
+		else
+		    listInputFiles(dirFiles, inputFiles, errors);
 	    }
-		
-	}          
-	return sentences;
+	}
     }
-	
+
+    /** Take a list of LDC tagged input files or directories and return an Iterator
+       over their sentences, in the same order as convertToTokenLists, that holds 
+       only one open file and one sentence in memory at a time */
+    public static CloseableIterator sentenceIterator(File[] files) {
+	List<File> inputFiles = new ArrayList<File>();
+	listInputFiles(files, inputFiles);
+	return new CloseableIterator(inputFiles);
+    }
+
+    /** Take a list of LDC tagged input files or directories and return a sequential
+       Stream of their sentences, in the same order as convertToTokenLists. Closing 
+       the stream closes the file being read */
+    public static Stream<List<String>> sentenceStream(File[] files) {
+	CloseableIterator sentences = sentenceIterator(files);
+	Spliterator<List<String>> spliterator = 
+	    Spliterators.spliteratorUnknownSize(sentences, Spliterator.ORDERED | Spliterator.NONNULL);
+	return StreamSupport.stream(spliterator, false).onClose(sentences::close);
+    }
+
+    /** Return the number of sentences in a list of LDC tagged input files or directories
+       without keeping them in memory, e.g. to split a corpus that is streamed */
+    public static int countSentences(File[] files) {
+	int count = 0;
+	CloseableIterator sentences = sentenceIterator(files);
+	while (sentences.hasNext()) {
+	    sentences.next();
+	    count++;
+	}
+	return count;
+    }
+
+    /** Iterator over the sentences of a list of files that opens each file only 
+        when the previous one has been read */
+    public static class CloseableIterator implements Iterator<List<String>>, Closeable {
+	/** Files still to be read */
+	protected Iterator<File> files;
+	/** File being read */
+	protected POSTaggedFile current = null;
+	/** Next sentence to return, null when all files are read */
+	protected List<String> next = null;
+
+	protected CloseableIterator(List<File> files) {
+	    this.files = files.iterator();
+	    advance();
+	}
+
+	/** Read the next sentence, moving on to the next file when one is exhausted */
+	protected void advance() {
+	    next = null;
+	    while (next == null) {
+		if (current != null)
+		    next = current.nextSentence();
+		if (next == null) {
+		    if (!files.hasNext()) {
+			current = null;
+			return;
+		    }
+		    current = new POSTaggedFile(files.next());
+		}
+	    }
+	}
+
+	public boolean hasNext() {
+	    return next != null;
+	}
+
+	public List<String> next() {
+	    if (next == null)
+		throw new NoSuchElementException();
+	    List<String> sentence = next;
+	    advance();
+	    return sentence;
+	}
+
+	/** Close the file being read, if any */
+	public void close() {
+	    if (current != null)
+		current.close();
+	    current = null;
+	    next = null;
+	}
+    }
+
     /** Convert LDC POS tagged files to just lists of tokens for each setences 
      *  and print them out. */
     public static void main(String[] args) throws IOException {
@@ -0,0 +1,105 @@
+package lm;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Sums the log probs of a list of sentences across several threads with a
+ * fork/join pool. The sentences are cut into fixed-size chunks, each chunk
+ * is summed with compensated (Kahan-Babuska) summation, and the chunk sums
+ * are then combined in chunk order. Since the chunks do not depend on the
+ * number of threads, the total is the same to the last digit however many
+ * threads are used.
+ *
+ * @author TSM
+ */
+
+public class ParallelScorer {
+
+    /** Number of sentences summed together as one chunk */
+    public static final int CHUNK_SIZE = 64;
+
+    /** Computes the log prob of one sentence; must be safe to call from several threads */
+    public interface SentenceScorer {
+	double logProb(List<String> sentence);
+    }
+
+    /** Return the sum of scorer's log probs over sentences, using numThreads threads */
+    public static double sumLogProbs(List<List<String>> sentences, SentenceScorer scorer, int numThreads) {
+	int numChunks = (sentences.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+	// Sum and compensation (lost low-order bits) of each chunk
+	double[] sums = new double[numChunks];
+	double[] compensations = new double[numChunks];
+	ForkJoinPool pool = new ForkJoinPool(Math.max(numThreads, 1));
+	try {
+	    pool.invoke(new ChunkTask(sentences, scorer, sums, compensations, 0, numChunks));
+	}
+	finally {
+	    pool.shutdown();
+	}
+	// Combine chunk sums in order
+	double sum = 0;
+	double compensation = 0;
+	for (int chunk = 0; chunk < numChunks; chunk++) {
+	    double value = sums[chunk];
+	    double total = sum + value;
+	    compensation += compensationOf(sum, value, total) + compensations[chunk];
+	    sum = total;
+	}
+	return sum + compensation;
+    }
+
+    /** Return the low-order part of a + b lost when it was rounded to total */
+    protected static double compensationOf(double a, double b, double total) {
+	if (Math.abs(a) >= Math.abs(b))
+	    return (a - total) + b;
+	else
+	    return (b - total) + a;
+    }
+
+    /** Sums a range of chunks, splitting it in half until it is a single chunk */
+    protected static class ChunkTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	protected final List<List<String>> sentences;
+	protected final SentenceScorer scorer;
+	protected final double[] sums;
+	protected final double[] compensations;
+	protected final int fromChunk;
+	protected final int toChunk;
+
+	protected ChunkTask(List<List<String>> sentences, SentenceScorer scorer, double[] sums,
+			    double[] compensations, int fromChunk, int toChunk) {
+	    this.sentences = sentences;
+	    this.scorer = scorer;
+	    this.sums = sums;
+	    this.compensations = compensations;
+	    this.fromChunk = fromChunk;
+	    this.toChunk = toChunk;
+	}
+
+	@Override
+	protected void compute() {
+	    if (toChunk - fromChunk > 1) {
+		int mid = (fromChunk + toChunk) >>> 1;
+		invokeAll(new ChunkTask(sentences, scorer, sums, compensations, fromChunk, mid),
+			  new ChunkTask(sentences, scorer, sums, compensations, mid, toChunk));
+		return;
+	    }
+	    if (toChunk == fromChunk)
+		return;
+	    int from = fromChunk * CHUNK_SIZE;
+	    int to = Math.min(from + CHUNK_SIZE, sentences.size());
+	    double sum = 0;
+	    double compensation = 0;
+	    for (int s = from; s < to; s++) {
+		double value = scorer.logProb(sentences.get(s));
+		double total = sum + value;
+		compensation += compensationOf(sum, value, total);
+		sum = total;
+	    }
+	    sums[fromChunk] = sum;
+	    compensations[fromChunk] = compensation;
+	}
+    }
+}
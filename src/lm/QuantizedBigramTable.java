@@ -0,0 +1,133 @@
+package lm;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only BigramTable that stores each bigram's conditional
+ * probability as an 8- or 16-bit code into a per-model codebook instead
+ * of as a double. Keys are held in ascending order and found by binary
+ * search, in chunks as in MappedBigramTable, and the codes are chunked the
+ * same way. Since BigramModel divides a bigram's value by its context's
+ * unigram count, get returns the decoded probability times that count.
+ * Built by ModelCompactor over arrays, or mapped from a model file that
+ * saved the codes (see ModelFile).
+ *
+ * @author TSM
+ */
+
+public class QuantizedBigramTable extends MappedBigramTable {
+
+    /** 8-bit codes for the key at the same index, or null if 16-bit codes are used */
+    protected final ByteBuffer[] byteCodes;
+
+    /** 16-bit codes for the key at the same index, or null if 8-bit codes are used */
+    protected final ShortBuffer[] shortCodes;
+
+    /** Probability each code stands for */
+    protected final double[] codebook;
+
+    /** Unigram counts of the model, indexed by the first token of a bigram */
+    protected final double[] contextCounts;
+
+    /** Create a table of sorted keys with codes of the given number of bits (8 or 16)
+     *  into codebook, for a model with the given unigram counts */
+    public QuantizedBigramTable(long[] sortedKeys, int[] codes, int bits, double[] codebook, double[] contextCounts) {
+	this(sortedKeys.length, bits, codebook, contextCounts);
+	wrapKeys(LongBuffer.wrap(sortedKeys));
+	if (bits == 8) {
+	    byte[] bytes = new byte[codes.length];
+	    for (int i = 0; i < codes.length; i++)
+		bytes[i] = (byte) codes[i];
+	    for (int c = 0; c < byteCodes.length; c++)
+		byteCodes[c] = ByteBuffer.wrap(bytes).slice(c << CHUNK_SHIFT, chunkLength(c));
+	}
+	else {
+	    short[] shorts = new short[codes.length];
+	    for (int i = 0; i < codes.length; i++)
+		shorts[i] = (short) codes[i];
+	    for (int c = 0; c < shortCodes.length; c++)
+		shortCodes[c] = ShortBuffer.wrap(shorts).slice(c << CHUNK_SHIFT, chunkLength(c));
+	}
+    }
+
+    /** Create a table of numBigrams bigrams whose key and code chunks are yet to be set */
+    protected QuantizedBigramTable(int numBigrams, int bits, double[] codebook, double[] contextCounts) {
+	super(numBigrams);
+	if (bits != 8 && bits != 16)
+	    throw new IllegalArgumentException("Codes must be 8 or 16 bits: " + bits);
+	if (codebook.length > 1 << bits)
+	    throw new IllegalArgumentException("Codebook of " + codebook.length + " entries for " + bits + "-bit codes");
+	this.byteCodes = bits == 8 ? new ByteBuffer[numChunks(numBigrams)] : null;
+	this.shortCodes = bits == 16 ? new ShortBuffer[numChunks(numBigrams)] : null;
+	this.codebook = codebook;
+	this.contextCounts = contextCounts;
+    }
+
+    /** Map numBigrams sorted keys at keyPosition of channel and their codes of the
+     *  given number of bits at codePosition read-only, one mapping per chunk */
+    public static QuantizedBigramTable map(FileChannel channel, long keyPosition, long codePosition, long numBigrams,
+					   int bits, double[] codebook, double[] contextCounts) throws IOException {
+	checkSize(numBigrams);
+	if (codePosition + bits / 8 * numBigrams > channel.size())
+	    throw new EOFException("Truncated bigram codes");
+	QuantizedBigramTable table = new QuantizedBigramTable((int) numBigrams, bits, codebook, contextCounts);
+	table.mapKeys(channel, keyPosition);
+	for (int c = 0; c < numChunks((int) numBigrams); c++) {
+	    if (bits == 8)
+		table.byteCodes[c] = table.mapChunk(channel, codePosition, c, 1);
+	    else
+		table.shortCodes[c] = table.mapChunk(channel, codePosition, c, 2).asShortBuffer();
+	}
+	return table;
+    }
+
+    /** Return the number of bits per code, 8 or 16 */
+    public int getBits() {
+	return byteCodes != null ? 8 : 16;
+    }
+
+    /** Return the probability each code stands for */
+    public double[] getCodebook() {
+	return codebook;
+    }
+
+    /** Return the code stored at an index */
+    public int codeAt(int index) {
+	if (byteCodes != null)
+	    return byteCodes[index >>> CHUNK_SHIFT].get(index & CHUNK_MASK) & 0xFF;
+	return shortCodes[index >>> CHUNK_SHIFT].get(index & CHUNK_MASK) & 0xFFFF;
+    }
+
+    /** Return the probability stored at an index */
+    public double probAt(int index) {
+	return codebook[codeAt(index)];
+    }
+
+    /** Return the estimated number of bytes used by the table */
+    public long bytes() {
+	return (long) numBigrams * (8 + getBits() / 8) + 8L * codebook.length;
+    }
+
+    @Override
+    public double get(long key) {
+	int index = indexOf(key);
+	return index < 0 ? 0 : probAt(index) * contextCounts[BigramTable.id1(key)];
+    }
+
+    @Override
+    public double valueAt(int slot) {
+	return probAt(slot) * contextCounts[BigramTable.id1(keyAt(slot))];
+    }
+
+    @Override
+    public void setValueAt(int slot, double value) {
+	throw new UnsupportedOperationException("Quantized bigram table is read-only");
+    }
+
+    @Override
+    protected int insert(long key) {
+	throw new UnsupportedOperationException("Quantized bigram table is read-only");
+    }
+}
@@ -0,0 +1,111 @@
+package lm;
+
+import java.util.*;
+
+/**
+ * A cache of sentence scores bounded to maxSize entries that evicts the
+ * least recently used entry when full, and counts hits, misses and
+ * evictions. Subclasses can plug in other eviction behaviour through
+ * recordAccess and admit (see TinyLfuScoreCache). Not thread-safe on its
+ * own; CachingScorer synchronizes access.
+ *
+ * @author TSM
+ */
+
+public class ScoreCache<K, V> {
+
+    /** Maximum number of entries */
+    protected final int maxSize;
+
+    /** Entries in access order, least recently used first */
+    protected final LinkedHashMap<K, V> entries;
+
+    /** Number of lookups that found an entry */
+    protected long hits = 0;
+
+    /** Number of lookups that found no entry */
+    protected long misses = 0;
+
+    /** Number of entries removed to make room for others */
+    protected long evictions = 0;
+
+    /** Create an empty LRU cache of at most maxSize entries */
+    public ScoreCache(int maxSize) {
+	this.maxSize = maxSize;
+	this.entries = new LinkedHashMap<K, V>(16, 0.75f, true);
+    }
+
+    /** Return the value cached for key, or null */
+    public V get(K key) {
+	recordAccess(key);
+	V value = entries.get(key);
+	if (value == null)
+	    misses++;
+	else
+	    hits++;
+	return value;
+    }
+
+    /** Cache value for key, evicting the least recently used entry if the cache is full */
+    public void put(K key, V value) {
+	if (entries.containsKey(key) || entries.size() < maxSize) {
+	    entries.put(key, value);
+	    return;
+	}
+	if (maxSize == 0)
+	    return;
+	Iterator<K> eldest = entries.keySet().iterator();
+	K victim = eldest.next();
+	if (!admit(key, victim))
+	    return;
+	eldest.remove();
+	evictions++;
+	entries.put(key, value);
+    }
+
+    /** Remove every entry, e.g. because the model changed */
+    public void clear() {
+	entries.clear();
+    }
+
+    /** Note a lookup of key; used by frequency-aware subclasses */
+    protected void recordAccess(K key) {
+    }
+
+    /** Return whether a new entry for candidate should replace the entry for victim
+     *  when the cache is full. An LRU cache always admits it */
+    protected boolean admit(K candidate, K victim) {
+	return true;
+    }
+
+    /** Return the number of entries */
+    public int size() {
+	return entries.size();
+    }
+
+    /** Return the number of lookups that found an entry */
+    public long getHits() {
+	return hits;
+    }
+
+    /** Return the number of lookups that found no entry */
+    public long getMisses() {
+	return misses;
+    }
+
+    /** Return the number of entries removed to make room for others */
+    public long getEvictions() {
+	return evictions;
+    }
+
+    /** Return the fraction of lookups that found an entry */
+    public double hitRate() {
+	long lookups = hits + misses;
+	return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    public String toString() {
+	return getClass().getSimpleName() + "[size=" + size() + "/" + maxSize + ", hits=" + hits + 
+	    ", misses=" + misses + ", evictions=" + evictions + "]";
+    }
+}
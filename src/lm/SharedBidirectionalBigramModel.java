@@ -0,0 +1,241 @@
+package lm;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+/** 
+ * @author TSM
+ * A bidirectional bigram language model backed by a single count table
+ * (see BidirectionalCounts) instead of separate forward and backward
+ * models. It trains in one pass without reversed copies of the sentences
+ * and scores both directions in one walk over a sentence, with exactly
+ * the same probabilities as BidirectionalBigramModel. The unigram and
+ * bigram weights lambda1 and lambda2 apply to both directions.
+ */
+
+public class SharedBidirectionalBigramModel extends BidirectionalBigramModel
+{
+	private BidirectionalCounts counts = new BidirectionalCounts();
+	
+	public SharedBidirectionalBigramModel()
+	{
+		super();
+	}
+	
+	public SharedBidirectionalBigramModel(double forwardLambda, double backwardLambda)
+	{
+		super(forwardLambda, backwardLambda);
+	}
+	
+	public BidirectionalCounts getCounts()
+	{
+		return counts;
+	}
+	
+	@Override
+	public void train(List<List<String>> sentences)
+	{
+		trainSentences(sentences);
+	}
+	
+	@Override
+	public void train(Iterator<List<String>> sentences)
+	{
+		trainSentences(sentences);
+	}
+	
+	// The shared table counts the sentences itself, not the forward and
+	// backward models.
+	@Override
+	public void trainSentences(List<List<String>> sentences)
+	{
+		countSentences(sentences);
+	}
+	
+	@Override
+	public void trainSentences(Iterator<List<String>> sentences)
+	{
+		countSentences(sentences);
+	}
+	
+	@Override
+	public void trainSentencesParallel(List<List<String>> sentences, int numThreads)
+	{
+		countSentences(sentences);
+	}
+	
+	// The shared counts are trained through the sentence views of the corpus.
+	@Override
+	public void train(Corpus corpus)
+	{
+		trainSentences((List<List<String>>) corpus);
+	}
+	
+	@Override
+	public void trainSentences(Corpus corpus)
+	{
+		trainSentences((List<List<String>>) corpus);
+	}
+	
+	@Override
+	public void spillCounts(File dir, long budgetBytes)
+	{
+		throw new UnsupportedOperationException("Shared counts cannot be spilled; spill a BidirectionalBigramModel's instead");
+	}
+	
+	// The shared table is filled on one thread; counting is already
+	// half the work of training two separate models.
+	@Override
+	public void trainParallel(List<List<String>> sentences, int numThreads)
+	{
+		trainSentences(sentences);
+	}
+	
+	@Override
+	public void trainSentence(List<String> sentence)
+	{
+		counts.trainSentence(sentence);
+		modCount++;
+	}
+	
+	// Probabilities are computed from the counts when scoring.
+	@Override
+	public void calculateProbs()
+	{
+	}
+	
+	// Bigrams in the forward table and the backward corrections.
+	@Override
+	public long tableSize()
+	{
+		return counts.forward.size() + counts.backwardDelta.size();
+	}
+	
+	@Override
+	public long estimatedBytes()
+	{
+		return 8L * counts.unigram.length + 16L * (counts.forward.capacity() + counts.backwardDelta.capacity());
+	}
+	
+	// Build a separate trained forward model from the shared counts.
+	@Override
+	public BigramModel getForwardModel()
+	{
+		BigramModel forwardModel = counts.toForwardModel();
+		forwardModel.lambda1 = lambda1;
+		forwardModel.lambda2 = lambda2;
+		return forwardModel;
+	}
+	
+	// Build a separate trained backward model from the shared counts.
+	@Override
+	public BackwardBigramModel getBackwardModel()
+	{
+		BackwardBigramModel backwardModel = counts.toBackwardModel();
+		backwardModel.lambda1 = lambda1;
+		backwardModel.lambda2 = lambda2;
+		return backwardModel;
+	}
+	
+	@Override
+	protected void directionalTokenProbs(Corpus corpus, int s, double[] forwardProbs, double[] backwardProbs)
+	{
+		directionalTokenProbs(corpus.get(s), forwardProbs, backwardProbs);
+	}
+	
+	@Override
+	protected void directionalTokenProbs(List<String> sentence, double[] forwardProbs, double[] backwardProbs)
+	{
+		ModelMetrics scoring = scoringStarted();
+		try
+		{
+			int n = sentence.size();
+			if (n == 0)
+			{
+				forwardProbs[0]  = interpolatedForward(Vocabulary.START, Vocabulary.END);
+				backwardProbs[0] = interpolatedBackward(Vocabulary.START, Vocabulary.END);
+				return;
+			}
+			// Walk the sentence once, looking one token ahead for the backward context.
+			Iterator<String> tokens = sentence.iterator();
+			int firstId = counts.scoringId(tokens.next());
+			int prevId  = Vocabulary.START;
+			int id      = firstId;
+			for (int i = 0; i < n; i++)
+			{
+				int nextId = tokens.hasNext() ? counts.scoringId(tokens.next()) : Vocabulary.START;
+				forwardProbs[i]  = interpolatedForward(prevId, id);
+				backwardProbs[i] = interpolatedBackward(nextId, id);
+				prevId = id;
+				id     = nextId;
+			}
+			// End-of-Sentence follows the last token reading forward
+			// and the first token reading backward.
+			forwardProbs[n]  = interpolatedForward(prevId, Vocabulary.END);
+			backwardProbs[n] = interpolatedBackward(firstId, Vocabulary.END);
+		}
+		finally
+		{
+			scoringEnded(scoring);
+		}
+	}
+	
+	// Scored tokens are recorded once, in the forward direction.
+	private double interpolatedForward(int prevId, int id)
+	{
+		if (metrics != null)
+		{
+			metrics.predicted(prevId == Vocabulary.START, id == Vocabulary.UNK, counts.forwardCount(prevId, id) == 0);
+		}
+		return lambda1 * counts.unigramProb(id) + lambda2 * counts.forwardProb(prevId, id);
+	}
+	
+	private double interpolatedBackward(int prevId, int id)
+	{
+		return lambda1 * counts.unigramProb(id) + lambda2 * counts.backwardProb(prevId, id);
+	}
+	
+	
+	
+	
+	// This code is just pasted here from parent class to ensure proper running.
+    public static void main(String[] args) throws IOException {
+	// All but last arg is a file/directory of LDC tagged input data
+	File[] files = new File[args.length - 1];
+	for (int i = 0; i < files.length; i++) 
+	    files[i] = new File(args[i]);
+	// Last arg is the TestFrac
+	double testFraction = Double.valueOf(args[args.length -1]);
+	if (Boolean.getBoolean("lm.stream")) {
+	    trainAndTestStreaming(new SharedBidirectionalBigramModel(), files, testFraction);
+	    return;
+	}
+	// Get list of sentences from the LDC POS tagged input files
+	Corpus sentences = Corpus.load(files);
+	int numSentences = sentences.size();
+	// Compute number of test sentences based on TestFrac
+	int numTest = (int)Math.round(numSentences * testFraction);
+	// Take test sentences from end of data
+	Corpus testSentences = sentences.subList(numSentences - numTest, numSentences);
+	// Take training sentences from start of data
+	Corpus trainSentences = sentences.subList(0, numSentences - numTest);
+	System.out.println("# Train Sentences = " + trainSentences.size() + 
+			   " (# words = " + wordCount(trainSentences) + 
+			   ") \n# Test Sentences = " + testSentences.size() +
+			   " (# words = " + wordCount(testSentences) + ")");
+	// Create a bigram model and train it.
+	BigramModel model = new SharedBidirectionalBigramModel();
+	ModelMetrics.install(model);
+	System.out.println("Training...");
+	model.train(trainSentences);
+	// Test on training data using test and test2
+	model.test(trainSentences);
+	model.test2(trainSentences);
+	System.out.println("Testing...");
+    // Test on test data using test and test2
+	model.test(testSentences);
+	model.test2(testSentences);	
+    }
+}
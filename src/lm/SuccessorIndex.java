@@ -0,0 +1,189 @@
+package lm;
+
+import java.util.*;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Index of the likely next tokens after each context token of a trained
+ * BigramModel, for autocomplete. For each context it holds the tokens
+ * seen after it sorted by interpolated probability, and for the whole
+ * model the tokens sorted by unigram probability and alphabetically. A
+ * token never seen after a context still has the interpolated probability
+ * lambda1 * P(token), so topK merges the context's successors with the
+ * tokens in unigram order. Built from a BackwardBigramModel, the
+ * "successors" are the tokens seen before the context token. A
+ * BidirectionalBigramModel has no single-direction successors and builds
+ * no index; use its forward or backward model.
+ *
+ * <S>, </S> and <UNK> are never predicted. The index reflects the model
+ * when it was built (see BigramModel.successorIndex).
+ *
+ * @author TSM
+ */
+
+public class SuccessorIndex {
+
+    /** Model the index was built from */
+    protected final BigramModel model;
+
+    /** Successors of context ID a are successors[offsets[a]] to
+     *  successors[offsets[a + 1] - 1], most probable first */
+    protected final int[] offsets;
+    protected final int[] successors;
+
+    /** IDs of the predictable tokens, most probable first */
+    protected final int[] byUnigram;
+
+    /** IDs of the predictable tokens in alphabetical order */
+    protected final int[] byToken;
+
+    /** Build the index for the current counts and weights of model */
+    public SuccessorIndex(BigramModel model) {
+	this.model = model;
+	int vocabSize = model.vocab.size();
+	BigramTable table = model.bigramTable;
+	// Count the successors of each context to lay out the lists
+	offsets = new int[vocabSize + 1];
+	for (int slot = 0; slot < table.capacity(); slot++) {
+	    if (table.isUsed(slot) && predictable(BigramTable.id2(table.keyAt(slot))))
+		offsets[BigramTable.id1(table.keyAt(slot)) + 1]++;
+	}
+	for (int id = 0; id < vocabSize; id++)
+	    offsets[id + 1] += offsets[id];
+	successors = new int[offsets[vocabSize]];
+	int[] next = Arrays.copyOf(offsets, vocabSize);
+	for (int slot = 0; slot < table.capacity(); slot++) {
+	    if (!table.isUsed(slot))
+		continue;
+	    long key = table.keyAt(slot);
+	    if (predictable(BigramTable.id2(key)))
+		successors[next[BigramTable.id1(key)]++] = BigramTable.id2(key);
+	}
+	for (int id = 0; id < vocabSize; id++) {
+	    final int prevId = id;
+	    sortDescending(successors, offsets[id], offsets[id + 1], successor -> model.interpolatedProb(prevId, successor));
+	}
+	List<Integer> tokens = new ArrayList<Integer>();
+	for (int id = 0; id < vocabSize; id++) {
+	    if (predictable(id))
+		tokens.add(id);
+	}
+	byUnigram = new int[tokens.size()];
+	for (int i = 0; i < byUnigram.length; i++)
+	    byUnigram[i] = tokens.get(i);
+	sortDescending(byUnigram, 0, byUnigram.length, successor -> model.unigram[successor]);
+	tokens.sort((id1, id2) -> model.vocab.token(id1).compareTo(model.vocab.token(id2)));
+	byToken = new int[tokens.size()];
+	for (int i = 0; i < byToken.length; i++)
+	    byToken[i] = tokens.get(i);
+    }
+
+    /** Return true if the token with ID id may be predicted */
+    protected boolean predictable(int id) {
+	return id > Vocabulary.UNK && model.unigram[id] != 0;
+    }
+
+    /** Sort ids[from] to ids[to - 1] by descending score, breaking ties by ascending ID */
+    protected static void sortDescending(int[] ids, int from, int to, IntToDoubleFunction score) {
+	if (to - from < 2)
+	    return;
+	// Score each ID once rather than on every comparison
+	double[] scores = new double[to - from];
+	Integer[] order = new Integer[to - from];
+	for (int i = from; i < to; i++) {
+	    scores[i - from] = score.applyAsDouble(ids[i]);
+	    order[i - from] = i - from;
+	}
+	Arrays.sort(order, (i1, i2) -> {
+		int compare = Double.compare(scores[i2], scores[i1]);
+		return compare != 0 ? compare : Integer.compare(ids[from + i1], ids[from + i2]);
+	    });
+	int[] sorted = new int[to - from];
+	for (int i = 0; i < sorted.length; i++)
+	    sorted[i] = ids[from + order[i]];
+	System.arraycopy(sorted, 0, ids, from, sorted.length);
+    }
+
+    /** Return the (at most) k most probable tokens to follow prevToken, most
+     *  probable first. Walks the context's successors and the tokens in unigram
+     *  order together, skipping each token in unigram order that is a successor
+     *  of prevToken (a bigram table lookup per skip), so it takes O(k + s) steps
+     *  for s skipped tokens, at most the number of successors of prevToken */
+    public List<String> topK(String prevToken, int k) {
+	int prevId = model.scoringId(prevToken);
+	List<String> top = new ArrayList<String>(Math.max(0, Math.min(k, byUnigram.length)));
+	int i = offsets[prevId];
+	int end = offsets[prevId + 1];
+	int j = 0;
+	while (top.size() < k) {
+	    while (j < byUnigram.length && model.bigramTable.contains(BigramTable.key(prevId, byUnigram[j])))
+		j++;
+	    double successorProb = i < end ? model.interpolatedProb(prevId, successors[i]) : -1;
+	    double unigramProb = j < byUnigram.length ? model.lambda1 * model.unigramProb(byUnigram[j]) : -1;
+	    if (successorProb < 0 && unigramProb < 0)
+		break;
+	    if (successorProb >= unigramProb)
+		top.add(model.vocab.token(successors[i++]));
+	    else
+		top.add(model.vocab.token(byUnigram[j++]));
+	}
+	return top;
+    }
+
+    /** Return the (at most) k most probable tokens starting with prefix to follow
+     *  prevToken, most probable first, for completing a partially typed word.
+     *  Scans the successors of prevToken until k match, and every token starting
+     *  with prefix (a bigram table lookup and an O(log k) heap step each), so it
+     *  takes time linear in both counts rather than in k */
+    public List<String> topK(String prevToken, String prefix, int k) {
+	int prevId = model.scoringId(prevToken);
+	// Successors of the context with the prefix, already in order
+	List<Integer> matches = new ArrayList<Integer>();
+	for (int i = offsets[prevId]; i < offsets[prevId + 1] && matches.size() < k; i++) {
+	    if (model.vocab.token(successors[i]).startsWith(prefix))
+		matches.add(successors[i]);
+	}
+	// The k most frequent other tokens with the prefix
+	PriorityQueue<Integer> others = new PriorityQueue<Integer>((id1, id2) -> {
+		int order = Double.compare(model.unigram[id1], model.unigram[id2]);
+		return order != 0 ? order : Integer.compare(id2, id1);
+	    });
+	for (int i = firstWithPrefix(prefix); i < byToken.length && model.vocab.token(byToken[i]).startsWith(prefix); i++) {
+	    if (model.bigramTable.contains(BigramTable.key(prevId, byToken[i])))
+		continue;
+	    others.add(byToken[i]);
+	    if (others.size() > k)
+		others.poll();
+	}
+	int[] rest = new int[others.size()];
+	for (int i = rest.length - 1; i >= 0; i--)
+	    rest[i] = others.poll();
+	// Merge the two lists by interpolated probability
+	List<String> top = new ArrayList<String>(Math.max(0, Math.min(k, matches.size() + rest.length)));
+	int i = 0;
+	int j = 0;
+	while (top.size() < k && (i < matches.size() || j < rest.length)) {
+	    double successorProb = i < matches.size() ? model.interpolatedProb(prevId, matches.get(i)) : -1;
+	    double unigramProb = j < rest.length ? model.lambda1 * model.unigramProb(rest[j]) : -1;
+	    if (successorProb >= unigramProb)
+		top.add(model.vocab.token(matches.get(i++)));
+	    else
+		top.add(model.vocab.token(rest[j++]));
+	}
+	return top;
+    }
+
+    /** Return the index in byToken of the first token not less than prefix */
+    protected int firstWithPrefix(String prefix) {
+	int low = 0;
+	int high = byToken.length;
+	while (low < high) {
+	    int mid = (low + high) >>> 1;
+	    if (model.vocab.token(byToken[mid]).compareTo(prefix) < 0)
+		low = mid + 1;
+	    else
+		high = mid;
+	}
+	return low;
+    }
+}
@@ -0,0 +1,92 @@
+package lm;
+
+/**
+ * A frequency-aware ScoreCache using TinyLFU admission. Lookups are
+ * counted approximately in a small count-min sketch of 4-bit counters,
+ * and when the cache is full a new entry only replaces the least recently
+ * used one if its key has been looked up more often. This keeps
+ * frequently repeated sentences cached through bursts of one-off ones.
+ * The counters are halved every 10 * maxSize lookups so that the
+ * frequencies follow changes in the request mix.
+ *
+ * @author TSM
+ */
+
+public class TinyLfuScoreCache<K, V> extends ScoreCache<K, V> {
+
+    /** Number of hash rows in the sketch */
+    protected static final int DEPTH = 4;
+
+    /** Largest value of a counter */
+    protected static final int MAX_COUNT = 15;
+
+    /** Counters, DEPTH rows of width each */
+    protected final byte[] counters;
+
+    /** Number of counters per row, a power of 2 */
+    protected final int width;
+
+    /** Lookups counted since the counters were last halved */
+    protected int additions = 0;
+
+    /** Halve the counters after this many lookups */
+    protected final int sampleSize;
+
+    /** Create an empty cache of at most maxSize entries */
+    public TinyLfuScoreCache(int maxSize) {
+	super(maxSize);
+	int w = 16;
+	while (w < 2 * maxSize)
+	    w *= 2;
+	width = w;
+	counters = new byte[DEPTH * width];
+	sampleSize = Math.max(10 * maxSize, 16);
+    }
+
+    @Override
+    protected void recordAccess(K key) {
+	int hash = spread(key.hashCode());
+	for (int row = 0; row < DEPTH; row++) {
+	    int index = row * width + indexOf(hash, row);
+	    if (counters[index] < MAX_COUNT)
+		counters[index]++;
+	}
+	if (++additions >= sampleSize)
+	    age();
+    }
+
+    @Override
+    protected boolean admit(K candidate, K victim) {
+	return frequency(candidate) > frequency(victim);
+    }
+
+    /** Return the estimated number of recent lookups of key */
+    public int frequency(K key) {
+	int hash = spread(key.hashCode());
+	int frequency = MAX_COUNT;
+	for (int row = 0; row < DEPTH; row++)
+	    frequency = Math.min(frequency, counters[row * width + indexOf(hash, row)]);
+	return frequency;
+    }
+
+    /** Halve every counter */
+    protected void age() {
+	for (int i = 0; i < counters.length; i++)
+	    counters[i] = (byte) (counters[i] >> 1);
+	additions /= 2;
+    }
+
+    /** Return the counter of a hash in a row */
+    protected int indexOf(int hash, int row) {
+	int h = hash * (0x9E3779B9 + 2 * row + 1);
+	return (h ^ (h >>> 16)) & (width - 1);
+    }
+
+    /** Mix the bits of a hash code */
+    protected static int spread(int hash) {
+	hash ^= hash >>> 17;
+	hash *= 0xed5ad4bb;
+	hash ^= hash >>> 11;
+	return hash;
+    }
+}
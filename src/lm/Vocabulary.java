@@ -0,0 +1,70 @@
+package lm;
+
+import java.util.*;
+
+/**
+ * Maps each token String to a dense int ID (0, 1, 2, ...) and back so
+ * that models can index their statistics by int instead of by String.
+ * IDs for the sentence start (<S>), sentence end (</S>) and unknown
+ * (<UNK>) tokens are reserved when the vocabulary is created.
+ *
+ * @author TSM
+ */
+
+public class Vocabulary {
+
+    /** ID of the sentence start token <S> */
+    public static final int START = 0;
+
+    /** ID of the sentence end token </S> */
+    public static final int END = 1;
+
+    /** ID of the unknown token <UNK> */
+    public static final int UNK = 2;
+
+    /** Maps a token to its ID */
+    protected Map<String, Integer> ids = new HashMap<String, Integer>();
+
+    /** Maps an ID back to its token */
+    protected String[] tokens = new String[1024];
+
+    /** Number of tokens in the vocabulary */
+    protected int size = 0;
+
+    /** Create a vocabulary holding just <S>, </S> and <UNK> */
+    public Vocabulary() {
+	add("<S>");
+	add("</S>");
+	add("<UNK>");
+    }
+
+    /** Return the ID of token, or -1 if it is not in the vocabulary */
+    public int id(String token) {
+	Integer id = ids.get(token);
+	if (id == null)
+	    return -1;
+	return id;
+    }
+
+    /** Return the ID of token, adding it to the vocabulary if it is new */
+    public int add(String token) {
+	Integer id = ids.get(token);
+	if (id != null)
+	    return id;
+	if (size == tokens.length)
+	    tokens = Arrays.copyOf(tokens, size * 2);
+	tokens[size] = token;
+	ids.put(token, size);
+	return size++;
+    }
+
+    /** Return the token with this ID */
+    public String token(int id) {
+	return tokens[id];
+    }
+
+    /** Return the number of tokens in the vocabulary */
+    public int size() {
+	return size;
+    }
+}
@@ -0,0 +1,89 @@
+package lm.bench;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Generates synthetic corpora for benchmarks: sentences of tokens drawn
+ * from a Zipf distribution over a fixed vocabulary, so the token and
+ * bigram frequency profile resembles natural text. The same sentences
+ * can also be written out as LDC POS tagged files to benchmark parsing.
+ *
+ * @author TSM
+ */
+
+public class SyntheticCorpus {
+
+    /** Random source, seeded so runs see the same corpus */
+    protected Random random;
+
+    /** Vocabulary tokens, most frequent first */
+    protected String[] vocabulary;
+
+    /** Cumulative Zipf probabilities of the vocabulary tokens */
+    protected double[] cumulative;
+
+    /** Create a generator over vocabSize distinct tokens */
+    public SyntheticCorpus(int vocabSize, long seed) {
+	random = new Random(seed);
+	vocabulary = new String[vocabSize];
+	cumulative = new double[vocabSize];
+	double total = 0;
+	for (int i = 0; i < vocabSize; i++) {
+	    vocabulary[i] = "w" + i;
+	    total += 1.0 / (i + 1);
+	    cumulative[i] = total;
+	}
+	for (int i = 0; i < vocabSize; i++)
+	    cumulative[i] /= total;
+    }
+
+    /** Return a random token */
+    public String token() {
+	int i = Arrays.binarySearch(cumulative, random.nextDouble());
+	if (i < 0)
+	    i = -i - 1;
+	return vocabulary[Math.min(i, vocabulary.length - 1)];
+    }
+
+    /** Return sentences of 3 to 30 tokens totalling at least numWords tokens */
+    public List<List<String>> sentences(int numWords) {
+	List<List<String>> sentences = new ArrayList<List<String>>();
+	int words = 0;
+	while (words < numWords) {
+	    int length = 3 + random.nextInt(28);
+	    List<String> sentence = new ArrayList<String>(length);
+	    for (int i = 0; i < length; i++)
+		sentence.add(token());
+	    sentences.add(sentence);
+	    words += length;
+	}
+	return sentences;
+    }
+
+    /** Write sentences to dir as LDC POS tagged files of sentencesPerFile sentences,
+     *  in the layout POSTaggedFile parses */
+    public static void writeTaggedFiles(List<List<String>> sentences, File dir, int sentencesPerFile)
+	throws IOException {
+	dir.mkdirs();
+	PrintWriter out = null;
+	for (int s = 0; s < sentences.size(); s++) {
+	    if (s % sentencesPerFile == 0) {
+		if (out != null)
+		    out.close();
+		out = new PrintWriter(new BufferedWriter(new FileWriter(new File(dir, "synthetic" + (s / sentencesPerFile) + ".pos"))));
+	    }
+	    out.println("======================================");
+	    out.println();
+	    StringBuilder line = new StringBuilder("[ ");
+	    for (String token : sentences.get(s))
+		line.append(token).append("/NN ");
+	    line.append("]");
+	    out.println(line);
+	    out.println("./. ");
+	    out.println();
+	}
+	if (out != null)
+	    out.close();
+    }
+}
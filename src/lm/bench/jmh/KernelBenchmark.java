@@ -0,0 +1,55 @@
+package lm.bench.jmh;
+
+import java.util.concurrent.TimeUnit;
+import lm.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Interpolation and log-sum over the unigram and bigram probabilities of
+ * the test set by the scalar kernel and by the Vector API kernel. The
+ * forks load the jdk.incubator.vector module; the vector kernel fails
+ * its setup rather than fall back to the scalar one if it is missing.
+ *
+ * @author TSM
+ */
+
+@Fork(value = 2, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class KernelBenchmark {
+
+    /** Kernel measured: scalar or vector */
+    @Param({"scalar", "vector"})
+    public String kernel;
+
+    InterpolationKernel interpolationKernel;
+
+    /** Component probabilities and weights, gathered once */
+    double[] first;
+    double[] second;
+    double lambda1;
+    double lambda2;
+
+    @Setup(Level.Trial)
+    public void gather(SyntheticSentences sentences) throws ReflectiveOperationException {
+	if (kernel.equals("scalar"))
+	    interpolationKernel = new BatchScorer.ScalarKernel();
+	else
+	    interpolationKernel = (InterpolationKernel) Class.forName(BatchScorer.VECTOR_KERNEL).getDeclaredConstructor().newInstance();
+	BigramModel model = new BigramModel();
+	model.train(sentences.trainSentences);
+	InterpolationTuner tuner = InterpolationTuner.unigramBigram(model, sentences.testSentences);
+	first = tuner.getFirstProbs();
+	second = tuner.getSecondProbs();
+	lambda1 = model.lambda1;
+	lambda2 = model.lambda2;
+    }
+
+    @Benchmark
+    public double interpolatedLogSum() {
+	return interpolationKernel.interpolatedLogSum(first, second, first.length, lambda1, lambda2);
+    }
+}
@@ -0,0 +1,60 @@
+package lm.bench.jmh;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import lm.*;
+import lm.bench.SyntheticCorpus;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Reading LDC POS tagged files, written from the test sentences to a
+ * temporary directory that is deleted after the trial: parsing them into
+ * token Lists with POSTaggedFile, and tokenizing them into vocabulary IDs
+ * with LdcTokenizer.
+ *
+ * @author TSM
+ */
+
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class ParsingBenchmark {
+
+    /** Directory of the tagged files */
+    File dir;
+
+    LdcTokenizer tokenizer = new LdcTokenizer(new Vocabulary());
+
+    @Setup(Level.Trial)
+    public void writeFiles(SyntheticSentences sentences) throws IOException {
+	dir = Files.createTempDirectory("lm-bench-").toFile();
+	SyntheticCorpus.writeTaggedFiles(sentences.testSentences, dir, 200);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+	File[] files = dir.listFiles();
+	if (files != null) {
+	    for (File file : files)
+		Files.delete(file.toPath());
+	}
+	Files.delete(dir.toPath());
+    }
+
+    @Benchmark
+    public List<List<String>> parseTaggedFiles() {
+	return POSTaggedFile.convertToTokenLists(new File[] {dir});
+    }
+
+    @Benchmark
+    public long tokenizeTaggedFiles() {
+	long[] count = {0};
+	tokenizer.tokenize(new File[] {dir}, (ids, length) -> count[0] += length);
+	return count[0];
+    }
+}
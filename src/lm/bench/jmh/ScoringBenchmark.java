@@ -0,0 +1,106 @@
+package lm.bench.jmh;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import lm.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Scoring throughput of trained models: one test sentence at a time, and
+ * the whole test set by the test method, a loop over sentenceLogProb and a
+ * BatchScorer.
+ *
+ * @author TSM
+ */
+
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ScoringBenchmark {
+
+    /** Trained forward, backward and bidirectional models */
+    BigramModel forward;
+    BigramModel backward;
+    BigramModel bidirectional;
+
+    BatchScorer scorer;
+
+    /** Test sentences and the next one to score */
+    List<List<String>> testSentences;
+    int next = 0;
+
+    /** Reused buffer of token probabilities */
+    double[] tokenProbs = new double[64];
+
+    /** Standard output, silenced while benchmarking (test prints perplexities) */
+    PrintStream out;
+
+    @Setup(Level.Trial)
+    public void train(SyntheticSentences sentences) {
+	forward = new BigramModel();
+	forward.train(sentences.trainSentences);
+	backward = new BackwardBigramModel();
+	backward.train(sentences.trainSentences);
+	bidirectional = new BidirectionalBigramModel();
+	bidirectional.train(sentences.trainSentences);
+	scorer = new BatchScorer(forward);
+	testSentences = sentences.testSentences;
+	out = System.out;
+	System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void restoreOutput() {
+	System.setOut(out);
+    }
+
+    /** Return the next test sentence, cycling through them */
+    List<String> nextSentence() {
+	List<String> sentence = testSentences.get(next);
+	next = (next + 1) % testSentences.size();
+	return sentence;
+    }
+
+    @Benchmark
+    public double sentenceLogProb() {
+	return forward.sentenceLogProb(nextSentence());
+    }
+
+    @Benchmark
+    public double[] backwardSentenceTokenProbs() {
+	List<String> sentence = nextSentence();
+	if (tokenProbs.length <= sentence.size())
+	    tokenProbs = new double[2 * (sentence.size() + 1)];
+	backward.sentenceTokenProbs(sentence, tokenProbs, 0);
+	return tokenProbs;
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public BigramModel bidirectionalTest() {
+	bidirectional.test(testSentences);
+	return bidirectional;
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public double testLogProbLoop() {
+	double totalLogProb = 0;
+	for (List<String> sentence : testSentences)
+	    totalLogProb += forward.sentenceLogProb(sentence);
+	return totalLogProb;
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public double batchTestLogProb() {
+	return scorer.totalLogProb(testSentences, true);
+    }
+}
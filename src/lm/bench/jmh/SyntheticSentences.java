@@ -0,0 +1,38 @@
+package lm.bench.jmh;
+
+import java.util.*;
+import lm.*;
+import lm.bench.SyntheticCorpus;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Training and test sentences shared by the benchmarks of a trial, drawn
+ * from a SyntheticCorpus of about one token type per 20 training words.
+ * The test set is a tenth the size of the training set, and is generated
+ * after it so it includes unseen tokens and bigrams.
+ *
+ * @author TSM
+ */
+
+@State(Scope.Benchmark)
+public class SyntheticSentences {
+
+    /** Number of training words */
+    @Param("1000000")
+    public int words;
+
+    /** Training and test sentences */
+    public List<List<String>> trainSentences;
+    public List<List<String>> testSentences;
+
+    /** The training sentences as a Corpus */
+    public Corpus trainCorpus;
+
+    @Setup(Level.Trial)
+    public void generate() {
+	SyntheticCorpus corpus = new SyntheticCorpus(Math.max(1000, words / 20), 42);
+	trainSentences = corpus.sentences(words);
+	testSentences = corpus.sentences(words / 10);
+	trainCorpus = Corpus.of(trainSentences);
+    }
+}
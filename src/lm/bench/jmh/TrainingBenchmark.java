@@ -0,0 +1,52 @@
+package lm.bench.jmh;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import lm.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Training throughput of BigramModel: counting one sentence at a time, and
+ * training a new model on the whole training corpus.
+ *
+ * @author TSM
+ */
+
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class TrainingBenchmark {
+
+    /** Model being counted into, and the next sentence to count */
+    BigramModel model;
+    int next;
+
+    @Setup(Level.Iteration)
+    public void newModel() {
+	model = new BigramModel();
+	next = 0;
+    }
+
+    /** Count one sentence, starting a new model once the corpus is counted
+     *  so the tables do not grow with the number of operations */
+    @Benchmark
+    public BigramModel trainSentence(SyntheticSentences sentences) {
+	if (next == sentences.trainSentences.size())
+	    newModel();
+	model.trainSentence(sentences.trainSentences.get(next++));
+	return model;
+    }
+
+    /** Train a new model on the training corpus, as the model mains do */
+    @Benchmark
+    @BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public BigramModel trainCorpus(SyntheticSentences sentences) {
+	BigramModel trained = new BigramModel();
+	trained.train(sentences.trainCorpus);
+	return trained;
+    }
+}
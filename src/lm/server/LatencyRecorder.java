@@ -0,0 +1,74 @@
+package lm.server;
+
+import java.util.*;
+
+/**
+ * Records request latencies in a ring of the most recent samples and
+ * reports throughput and latency percentiles over them. Thread-safe.
+ *
+ * @author TSM
+ */
+
+public class LatencyRecorder {
+
+    /** Most recent latencies in nanoseconds */
+    protected final long[] samples;
+
+    /** Total number of latencies recorded */
+    protected long count = 0;
+
+    /** Time the recorder was created or reset */
+    protected long startNanos = System.nanoTime();
+
+    /** Create a recorder keeping the last capacity latencies */
+    public LatencyRecorder(int capacity) {
+	samples = new long[capacity];
+    }
+
+    /** Record one latency */
+    public synchronized void record(long nanos) {
+	samples[(int) (count % samples.length)] = nanos;
+	count++;
+    }
+
+    /** Forget all latencies */
+    public synchronized void reset() {
+	count = 0;
+	startNanos = System.nanoTime();
+    }
+
+    /** Return the number of latencies recorded */
+    public synchronized long count() {
+	return count;
+    }
+
+    /** Return the recorded latencies per second since creation or reset */
+    public synchronized double throughput() {
+	return count / ((System.nanoTime() - startNanos) / 1e9);
+    }
+
+    /** Return the latencies at the given percentiles (0 to 1) of the kept samples,
+     *  in nanoseconds */
+    public long[] percentiles(double... ps) {
+	long[] sorted;
+	synchronized (this) {
+	    sorted = Arrays.copyOf(samples, (int) Math.min(count, samples.length));
+	}
+	Arrays.sort(sorted);
+	long[] values = new long[ps.length];
+	for (int i = 0; i < ps.length; i++) {
+	    if (sorted.length > 0) {
+		int index = (int) Math.ceil(ps[i] * sorted.length) - 1;
+		values[i] = sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	    }
+	}
+	return values;
+    }
+
+    /** Return a one-line summary of count, throughput and p50/p99 latency */
+    public String summary() {
+	long[] p = percentiles(0.50, 0.99);
+	return String.format("requests = %d, throughput = %.1f/s, p50 = %.3f ms, p99 = %.3f ms",
+			     count(), throughput(), p[0] / 1e6, p[1] / 1e6);
+    }
+}
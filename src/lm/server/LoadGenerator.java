@@ -0,0 +1,111 @@
+package lm.server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import lm.*;
+import lm.bench.SyntheticCorpus;
+
+/**
+ * Load-generating client for benchmarking a ScoringServer. Several client
+ * threads each send /score requests of a few sentences back to back, and
+ * the client reports throughput and p50/p99 latency as it sees them,
+ * followed by the server's own /stats.
+ *
+ * Command format: "java lm.server.LoadGenerator [-url URL] [-clients C]
+ * [-requests R] [-sentences S] [DIR]*" where URL is the server (default
+ * http://localhost:8080), C the number of concurrent clients (default 16),
+ * R the requests per client (default 1000) and S the sentences per request
+ * (default 4). Sentences are taken from the LDC POS tagged files in the
+ * DIRs, or generated synthetically if none are given.
+ *
+ * @author TSM
+ */
+
+public class LoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+	String url = "http://localhost:8080";
+	int numClients = 16;
+	int numRequests = 1000;
+	int sentencesPerRequest = 4;
+	List<File> dirs = new ArrayList<File>();
+	for (int i = 0; i < args.length; i++) {
+	    if (args[i].equals("-url"))
+		url = args[++i];
+	    else if (args[i].equals("-clients"))
+		numClients = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-requests"))
+		numRequests = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-sentences"))
+		sentencesPerRequest = Integer.parseInt(args[++i]);
+	    else
+		dirs.add(new File(args[i]));
+	}
+	List<List<String>> sentences = dirs.isEmpty() ? 
+	    new SyntheticCorpus(50000, 7).sentences(200000) : 
+	    POSTaggedFile.convertToTokenLists(dirs.toArray(new File[dirs.size()]));
+	// Pre-build request bodies so the clients only measure the server
+	final List<byte[]> bodies = new ArrayList<byte[]>();
+	for (int start = 0; start + sentencesPerRequest <= sentences.size(); start += sentencesPerRequest) {
+	    StringBuilder body = new StringBuilder();
+	    for (List<String> sentence : sentences.subList(start, start + sentencesPerRequest))
+		body.append(String.join(" ", sentence)).append('\n');
+	    bodies.add(body.toString().getBytes(StandardCharsets.UTF_8));
+	}
+	final URL scoreUrl = new URL(url + "/score");
+	final int requestsPerClient = numRequests;
+	final LatencyRecorder latencies = new LatencyRecorder(numClients * numRequests);
+	ExecutorService clients = Executors.newFixedThreadPool(numClients);
+	List<Future<?>> results = new ArrayList<Future<?>>();
+	for (int c = 0; c < numClients; c++) {
+	    final int client = c;
+	    results.add(clients.submit(() -> {
+			for (int r = 0; r < requestsPerClient; r++) {
+			    byte[] body = bodies.get((client * requestsPerClient + r) % bodies.size());
+			    long start = System.nanoTime();
+			    post(scoreUrl, body);
+			    latencies.record(System.nanoTime() - start);
+			}
+			return null;
+		    }));
+	}
+	for (Future<?> result : results)
+	    result.get();
+	clients.shutdown();
+	System.out.println("client: " + latencies.summary() + ", sentences/request = " + sentencesPerRequest);
+	System.out.print("server: " + new String(get(new URL(url + "/stats")), StandardCharsets.UTF_8));
+    }
+
+    /** POST body to url and return the response */
+    protected static byte[] post(URL url, byte[] body) throws IOException {
+	HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+	connection.setRequestMethod("POST");
+	connection.setDoOutput(true);
+	connection.setFixedLengthStreamingMode(body.length);
+	OutputStream out = connection.getOutputStream();
+	out.write(body);
+	out.close();
+	return readResponse(connection);
+    }
+
+    /** GET url and return the response */
+    protected static byte[] get(URL url) throws IOException {
+	return readResponse((HttpURLConnection) url.openConnection());
+    }
+
+    /** Read the whole response of a connection, failing on an error status */
+    protected static byte[] readResponse(HttpURLConnection connection) throws IOException {
+	if (connection.getResponseCode() != 200)
+	    throw new IOException("HTTP " + connection.getResponseCode() + " from " + connection.getURL());
+	InputStream in = connection.getInputStream();
+	try {
+	    return in.readAllBytes();
+	}
+	finally {
+	    in.close();
+	}
+    }
+}
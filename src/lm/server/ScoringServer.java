@@ -0,0 +1,281 @@
+package lm.server;
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.IntStream;
+import lm.*;
+
+/**
+ * A long-running local HTTP service that loads a trained model once (see
+ * ModelFile) and scores sentences sent to it. Each connection is handled
+ * on a virtual thread when the JVM has them (Java 21+), otherwise on a
+ * cached thread pool. Handlers do not score themselves: they queue their
+ * sentences, and a batching thread gathers whatever requests arrive within
+ * a short window into one batch scored across all cores, so concurrent
+ * requests share the scoring work.
+ *
+ * Requests are plain text, one sentence of space-separated tokens per line:
+ *
+ *   POST /score       returns the log prob of each sentence, one per line
+ *   POST /perplexity  returns "perplexity P" and "word perplexity W" lines
+ *                     for the sentences, as BigramModel.test and test2 do
+ *   GET  /stats       returns request count, throughput and p50/p99 latency
+ *
+ * Command format: "java lm.server.ScoringServer MODEL [-port N] [-batch N]
+ * [-wait MICROS]" where MODEL is a file saved with BigramModel.save, N the
+ * port (default 8080) and largest batch in sentences (default 1024), and
+ * MICROS how long to wait for more requests to fill a batch (default 200).
+ *
+ * @author TSM
+ */
+
+public class ScoringServer {
+
+    /** A queued request: sentences to score and where to deliver the result */
+    protected static class Request {
+	final List<List<String>> sentences;
+	/** sentenceLogProb of each sentence */
+	final double[] logProbs;
+	/** sentenceLogProb2 of each sentence, only computed for perplexity requests */
+	final double[] logProbs2;
+	final CompletableFuture<Request> result = new CompletableFuture<Request>();
+
+	Request(List<List<String>> sentences, boolean perplexity) {
+	    this.sentences = sentences;
+	    this.logProbs = new double[sentences.size()];
+	    this.logProbs2 = perplexity ? new double[sentences.size()] : null;
+	}
+    }
+
+    /** Model being served */
+    protected final BigramModel model;
+
+    /** Requests waiting to be batched */
+    protected final BlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+
+    /** Largest number of sentences scored in one batch */
+    protected final int maxBatch;
+
+    /** How long to wait for more requests to fill a batch, in nanoseconds */
+    protected final long batchWaitNanos;
+
+    /** Pool that scores the sentences of a batch in parallel */
+    protected final ForkJoinPool scoringPool = new ForkJoinPool();
+
+    /** Latency of each request from arrival to response */
+    protected final LatencyRecorder latencies = new LatencyRecorder(100000);
+
+    /** Number of batches and of sentences scored */
+    protected long numBatches = 0;
+    protected long numSentences = 0;
+
+    protected HttpServer server;
+    protected ExecutorService connectionExecutor;
+    protected Thread batcher;
+
+    public ScoringServer(BigramModel model, int maxBatch, long batchWaitMicros) {
+	this.model = model;
+	this.maxBatch = maxBatch;
+	this.batchWaitNanos = batchWaitMicros * 1000;
+    }
+
+    /** Start serving on localhost:port */
+    public void start(int port) throws IOException {
+	server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+	server.createContext("/score", exchange -> handleScore(exchange, false));
+	server.createContext("/perplexity", exchange -> handleScore(exchange, true));
+	server.createContext("/stats", this::handleStats);
+	connectionExecutor = connectionExecutor();
+	server.setExecutor(connectionExecutor);
+	batcher = new Thread(this::batchLoop, "scoring-batcher");
+	batcher.setDaemon(true);
+	batcher.start();
+	server.start();
+    }
+
+    /** Stop serving */
+    public void stop() {
+	server.stop(0);
+	batcher.interrupt();
+	connectionExecutor.shutdown();
+	scoringPool.shutdown();
+    }
+
+    /** Return an executor running each task on a new virtual thread if this JVM
+     *  supports them, otherwise a cached thread pool */
+    protected static ExecutorService connectionExecutor() {
+	try {
+	    Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+	    return (ExecutorService) method.invoke(null);
+	}
+	catch (ReflectiveOperationException e) {
+	    return Executors.newCachedThreadPool();
+	}
+    }
+
+    /** Score the sentences of a /score or /perplexity request */
+    protected void handleScore(HttpExchange exchange, boolean perplexity) throws IOException {
+	long start = System.nanoTime();
+	try {
+	    List<List<String>> sentences = readSentences(exchange.getRequestBody());
+	    StringBuilder response = new StringBuilder();
+	    Request request = score(sentences, perplexity);
+	    if (perplexity) {
+		double totalLogProb = 0;
+		double totalLogProb2 = 0;
+		for (int i = 0; i < sentences.size(); i++) {
+		    totalLogProb += request.logProbs[i];
+		    totalLogProb2 += request.logProbs2[i];
+		}
+		long numWords = BigramModel.wordCount(sentences);
+		response.append("perplexity ").append(Math.exp(-totalLogProb / (numWords + sentences.size())));
+		response.append("\nword perplexity ").append(Math.exp(-totalLogProb2 / numWords)).append('\n');
+	    }
+	    else {
+		for (double logProb : request.logProbs)
+		    response.append(logProb).append('\n');
+	    }
+	    respond(exchange, 200, response.toString());
+	}
+	catch (Exception e) {
+	    respond(exchange, 500, "error " + e + "\n");
+	}
+	finally {
+	    latencies.record(System.nanoTime() - start);
+	}
+    }
+
+    /** Report request statistics */
+    protected void handleStats(HttpExchange exchange) throws IOException {
+	String stats;
+	synchronized (this) {
+	    stats = latencies.summary() + "\nbatches = " + numBatches + ", sentences = " + numSentences +
+		", mean batch = " + (numBatches == 0 ? 0 : numSentences / (double) numBatches) + " sentences\n";
+	}
+	respond(exchange, 200, stats);
+    }
+
+    /** Queue sentences for the batching thread and wait for them to be scored */
+    protected Request score(List<List<String>> sentences, boolean perplexity) throws Exception {
+	Request request = new Request(sentences, perplexity);
+	queue.put(request);
+	return request.result.get();
+    }
+
+    /** Gather queued requests into batches and score them until interrupted */
+    protected void batchLoop() {
+	List<Request> batch = new ArrayList<Request>();
+	try {
+	    while (true) {
+		batch.clear();
+		Request first = queue.take();
+		batch.add(first);
+		int batchSize = first.sentences.size();
+		long deadline = System.nanoTime() + batchWaitNanos;
+		while (batchSize < maxBatch) {
+		    Request next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		    if (next == null)
+			break;
+		    batch.add(next);
+		    batchSize += next.sentences.size();
+		}
+		scoreBatch(batch, batchSize);
+	    }
+	}
+	catch (InterruptedException e) {
+	    // Server stopped
+	}
+    }
+
+    /** Score every sentence of a batch of requests across the scoring pool and
+     *  complete the requests */
+    protected void scoreBatch(final List<Request> batch, int batchSize) {
+	// Flatten the batch to (request, sentence) pairs
+	final int[] requestOf = new int[batchSize];
+	final int[] sentenceOf = new int[batchSize];
+	int n = 0;
+	for (int r = 0; r < batch.size(); r++) {
+	    for (int s = 0; s < batch.get(r).sentences.size(); s++) {
+		requestOf[n] = r;
+		sentenceOf[n] = s;
+		n++;
+	    }
+	}
+	try {
+	    scoringPool.submit(() -> IntStream.range(0, requestOf.length).parallel().forEach(i -> {
+			Request request = batch.get(requestOf[i]);
+			List<String> sentence = request.sentences.get(sentenceOf[i]);
+			request.logProbs[sentenceOf[i]] = model.sentenceLogProb(sentence);
+			if (request.logProbs2 != null)
+			    request.logProbs2[sentenceOf[i]] = model.sentenceLogProb2(sentence);
+		    })).get();
+	    for (Request request : batch)
+		request.result.complete(request);
+	}
+	catch (Exception e) {
+	    for (Request request : batch)
+		request.result.completeExceptionally(e);
+	}
+	synchronized (this) {
+	    numBatches++;
+	    numSentences += batchSize;
+	}
+    }
+
+    /** Read one sentence of space-separated tokens per non-blank line */
+    protected static List<List<String>> readSentences(InputStream in) throws IOException {
+	BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+	List<List<String>> sentences = new ArrayList<List<String>>();
+	String line;
+	while ((line = reader.readLine()) != null) {
+	    line = line.trim();
+	    if (!line.isEmpty())
+		sentences.add(Arrays.asList(line.split("\\s+")));
+	}
+	return sentences;
+    }
+
+    /** Send a plain text response */
+    protected static void respond(HttpExchange exchange, int status, String body) throws IOException {
+	byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+	exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+	exchange.sendResponseHeaders(status, bytes.length);
+	OutputStream out = exchange.getResponseBody();
+	out.write(bytes);
+	out.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+	File modelFile = new File(args[0]);
+	int port = 8080;
+	int maxBatch = 1024;
+	long batchWaitMicros = 200;
+	for (int i = 1; i < args.length; i++) {
+	    if (args[i].equals("-port"))
+		port = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-batch"))
+		maxBatch = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-wait"))
+		batchWaitMicros = Long.parseLong(args[++i]);
+	}
+	long start = System.nanoTime();
+	BigramModel model = BigramModel.load(modelFile);
+	System.out.println("Loaded " + model.getClass().getSimpleName() + " from " + modelFile + 
+			   " in " + (System.nanoTime() - start) / 1000000 + " ms");
+	ModelMetrics.install(model);
+	ScoringServer server = new ScoringServer(model, maxBatch, batchWaitMicros);
+	server.start(port);
+	System.out.println("Serving on http://localhost:" + port + "/ (score, perplexity, stats)");
+	// Report latency and throughput periodically
+	while (true) {
+	    Thread.sleep(10000);
+	    if (server.latencies.count() > 0)
+		System.out.println(server.latencies.summary());
+	}
+    }
+}
@@ -0,0 +1,67 @@
+package lm.simd;
+
+import jdk.incubator.vector.*;
+import lm.InterpolationKernel;
+
+/**
+ * InterpolationKernel using the incubating Vector API. It needs
+ * the jdk.incubator.vector module at compile time and run time:
+ *
+ *   javac --add-modules jdk.incubator.vector lm/simd/*.java
+ *   java --add-modules jdk.incubator.vector ...
+ *
+ * BatchScorer loads it by name and falls back to a scalar loop when it
+ * cannot. Lanes of interpolated probabilities are interpolated with
+ * one fused multiply-add. The logs are not taken per token: each lane
+ * keeps a running product that is split into a binary exponent, summed
+ * as an integer, and a mantissa in [1, 2). Only those mantissa products
+ * need a log at the end. The result matches the scalar sum of logs to
+ * within rounding, and a zero probability gives negative infinity as
+ * it does there.
+ *
+ * @author TSM
+ */
+
+public class VectorInterpolationKernel implements InterpolationKernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Long> LONG_SPECIES = LongVector.SPECIES_PREFERRED;
+
+    /** Bits of a double's exponent field and of a double in [1, 2) */
+    private static final long EXPONENT_MASK = 0x7FF0000000000000L;
+    private static final long ONE_BITS = Double.doubleToRawLongBits(1.0);
+
+    public double interpolatedLogSum(double[] first, double[] second, int n, double weight1, double weight2) {
+	int bound = SPECIES.loopBound(n);
+	DoubleVector weights1 = DoubleVector.broadcast(SPECIES, weight1);
+	DoubleVector weights2 = DoubleVector.broadcast(SPECIES, weight2);
+	// Running product of each lane as mantissa * 2^exponent, mantissa in [1, 2)
+	DoubleVector mantissas = DoubleVector.broadcast(SPECIES, 1.0);
+	LongVector exponents = LongVector.zero(LONG_SPECIES);
+	DoubleVector smallest = DoubleVector.broadcast(SPECIES, Double.MAX_VALUE);
+	for (int i = 0; i < bound; i += SPECIES.length()) {
+	    DoubleVector probs = DoubleVector.fromArray(SPECIES, first, i)
+		.lanewise(VectorOperators.FMA, weights1, DoubleVector.fromArray(SPECIES, second, i).mul(weights2));
+	    smallest = smallest.min(probs);
+	    LongVector bits = mantissas.mul(probs).reinterpretAsLongs();
+	    exponents = exponents.add(bits.and(EXPONENT_MASK).lanewise(VectorOperators.LSHR, 52).sub(1023));
+	    mantissas = bits.and(~EXPONENT_MASK).or(ONE_BITS).reinterpretAsDoubles();
+	}
+	// Products of normal probabilities stay normal, but a probability too
+	// small for that (or zero) must be summed the scalar way
+	if (bound > 0 && smallest.reduceLanes(VectorOperators.MIN) < Double.MIN_NORMAL)
+	    return scalarLogSum(first, second, 0, n, weight1, weight2);
+	double sum = Math.log(2) * exponents.reduceLanes(VectorOperators.ADD);
+	for (int lane = 0; lane < SPECIES.length(); lane++)
+	    sum += Math.log(mantissas.lane(lane));
+	return sum + scalarLogSum(first, second, bound, n, weight1, weight2);
+    }
+
+    /** Sum of the logs from index from to to - 1, one token at a time */
+    private static double scalarLogSum(double[] first, double[] second, int from, int to, double weight1, double weight2) {
+	double sum = 0;
+	for (int i = from; i < to; i++)
+	    sum += Math.log(weight1 * first[i] + weight2 * second[i]);
+	return sum;
+    }
+}
@@ -0,0 +1,75 @@
+package lm;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that bidirectional models score a sentence given as a List of
+ * tokens the same as the same sentence read from a Corpus.
+ */
+
+public class BidirectionalTokenProbsTest {
+
+    static final List<List<String>> TRAIN = Arrays.asList(
+	Arrays.asList("the", "cat", "sat"),
+	Arrays.asList("the", "dog", "sat", "down"),
+	Arrays.asList("a", "cat", "ran"),
+	Arrays.asList("the", "cat", "ran", "down"));
+
+    // Includes a bigram not seen in training and a word not in the vocabulary
+    static final List<List<String>> TEST = Arrays.asList(
+	Arrays.asList("the", "cat", "sat", "down"),
+	Arrays.asList("a", "dog", "ran"),
+	Arrays.asList("the", "bird", "sat"));
+
+    @Test
+    public void bidirectionalListMatchesCorpus() {
+	BidirectionalBigramModel model = new BidirectionalBigramModel(0.3, 0.7);
+	model.train(TRAIN);
+	assertListMatchesCorpus(model);
+    }
+
+    @Test
+    public void sharedListMatchesCorpus() {
+	SharedBidirectionalBigramModel model = new SharedBidirectionalBigramModel(0.3, 0.7);
+	model.train(TRAIN);
+	assertListMatchesCorpus(model);
+    }
+
+    @Test
+    public void sharedMatchesBidirectional() {
+	BidirectionalBigramModel separate = new BidirectionalBigramModel(0.3, 0.7);
+	separate.train(TRAIN);
+	SharedBidirectionalBigramModel shared = new SharedBidirectionalBigramModel(0.3, 0.7);
+	shared.train(TRAIN);
+	for (List<String> sentence : TEST)
+	    assertArrayEquals(listProbs(separate, sentence), listProbs(shared, sentence), 1e-12);
+    }
+
+    static void assertListMatchesCorpus(BigramModel model) {
+	Corpus corpus = Corpus.of(TEST);
+	for (int s = 0; s < TEST.size(); s++) {
+	    List<String> sentence = TEST.get(s);
+	    double[] fromList = listProbs(model, sentence);
+	    double[] fromCorpus = new double[sentence.size() + 1];
+	    assertEquals(fromCorpus.length, model.sentenceTokenProbs(corpus, s, fromCorpus, 0));
+	    for (double prob : fromList)
+		assertTrue(prob > 0 && prob <= 1, "probability " + prob);
+	    assertArrayEquals(fromCorpus, fromList, 1e-12);
+	    // The boxed variant gives the same probabilities
+	    Double[] boxed = model.sentenceTokenProbs(sentence);
+	    for (int i = 0; i < boxed.length; i++)
+		assertEquals(fromList[i], boxed[i], 1e-12);
+	}
+    }
+
+    // Token probabilities of a List sentence, stored at an offset
+    static double[] listProbs(BigramModel model, List<String> sentence) {
+	double[] probs = new double[sentence.size() + 3];
+	assertEquals(sentence.size() + 1, model.sentenceTokenProbs(sentence, probs, 2));
+	return Arrays.copyOfRange(probs, 2, probs.length);
+    }
+}
@@ -0,0 +1,103 @@
+package lm;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that CachingScorer returns the scores of each kind of model, from
+ * the cache on a repeat, and does not hold its lock while a model scores.
+ */
+
+public class CachingScorerTest {
+
+    static List<BigramModel> models() {
+	List<BigramModel> models = new ArrayList<BigramModel>();
+	models.add(new BigramModel());
+	models.add(new BackwardBigramModel());
+	models.add(new BidirectionalBigramModel(0.3, 0.7));
+	models.add(new SharedBidirectionalBigramModel(0.3, 0.7));
+	models.add(new NgramModel(3));
+	models.add(new BackwardNgramModel(3));
+	for (BigramModel model : models)
+	    model.train(BidirectionalTokenProbsTest.TRAIN);
+	return models;
+    }
+
+    @Test
+    public void cachedScoresMatchModel() {
+	for (BigramModel model : models()) {
+	    String name = model.getClass().getSimpleName();
+	    CachingScorer scorer = new CachingScorer(model, 16);
+	    for (int pass = 0; pass < 2; pass++) {
+		for (List<String> sentence : BidirectionalTokenProbsTest.TEST) {
+		    assertEquals(model.sentenceLogProb(sentence), scorer.sentenceLogProb(sentence), 1e-12, name);
+		    assertEquals(model.sentenceLogProb2(sentence), scorer.sentenceLogProb2(sentence), 1e-12, name);
+		    double[] expected = new double[sentence.size() + 1];
+		    model.sentenceTokenProbs(sentence, expected, 0);
+		    double[] cached = new double[sentence.size() + 2];
+		    assertEquals(expected.length, scorer.sentenceTokenProbs(sentence, cached, 1), name);
+		    for (int i = 0; i < expected.length; i++) {
+			assertFalse(Double.isNaN(cached[i + 1]), name);
+			assertEquals(expected[i], cached[i + 1], 1e-12, name);
+		    }
+		}
+	    }
+	    // Each sentence misses once, when its entry is added
+	    assertEquals(BidirectionalTokenProbsTest.TEST.size(), scorer.getCache().getMisses(), name);
+	}
+    }
+
+    @Test
+    public void retrainingInvalidates() {
+	BigramModel model = new BigramModel();
+	model.train(BidirectionalTokenProbsTest.TRAIN);
+	CachingScorer scorer = new CachingScorer(model, 16);
+	List<String> sentence = BidirectionalTokenProbsTest.TEST.get(0);
+	double before = scorer.sentenceLogProb(sentence);
+	model.train(BidirectionalTokenProbsTest.TEST);
+	double after = scorer.sentenceLogProb(sentence);
+	assertEquals(model.sentenceLogProb(sentence), after, 1e-12);
+	assertNotEquals(before, after);
+	assertEquals(1, scorer.getInvalidations());
+    }
+
+    @Test
+    public void missesAreScoredConcurrently() throws Exception {
+	// Each call waits until two calls are in the model at once, which
+	// cannot happen if the scorer holds its lock while the model scores
+	CountDownLatch bothScoring = new CountDownLatch(2);
+	BigramModel model = new BigramModel() {
+		@Override
+		public double sentenceLogProb(List<String> sentence) {
+		    bothScoring.countDown();
+		    try {
+			if (!bothScoring.await(10, TimeUnit.SECONDS))
+			    throw new IllegalStateException("Scored one sentence at a time");
+		    }
+		    catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		    }
+		    return super.sentenceLogProb(sentence);
+		}
+	    };
+	model.train(BidirectionalTokenProbsTest.TRAIN);
+	CachingScorer scorer = new CachingScorer(model, 16);
+	ExecutorService pool = Executors.newFixedThreadPool(2);
+	try {
+	    List<Future<Double>> scores = new ArrayList<Future<Double>>();
+	    for (int s = 0; s < 2; s++) {
+		List<String> sentence = BidirectionalTokenProbsTest.TEST.get(s);
+		scores.add(pool.submit(() -> scorer.sentenceLogProb(sentence)));
+	    }
+	    for (Future<Double> score : scores)
+		assertFalse(Double.isNaN(score.get(20, TimeUnit.SECONDS)));
+	}
+	finally {
+	    pool.shutdownNow();
+	}
+    }
+}
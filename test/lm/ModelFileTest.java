@@ -0,0 +1,45 @@
+package lm;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that a model compacted by ModelCompactor is saved and loaded
+ * with its quantized codes, at its compacted size and with the same scores.
+ * (On a corpus this small the codebook is as large as the table, so the
+ * file itself is not smaller.)
+ */
+
+public class ModelFileTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void quantizedModelsKeepTheirCodes() throws IOException {
+	for (int bits : new int[]{8, 16}) {
+	    BigramModel model = new BidirectionalBigramModel(0.3, 0.7);
+	    model.train(BidirectionalTokenProbsTest.TRAIN);
+	    new ModelCompactor(0, 0, bits).compact(model);
+	    File compacted = dir.resolve("compacted" + bits).toFile();
+	    model.save(compacted);
+
+	    BidirectionalBigramModel loaded = (BidirectionalBigramModel) BigramModel.load(compacted);
+	    for (BigramModel direction : Arrays.asList(loaded.getForwardModel(), loaded.getBackwardModel())) {
+		assertTrue(direction.bigramTable instanceof QuantizedBigramTable);
+		assertEquals(bits, ((QuantizedBigramTable) direction.bigramTable).getBits());
+	    }
+	    assertEquals(ModelCompactor.bigramBytes(model), ModelCompactor.bigramBytes(loaded));
+	    for (List<String> sentence : BidirectionalTokenProbsTest.TEST)
+		assertEquals(model.sentenceLogProb(sentence), loaded.sentenceLogProb(sentence), 0);
+	    assertThrows(UnsupportedOperationException.class,
+			 () -> loaded.getForwardModel().trainSentences(BidirectionalTokenProbsTest.TRAIN));
+	}
+    }
+}
@@ -0,0 +1,43 @@
+package lm;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks top-k prediction on each direction, and that bidirectional models,
+ * which have no single-direction successors, refuse it.
+ */
+
+public class SuccessorIndexTest {
+
+    @Test
+    public void forwardAndBackwardPredict() {
+	BigramModel forward = new BigramModel();
+	forward.train(BidirectionalTokenProbsTest.TRAIN);
+	List<String> top = forward.topK("the", 2);
+	assertEquals(2, top.size());
+	assertEquals("cat", top.get(0));
+	assertEquals(Arrays.asList("cat"), forward.topK("the", "c", 3));
+	BigramModel backward = new BackwardBigramModel();
+	backward.train(BidirectionalTokenProbsTest.TRAIN);
+	assertEquals("cat", backward.topK("ran", 1).get(0));
+    }
+
+    @Test
+    public void bidirectionalModelsRefuse() {
+	BigramModel forward = new BigramModel();
+	forward.train(BidirectionalTokenProbsTest.TRAIN);
+	BidirectionalBigramModel separate = new BidirectionalBigramModel();
+	separate.train(BidirectionalTokenProbsTest.TRAIN);
+	SharedBidirectionalBigramModel shared = new SharedBidirectionalBigramModel();
+	shared.train(BidirectionalTokenProbsTest.TRAIN);
+	for (BidirectionalBigramModel model : Arrays.asList(separate, shared)) {
+	    assertThrows(UnsupportedOperationException.class, () -> model.topK("the", 2));
+	    assertThrows(UnsupportedOperationException.class, () -> model.topK("the", "c", 2));
+	    assertEquals(forward.topK("the", 3), model.getForwardModel().topK("the", 3));
+	}
+    }
+}